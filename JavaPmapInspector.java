@@ -1,408 +1,5663 @@
+package io.github.bric3.pmap;
+
+import com.sun.net.httpserver.HttpServer;
+import com.sun.tools.attach.AttachNotSupportedException;
+import com.sun.tools.attach.VirtualMachine;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.ArrayDeque;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.LongSummaryStatistics;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
-import java.util.Set;
-import java.util.function.BiConsumer;
-import java.util.function.BinaryOperator;
-import java.util.function.Function;
+import java.util.PriorityQueue;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.function.Supplier;
 import java.util.regex.Pattern;
-import java.util.stream.Collector;
+import javax.management.JMException;
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+public class JavaPmapInspector {
+    private static final Pattern WHITE_SPACE_SEPARATOR = Pattern.compile("\\s+");
+    static final int BATCH_SIZE = 4096;
+    private static Config config;
+    private static ClassificationRules rules;
+    private static JvmLayout layout = JvmLayout.NONE;
+    private static ParallelClassifier parallelClassifier;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        var options = Options.parse(args);
+        try {
+            configure(options.rulesFile, readLayout(options));
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+        if (options.printRules) {
+            rules.print(System.out);
+            return;
+        }
+        if (!layout.isEmpty()) {
+            layout.print(System.out);
+        }
+        if (options.generatePrefix != null) {
+            new SyntheticProcess(options.generateMappings, options.seed).writeAll(options.generatePrefix);
+            System.out.printf("Generated %2$s.pmap, %2$s.smaps and %2$s.expected with %1$d mappings%n",
+                              options.generateMappings,
+                              options.generatePrefix);
+            return;
+        }
+        if (options.parallel) {
+            parallelClassifier = new ParallelClassifier(ForkJoinPool.commonPool());
+        }
+        if (options.allJava) {
+            new FleetInspector(Paths.get("/proc")).run();
+            return;
+        }
+
+        var analyses = new ArrayList<Consumer<SegmentTable>>();
+        try {
+            if (options.nmtFile != null) {
+                var nmt = NmtDetail.parse(options.nmtFile);
+                analyses.add(classified -> nmt.printCorrelation(SegmentIndex.of(classified)));
+            }
+            if (options.threads || options.threadDumpFile != null) {
+                var threads = ThreadStacks.read(options.threads ? Paths.get("/proc", options.pid) : null, options.threadDumpFile);
+                analyses.add(classified -> threads.report(SegmentIndex.of(classified)));
+            }
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+        if (options.replayFile != null) {
+            try {
+                replay(options.replayFile, options.snapshot, options.diff, analyses);
+            } catch (IOException e) {
+                System.err.printf("Snapshots '%s' could not be replayed, %s%n", options.replayFile, e.getMessage());
+                System.exit(1);
+            }
+            return;
+        }
+        try (var recorder = openRecorder(options)) {
+            inspect(options, analyses, recorder);
+        }
+    }
+
+    private static SnapshotWriter openRecorder(Options options) {
+        if (options.recordFile == null) {
+            return null;
+        }
+        try {
+            return SnapshotWriter.open(options.recordFile);
+        } catch (IOException e) {
+            System.err.printf("Can't record snapshots in '%s', %s%n", options.recordFile, e.getMessage());
+            System.exit(1);
+            return null;
+        }
+    }
+
+    private static boolean[] pagemapTypes(Options options) {
+        try {
+            return PagemapScanner.parseTypes(options.pagemapTypes);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+            return null;
+        }
+    }
+
+    private static PmapReader openPmap(String input) {
+        try {
+            return PmapReader.open(input);
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+            return null;
+        }
+    }
+
+    private static JvmLayout readLayout(Options options) {
+        try {
+            if (options.layoutFiles != null) {
+                return JvmLayout.parse(options.layoutFiles);
+            }
+            if (options.attach) {
+                return JvmLayout.attach(options.pid);
+            }
+        } catch (IOException e) {
+            System.err.printf("Could not read the JVM layout%s, %s%n", options.attach ? " of process " + options.pid : "", e.getMessage());
+            System.exit(1);
+        }
+        return JvmLayout.NONE;
+    }
+
+    private static void inspect(Options options,
+                                List<Consumer<SegmentTable>> analyses,
+                                SnapshotWriter recorder) throws IOException, InterruptedException {
+        if (options.pid != null) {
+            // Reads /proc/<pid>/smaps directly, avoids forking pmap on large processes
+            var procDir = Paths.get("/proc", options.pid);
+            if (!Files.isReadable(procDir.resolve("smaps"))) {
+                System.err.printf("Process '%s' does not exists or its smaps is not readable ", options.pid);
+                System.exit(1);
+            }
+            var cmd = SmapsReader.readCmdline(procDir.resolve("cmdline"));
+            System.out.printf("cmd: %s:   %s%n", options.pid, cmd);
+            if (options.watchInterval != null) {
+                new Watcher(procDir, options.watchInterval, recorder).run();
+                return;
+            }
+            if (options.pagemapTypes != null) {
+                var selected = pagemapTypes(options);
+                var pagemap = procDir.resolve("pagemap");
+                if (!Files.isReadable(pagemap)) {
+                    System.err.printf("Pagemap of process '%s' is not readable ", options.pid);
+                    System.exit(1);
+                }
+                analyses.add(classified -> {
+                    try {
+                        PagemapScanner.report(pagemap, classified, selected);
+                    } catch (IOException e) {
+                        System.err.printf("Pagemap '%s' could not be read, %s%n", pagemap, e);
+                        System.exit(1);
+                    }
+                });
+            }
+            if (recorder != null) {
+                recorder.begin(cmd, System.currentTimeMillis());
+            }
+            try (var smapsReader = new SmapsReader().open(procDir.resolve("smaps"))) {
+                report(smapsReader,
+                       () -> GlobalStat.of(smapsReader.vsz_kib,
+                                           SmapsReader.readRollupRss(procDir.resolve("smaps_rollup"), smapsReader.rss_kib)),
+                       analyses,
+                       recorder);
+            }
+            return;
+        }
+
+        // Concatenated captures are reported one sample after the other
+        try (var pmapReader = openPmap(options.input)) {
+            for (int sample = 0; pmapReader.nextSample(); sample++) {
+                if (sample > 0) {
+                    System.out.printf("%n");
+                }
+                System.out.printf("cmd: %s%n", pmapReader.cmd);
+                if (recorder != null) {
+                    recorder.begin(pmapReader.cmd, System.currentTimeMillis());
+                }
+                report(pmapReader, pmapReader::globalStat, analyses, recorder);
+            }
+        }
+    }
+
+    /**
+     * Reports the recorded snapshots, or the growth between them with {@code diff}, their
+     * segments are replayed as they were classified.
+     *
+     * @param only the only snapshot to replay, with {@code diff} it's compared to the previous one, -1 for all.
+     */
+    static void replay(Path file, int only, boolean diff, List<Consumer<SegmentTable>> analyses) throws IOException {
+        try (var reader = SnapshotReader.open(file)) {
+            if (only >= reader.size()) {
+                System.err.printf("No snapshot %d, '%s' has %d snapshots%n", only, file, reader.size());
+                System.exit(1);
+            }
+            int from = only < 0 ? 0 : diff ? Math.max(0, only - 1) : only;
+            int to = only < 0 ? reader.size() : only + 1;
+            var segments = new SegmentTable(1024);
+            var sampleDiff = new SampleDiff();
+            var ranges = new ClassifiedRanges[]{new ClassifiedRanges(segments.mappings), new ClassifiedRanges(segments.mappings)};
+            for (int i = from; i < to; i++) {
+                segments.clear();
+                var snapshot = reader.read(i, segments);
+                if (diff) {
+                    var current = ranges[i % 2];
+                    current.clear();
+                    for (int row = 0; row < segments.size; row++) {
+                        current.add(segments, row, 1, 0);
+                    }
+                    sampleDiff.report(i, snapshot.time(), TimeUnit.MILLISECONDS.toNanos(snapshot.timeMillis), current, "");
+                    continue;
+                }
+                if (i > from) {
+                    System.out.printf("%n");
+                }
+                System.out.printf("snapshot %d at %s%n", i, snapshot.time().truncatedTo(ChronoUnit.SECONDS));
+                System.out.printf("cmd: %s%n", snapshot.cmd);
+                var report = new Report();
+                report.add(segments, 0, segments.size);
+                // the snapshots don't tell whether the input had the AnonHugePages field
+                report.hasAnonHugePages(Arrays.stream(segments.anon_huge_pages_kib, 0, segments.size).anyMatch(kib -> kib > 0));
+                report.print(snapshot.globalStat);
+                analyses.forEach(analysis -> analysis.accept(segments));
+            }
+        }
+    }
+
+    /**
+     * Entry point of {@code -javaagent:java-pmap-inspector.jar=interval=10s,port=9464}, see {@link Agent}.
+     */
+    public static void premain(String agentArgs) throws IOException {
+        Agent.start(agentArgs);
+    }
+
+    /**
+     * Entry point when the agent is loaded in a running JVM.
+     */
+    public static void agentmain(String agentArgs) throws IOException {
+        Agent.start(agentArgs);
+    }
+
+    /**
+     * Loads the configuration and the classification rules, the built-in ones
+     * when no rules file is given.
+     *
+     * @throws IOException when the rules file can't be read.
+     * @throws IllegalArgumentException when a rule is invalid, the previous configuration is kept.
+     */
+    public static void configure(Path rulesFile) throws IOException {
+        configure(rulesFile, JvmLayout.NONE);
+    }
+
+    static void configure(Path rulesFile, JvmLayout layout) throws IOException {
+        var config = new Config();
+        layout.configure(config);
+        rules = ClassificationRules.load(rulesFile, config);
+        JavaPmapInspector.config = config;
+        JavaPmapInspector.layout = layout;
+    }
+
+    private static void usage() {
+        System.err.println("Usage:");
+        System.err.println("   pmap -X pid > pmap.txt; java JavaPmapInspector.java pmap.txt");
+        System.err.println("   java JavaPmapInspector.java <(pmap -X pid)");
+        System.err.println("   pmap -X pid | java JavaPmapInspector.java -");
+        System.err.println("   java JavaPmapInspector.java --pid pid");
+        System.err.println("   java JavaPmapInspector.java --pid pid --watch 10s");
+        System.err.println("   java JavaPmapInspector.java --pid pid --attach");
+        System.err.println("   java JavaPmapInspector.java --pid pid --threads --thread-dump threads.txt");
+        System.err.println("   java JavaPmapInspector.java --pid pid --watch 5m --record snapshots.jpms");
+        System.err.println("   java JavaPmapInspector.java --replay snapshots.jpms --diff");
+        System.err.println("   java JavaPmapInspector.java --all-java");
+        System.err.println("   java JavaPmapInspector.java --generate 100000 synthetic");
+        System.err.println();
+        System.err.println("Inspect `pmap -X` output of a java process, requires Java11.");
+        System.err.println();
+        System.err.println("Options:");
+        System.err.println("   --pid pid             reads /proc/<pid>/smaps instead of a pmap -X output");
+        System.err.println("   --watch interval      resamples the process (e.g. 500ms, 10s, 1m) and reports the RSS growth");
+        System.err.println("   --all-java            inspects every java process of the host concurrently");
+        System.err.println("   --pagemap types       scans /proc/<pid>/pagemap for the resident page runs of the segments of these");
+        System.err.println("                         comma separated types, e.g. MALLOC_ARENA,JAVA_THREAD");
+        System.err.println("   --jvm-layout files    types the Java heap, class space and code heap segments from the saved comma");
+        System.err.println("                         separated jcmd <pid> VM.info, VM.flags -all, GC.heap_info, Compiler.codecache");
+        System.err.println("                         outputs, and uses the stack and page sizes of the flags");
+        System.err.println("   --attach              reads the JVM layout of the --pid process with the attach API");
+        System.err.println("   --nmt file            correlates the segments with a saved jcmd <pid> VM.native_memory detail");
+        System.err.println("   --threads             maps the thread stacks to the threads of the --pid process, grouped by name prefix");
+        System.err.println("   --thread-dump file    names the threads, and locates the Java ones, with a saved jcmd <pid> Thread.print");
+        System.err.println("   --record file         appends the classified segments of each sample to a binary snapshot file");
+        System.err.println("   --replay file         reports the snapshots of the file, without classifying them again");
+        System.err.println("   --snapshot n          replays only the snapshot n, the first one is 0");
+        System.err.println("   --diff                reports the RSS growth between the replayed snapshots, like --watch");
+        System.err.println("   --parallel            reads all the segments first, then classifies them on all the cores");
+        System.err.println("   --rules file          classification rules tried before the built-in ones");
+        System.err.println("   --print-rules         prints the classification rules in use");
+        System.err.println("   --generate n prefix   writes a synthetic pmap -X and smaps dump of a JVM with about n mappings,");
+        System.err.println("                         and its expected classification, in prefix.pmap, prefix.smaps, prefix.expected");
+        System.err.println("   --seed seed           seed of the generated dump, 42 by default");
+        System.err.println();
+        System.err.println("WARNING: May not be 100% accurate as most memory mappings are anonymous, which ");
+        System.err.println("means that segment patterns with the same protections may be _bagged _ together.");
+        System.exit(1);
+    }
+
+    static class Options {
+        private String input;
+        private String pid;
+        private Duration watchInterval;
+        private Path rulesFile;
+        private Path nmtFile;
+        private List<Path> layoutFiles;
+        private boolean attach;
+        private Path recordFile;
+        private Path replayFile;
+        private int snapshot = -1;
+        private boolean diff;
+        private boolean parallel;
+        private String pagemapTypes;
+        private boolean threads;
+        private Path threadDumpFile;
+        private boolean printRules;
+        private boolean allJava;
+        private int generateMappings;
+        private String generatePrefix;
+        private long seed = 42;
+
+        static Options parse(String[] args) {
+            var options = new Options();
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--pid":
+                        options.pid = valueOf(args, ++i, "--pid");
+                        break;
+                    case "--watch":
+                        options.watchInterval = parseInterval(valueOf(args, ++i, "--watch"));
+                        break;
+                    case "--pagemap":
+                        options.pagemapTypes = valueOf(args, ++i, "--pagemap");
+                        break;
+                    case "--threads":
+                        options.threads = true;
+                        break;
+                    case "--thread-dump":
+                        options.threadDumpFile = Paths.get(valueOf(args, ++i, "--thread-dump"));
+                        break;
+                    case "--nmt":
+                        options.nmtFile = Paths.get(valueOf(args, ++i, "--nmt"));
+                        break;
+                    case "--jvm-layout":
+                        options.layoutFiles = Arrays.stream(valueOf(args, ++i, "--jvm-layout").split(","))
+                                                    .map(Paths::get)
+                                                    .collect(Collectors.toList());
+                        break;
+                    case "--attach":
+                        options.attach = true;
+                        break;
+                    case "--record":
+                        options.recordFile = Paths.get(valueOf(args, ++i, "--record"));
+                        break;
+                    case "--replay":
+                        options.replayFile = Paths.get(valueOf(args, ++i, "--replay"));
+                        break;
+                    case "--snapshot":
+                        options.snapshot = parseCount(valueOf(args, ++i, "--snapshot"), "--snapshot");
+                        break;
+                    case "--parallel":
+                        options.parallel = true;
+                        break;
+                    case "--diff":
+                        options.diff = true;
+                        break;
+                    case "--rules":
+                        options.rulesFile = Paths.get(valueOf(args, ++i, "--rules"));
+                        break;
+                    case "--all-java":
+                        options.allJava = true;
+                        break;
+                    case "--print-rules":
+                        options.printRules = true;
+                        break;
+                    case "--generate":
+                        options.generateMappings = parseCount(valueOf(args, ++i, "--generate"), "--generate");
+                        options.generatePrefix = valueOf(args, ++i, "--generate");
+                        break;
+                    case "--seed":
+                        options.seed = parseCount(valueOf(args, ++i, "--seed"), "--seed");
+                        break;
+                    default:
+                        options.input = args[i];
+                }
+            }
+            if (options.input == null
+                && options.pid == null
+                && !options.allJava
+                && !options.printRules
+                && options.generatePrefix == null
+                && options.replayFile == null) {
+                usage();
+            }
+            if (options.allJava && (options.pid != null || options.input != null)) {
+                System.err.println("--all-java can't be combined with a pid or an input");
+                System.exit(1);
+            }
+            if (options.replayFile != null && (options.pid != null || options.input != null || options.allJava || options.recordFile != null)) {
+                System.err.println("--replay can't be combined with a pid, an input, --all-java or --record");
+                System.exit(1);
+            }
+            if ((options.snapshot >= 0 || options.diff) && options.replayFile == null) {
+                System.err.println("--snapshot and --diff require --replay");
+                System.exit(1);
+            }
+            if (options.recordFile != null && options.allJava) {
+                System.err.println("--record can't be combined with --all-java");
+                System.exit(1);
+            }
+            if (options.parallel && (options.watchInterval != null || options.allJava || options.replayFile != null)) {
+                System.err.println("--parallel only applies to a single pmap input or --pid");
+                System.exit(1);
+            }
+            if (options.watchInterval != null && options.pid == null) {
+                System.err.println("--watch requires --pid");
+                System.exit(1);
+            }
+            if (options.attach && (options.pid == null || options.layoutFiles != null)) {
+                System.err.println("--attach requires --pid, and can't be combined with --jvm-layout");
+                System.exit(1);
+            }
+            if ((options.attach || options.layoutFiles != null) && (options.allJava || options.replayFile != null)) {
+                System.err.println("--jvm-layout and --attach apply to a single process, not to --all-java nor --replay");
+                System.exit(1);
+            }
+            if (options.pagemapTypes != null && options.pid == null) {
+                System.err.println("--pagemap requires --pid");
+                System.exit(1);
+            }
+            if (options.threads && options.pid == null) {
+                System.err.println("--threads requires --pid");
+                System.exit(1);
+            }
+            if ((options.threads || options.threadDumpFile != null) && (options.watchInterval != null || options.allJava)) {
+                System.err.println("--threads and --thread-dump apply to a single sample, not to --watch nor --all-java");
+                System.exit(1);
+            }
+            return options;
+        }
+
+        private static String valueOf(String[] args, int i, String option) {
+            if (i >= args.length) {
+                System.err.printf("Missing value after %s%n", option);
+                System.exit(1);
+            }
+            return args[i];
+        }
+
+        private static int parseCount(String count, String option) {
+            try {
+                return Integer.parseUnsignedInt(count);
+            } catch (NumberFormatException e) {
+                System.err.printf("Invalid value '%s' after %s, expected a positive number%n", count, option);
+                System.exit(1);
+                return 0;
+            }
+        }
+
+        private static Duration parseInterval(String interval) {
+            try {
+                return toDuration(interval);
+            } catch (NumberFormatException e) {
+                System.err.printf("Invalid interval '%s', expected e.g. 500ms, 10s, 1m%n", interval);
+                System.exit(1);
+                return null;
+            }
+        }
+
+        /**
+         * @return the positive duration, e.g. 500ms, 10s, 1m, 2h or a number of seconds.
+         * @throws NumberFormatException when the interval is not one of these.
+         */
+        static Duration toDuration(String interval) {
+            if (interval.isEmpty() || interval.startsWith("-") || interval.matches("0+[a-z]*")) {
+                throw new NumberFormatException(interval);
+            }
+            if (interval.endsWith("ms")) {
+                return Duration.ofMillis(Long.parseLong(interval.substring(0, interval.length() - 2)));
+            }
+            var amount = Long.parseLong(interval.substring(0, interval.length() - 1));
+            switch (interval.charAt(interval.length() - 1)) {
+                case 's':
+                    return Duration.ofSeconds(amount);
+                case 'm':
+                    return Duration.ofMinutes(amount);
+                case 'h':
+                    return Duration.ofHours(amount);
+                default:
+                    return Duration.ofSeconds(Long.parseLong(interval));
+            }
+        }
+    }
+
+    /**
+     * Classifies and reports the segments in a single pass, the segments are
+     * read in fixed size batches and only the per-type and per-mapping
+     * aggregates are kept in memory.
+     */
+    static void report(SegmentSource source, Supplier<GlobalStat> globalStat) throws IOException {
+        var report = new Report();
+        classify(source, new SegmentTable(BATCH_SIZE), report::add);
+        report.hasAnonHugePages(source.hasAnonHugePages());
+        report.print(globalStat.get());
+    }
+
+    /**
+     * Reports the segments, then runs the analyses that need all of them, like the
+     * NMT correlation, the classified segments are kept in memory in this case.
+     *
+     * The classified segments are also appended to the snapshot begun by the recorder, if any.
+     */
+    static void report(SegmentSource source,
+                       Supplier<GlobalStat> globalStat,
+                       List<Consumer<SegmentTable>> analyses,
+                       SnapshotWriter recorder) throws IOException {
+        if (analyses.isEmpty() && recorder == null) {
+            report(source, globalStat);
+            return;
+        }
+        var report = new Report();
+        var segments = new SegmentTable(BATCH_SIZE);
+        var classified = new SegmentTable(analyses.isEmpty() ? 0 : 1024, segments.mappings);
+        classify(source, segments, (table, from, to) -> {
+            report.add(table, from, to);
+            if (!analyses.isEmpty()) {
+                for (int i = from; i < to; i++) {
+                    classified.addRow(table, i);
+                }
+            }
+            if (recorder != null) {
+                recorder.accept(table, from, to);
+            }
+        });
+        var stat = globalStat.get();
+        report.hasAnonHugePages(source.hasAnonHugePages());
+        report.print(stat);
+        if (recorder != null) {
+            recorder.end(stat);
+        }
+        analyses.forEach(analysis -> analysis.accept(classified));
+    }
+
+    /**
+     * Classifies the segments of the source batch by batch, or with {@code --parallel}
+     * reads them all then classifies them concurrently.
+     */
+    private static void classify(SegmentSource source, SegmentTable segments, SegmentRangeConsumer consumer) throws IOException {
+        consumer = HeapViews.retyping(consumer);
+        if (parallelClassifier == null) {
+            classify(source, segments, new MemorySegmentIdentifier(), consumer);
+            return;
+        }
+        segments.clear();
+        while (source.fill(segments) > 0) {
+            segments.grow();
+        }
+        parallelClassifier.classify(segments, consumer);
+    }
+
+    /**
+     * Slides a two-block window over the segments of the source, batch by batch.
+     * A segment is handed to the consumer once the next one did not merge into
+     * it, at this point it won't change anymore.
+     */
+    static void classify(SegmentSource source,
+                                 SegmentTable segments,
+                                 MemorySegmentIdentifier msi,
+                                 SegmentRangeConsumer consumer) throws IOException {
+        segments.clear();
+        while (source.fill(segments) > 0) {
+            int identified = classifyInPlace(segments, msi);
+            consumer.accept(segments, 0, identified);
+            // the last segment may still merge with the first one of the next batch
+            segments.retainLast();
+        }
+        consumer.accept(segments, 0, segments.size);
+    }
+
+    /**
+     * Merges the contiguous segments of the table in place.
+     *
+     * @return the number of identified segments, they are moved at the start of the table
+     * and followed by the last segment, that is not yet identified.
+     */
+    static int classifyInPlace(SegmentTable segments, MemorySegmentIdentifier msi) {
+        int last = 0;
+        int identified = 0;
+        for (int i = 1; i < segments.size; i++) {
+            SegmentIdentifierResult mergeResult = msi.tryMergeMapping(segments, last, i);
+            if (mergeResult != SegmentIdentifierResult.CONTIGUOUS_MAPPING) {
+                segments.copyRow(last, identified++);
+                last = i;
+            }
+        }
+        segments.copyRow(last, identified);
+        segments.size = identified + 1;
+        return identified;
+    }
+
+    interface SegmentSource {
+        /**
+         * Appends segments to the table until it is full or the source is exhausted.
+         *
+         * @return the number of appended segments, 0 when there's nothing left to read.
+         */
+        int fill(SegmentTable segments) throws IOException;
+
+        /**
+         * @return whether the segments read so far have the AnonHugePages field, a {@code pmap -X}
+         * output may not have the column, their anonymous huge pages are then unknown rather than 0.
+         */
+        default boolean hasAnonHugePages() {
+            return true;
+        }
+    }
+
+    interface SegmentRangeConsumer {
+        void accept(SegmentTable segments, int from, int to);
+    }
+
+    /**
+     * Aggregates the identified segments per type and the shared file mappings
+     * per mapping name, in order of first appearance.
+     */
+    static class Report {
+        private static final int MAX_LISTED = 10;
+
+        private final long[] typeCount = new long[rules.typeCount()];
+        private final long[] typeSize = new long[rules.typeCount()];
+        private final long[] typeRss = new long[rules.typeCount()];
+        private final long[] typePss = new long[rules.typeCount()];
+        private final byte[] typeOrder = new byte[rules.typeCount()];
+        private int typeOrderSize;
+
+        private long[] mappingCount = new long[64];
+        private long[] mappingSizeMin = new long[64];
+        private long[] mappingSizeMax = new long[64];
+        private int[] mappingOrder = new int[64];
+        private int mappingOrderSize;
+        private MappingDictionary mappings;
+
+        private final long[] typeAnonHugePages = new long[rules.typeCount()];
+        private final long[] typeThpEligible = new long[rules.typeCount()];
+        private final long[] typeSwap = new long[rules.typeCount()];
+        private final long[] typeSwapPss = new long[rules.typeCount()];
+        private final long[] typeLocked = new long[rules.typeCount()];
+        private final List<String> notHugePages = new ArrayList<>();
+        private int notHugePagesCount;
+        private final List<String> heapViews = new ArrayList<>();
+        private int heapViewsCount;
+        private final ArenaAnalyzer arenas = new ArenaAnalyzer();
+        private boolean hasAnonHugePages = true;
+
+        /**
+         * Tells whether the input had the AnonHugePages field, the snapshots don't record it.
+         */
+        void hasAnonHugePages(boolean hasAnonHugePages) {
+            this.hasAnonHugePages = hasAnonHugePages;
+        }
+
+        void add(SegmentTable segments, int from, int to) {
+            mappings = segments.mappings;
+            for (int i = from; i < to; i++) {
+                byte type = segments.type[i];
+                if (type == SegmentType.UNKNOWN.ordinal()) {
+                    System.out.println(segments.toString(i));
+                }
+                if (typeCount[type]++ == 0) {
+                    typeOrder[typeOrderSize++] = type;
+                }
+                typeSize[type] += segments.size_kib[i];
+                typeRss[type] += segments.rss_kib[i];
+                typePss[type] += segments.pss_kib[i];
+                typeAnonHugePages[type] += segments.anon_huge_pages_kib[i];
+                typeThpEligible[type] += segments.thp_eligible_kib[i];
+                typeSwap[type] += segments.swap_kib[i];
+                typeSwapPss[type] += segments.swap_pss_kib[i];
+                typeLocked[type] += segments.locked_kib[i];
+
+                if (type == SegmentType.SHARED_MAPPED_FILE.ordinal()) {
+                    addSharedMapping(segments.mapping[i], segments.size_kib[i]);
+                }
+                if (type == SegmentType.MALLOC_ARENA.ordinal() || type == SegmentType.MAIN_NATIVE_HEAP.ordinal()) {
+                    arenas.add(segments, i);
+                }
+                if (HeapViews.isHeapView(type) && segments.inode[i] > 0 && heapViewsCount++ < MAX_LISTED) {
+                    heapViews.add(String.format("%18s startAddress=%-16s offset=%-12x size=%-10d rss=%-10s pss=%-10s",
+                                                segments.typeName(i),
+                                                Long.toHexString(segments.startAddress[i]),
+                                                segments.offset[i],
+                                                segments.size_kib[i],
+                                                segments.rss_kib[i],
+                                                segments.pss_kib[i]));
+                }
+                if ((type == SegmentType.JAVA_HEAP.ordinal() || type == SegmentType.CODE_HEAP.ordinal())
+                    && segments.thp_eligible_kib[i] > 0
+                    && segments.anon_huge_pages_kib[i] == 0
+                    && segments.rss_kib[i] >= config.huge_page_size_kib) {
+                    if (notHugePagesCount++ < MAX_LISTED) {
+                        notHugePages.add(segments.toString(i));
+                    }
+                }
+            }
+        }
+
+        private void addSharedMapping(int mapping, long size_kib) {
+            if (mapping >= mappingCount.length) {
+                int length = Math.max(mapping + 1, mappingCount.length * 2);
+                mappingCount = Arrays.copyOf(mappingCount, length);
+                mappingSizeMin = Arrays.copyOf(mappingSizeMin, length);
+                mappingSizeMax = Arrays.copyOf(mappingSizeMax, length);
+            }
+            if (mappingCount[mapping]++ == 0) {
+                if (mappingOrderSize == mappingOrder.length) {
+                    mappingOrder = Arrays.copyOf(mappingOrder, mappingOrderSize * 2);
+                }
+                mappingOrder[mappingOrderSize++] = mapping;
+                mappingSizeMin[mapping] = size_kib;
+                mappingSizeMax[mapping] = size_kib;
+            } else {
+                mappingSizeMin[mapping] = Math.min(mappingSizeMin[mapping], size_kib);
+                mappingSizeMax[mapping] = Math.max(mappingSizeMax[mapping], size_kib);
+            }
+        }
+
+        void print(GlobalStat globalStat) {
+            System.out.printf("%nShared file mappings:%n");
+            for (int i = 0; i < mappingOrderSize; i++) {
+                int mapping = mappingOrder[i];
+                System.out.printf("%18s count=%-5s rssMin=%-10s rssMax=%-10s%n",
+                                  mappings.name(mapping),
+                                  mappingCount[mapping],
+                                  mappingSizeMin[mapping],
+                                  mappingSizeMax[mapping]);
+            }
+
+            System.out.printf("%nMemory mappings:%n");
+            for (int i = 0; i < typeOrderSize; i++) {
+                byte type = typeOrder[i];
+                System.out.printf("%18s count=%-5s reserved=%-10s rss=%-10s%n",
+                                  rules.typeName(type),
+                                  typeCount[type],
+                                  typeSize[type],
+                                  typeRss[type]);
+            }
+            printHugePagesAndSwap();
+            printHeapViews(globalStat);
+            arenas.print();
+            System.out.printf("%n");
+            System.out.printf("stats: %s%n", globalStat);
+        }
+
+        /**
+         * The RSS of each view of a memfd heap counts the pages accessed through it, the cgroup
+         * charges a page once. The PSS of a page is its size divided by its number of mappings,
+         * the PSS of the views sums to the deduplicated RSS, as no other process maps the heap.
+         */
+        private void printHeapViews(GlobalStat globalStat) {
+            byte memfd = (byte) SegmentType.MEMFD_JAVA_HEAP.ordinal();
+            byte views = (byte) SegmentType.ZGC_HEAP_VIEW.ordinal();
+            if (typeCount[memfd] + typeCount[views] == 0) {
+                return;
+            }
+            System.out.printf("%nMulti-mapped Java heap (%d mappings):%n", heapViewsCount);
+            heapViews.forEach(System.out::println);
+            if (heapViewsCount > MAX_LISTED) {
+                System.out.printf("%18s ... and %d more%n", "", heapViewsCount - MAX_LISTED);
+            }
+            long rss = typeRss[memfd] + typeRss[views];
+            long deduplicated = typePss[memfd] + typePss[views];
+            System.out.printf("%18s rss=%-10s deduplicated=%-10s%n", "heap", rss, deduplicated);
+            var processRss = globalStat.rss_kib();
+            if (processRss >= 0) {
+                System.out.printf("%18s rss=%-10s deduplicated=%-10s%n", "process", processRss, processRss - rss + deduplicated);
+            }
+        }
+
+        /**
+         * Printed when the input has these columns and some are not zero, THP is the part of the
+         * resident memory backed by anonymous transparent huge pages.
+         *
+         * The eligible heap segments without huge pages are listed unless the input has no AnonHugePages
+         * column, like some {@code pmap -X} outputs, also when the process has no huge page at all, e.g. with
+         * THP in {@code madvise} mode when khugepaged never collapsed any page.
+         */
+        private void printHugePagesAndSwap() {
+            boolean any = false;
+            for (int i = 0; i < typeOrderSize; i++) {
+                byte type = typeOrder[i];
+                any |= typeAnonHugePages[type] + typeThpEligible[type] + typeSwap[type] + typeLocked[type] > 0;
+            }
+            if (!any) {
+                return;
+            }
+            System.out.printf("%nHuge pages and swap:%n");
+            for (int i = 0; i < typeOrderSize; i++) {
+                byte type = typeOrder[i];
+                System.out.printf("%18s thpEligible=%-10s anonHugePages=%-10s thp=%5.1f%% swap=%-10s swapPss=%-10s locked=%-10s%n",
+                                  rules.typeName(type),
+                                  typeThpEligible[type],
+                                  typeAnonHugePages[type],
+                                  typeRss[type] > 0 ? 100.0 * typeAnonHugePages[type] / typeRss[type] : 0,
+                                  typeSwap[type],
+                                  typeSwapPss[type],
+                                  typeLocked[type]);
+            }
+            if (notHugePagesCount > 0 && hasAnonHugePages) {
+                System.out.printf("%nTHP eligible heap segments not backed by huge pages (%d):%n", notHugePagesCount);
+                notHugePages.forEach(System.out::println);
+                if (notHugePagesCount > MAX_LISTED) {
+                    System.out.printf("%18s ... and %d more%n", "", notHugePagesCount - MAX_LISTED);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Groups the contiguous malloc arena heaps in arenas. glibc maps the next heap of an arena
+     * right below the previous one when the address space allows it, once the previous one is
+     * full. A heap with a reserved tail is then the top heap of an arena, and the fully committed
+     * heaps right above it belong to the same arena. New arenas are mapped next to each other too,
+     * an arena of several heaps is an upper bound.
+     *
+     * The largest arenas by RSS are kept in a bounded min-heap, the sizes of all the arenas
+     * in growable arrays for the percentiles.
+     */
+    static class ArenaAnalyzer {
+        private static final int MAX_LISTED = 10;
+        private static final int[] PERCENTILES = {10, 50, 90, 99};
+
+        private long[] reserved = new long[64];
+        private long[] committed = new long[64];
+        private long[] rss = new long[64];
+        private int arenas;
+        private long heaps;
+        private final PriorityQueue<Arena> largest = new PriorityQueue<>(MAX_LISTED + 1, Comparator.comparingLong(arena -> arena.rss_kib));
+
+        // the arena being grouped, the main arena is the brk heap
+        private long start = -1;
+        private long end;
+        private int arenaHeaps;
+        private final Arena main = new Arena();
+
+        private static class Arena {
+            private long startAddress;
+            private int heaps;
+            private long reserved_kib;
+            private long committed_kib;
+            private long rss_kib;
+        }
+
+        void add(SegmentTable segments, int i) {
+            if (segments.isType(i, SegmentType.MAIN_NATIVE_HEAP)) {
+                main.heaps++;
+                main.reserved_kib += segments.size_kib[i];
+                main.committed_kib += segments.committed_kib[i];
+                main.rss_kib += segments.rss_kib[i];
+                return;
+            }
+            long startAddress = segments.startAddress[i];
+            if (start < 0 || startAddress != end || segments.committed_kib[i] < config.malloc_arena_size_kib) {
+                close();
+                start = startAddress;
+                if (arenas == rss.length) {
+                    reserved = Arrays.copyOf(reserved, arenas * 2);
+                    committed = Arrays.copyOf(committed, arenas * 2);
+                    rss = Arrays.copyOf(rss, arenas * 2);
+                }
+                reserved[arenas] = 0;
+                committed[arenas] = 0;
+                rss[arenas++] = 0;
+                arenaHeaps = 0;
+            }
+            arenaHeaps++;
+            reserved[arenas - 1] += segments.size_kib[i];
+            committed[arenas - 1] += segments.committed_kib[i];
+            rss[arenas - 1] += segments.rss_kib[i];
+            end = startAddress + segments.size_kib[i] * 1024;
+        }
+
+        private void close() {
+            if (start < 0) {
+                return;
+            }
+            int last = arenas - 1;
+            heaps += arenaHeaps;
+            if (largest.size() < MAX_LISTED || rss[last] > largest.peek().rss_kib) {
+                var arena = largest.size() < MAX_LISTED ? new Arena() : largest.poll();
+                arena.startAddress = start;
+                arena.heaps = arenaHeaps;
+                arena.reserved_kib = reserved[last];
+                arena.committed_kib = committed[last];
+                arena.rss_kib = rss[last];
+                largest.add(arena);
+            }
+            start = -1;
+        }
+
+        void print() {
+            close();
+            if (arenas == 0) {
+                return;
+            }
+            var sortedReserved = Arrays.copyOf(reserved, arenas);
+            var sortedCommitted = Arrays.copyOf(committed, arenas);
+            var sortedRss = Arrays.copyOf(rss, arenas);
+            Arrays.sort(sortedReserved);
+            Arrays.sort(sortedCommitted);
+            Arrays.sort(sortedRss);
+
+            System.out.printf("%nMalloc arenas (%d arenas, %d heaps, MALLOC_ARENA_MAX=%s):%n",
+                              arenas,
+                              heaps,
+                              config.malloc_arena_max < 0 ? "default" : Integer.toString(config.malloc_arena_max));
+            if (main.heaps > 0) {
+                System.out.printf("%18s reserved=%-10s committed=%-10s rss=%-10s%n", "main", main.reserved_kib, main.committed_kib, main.rss_kib);
+            }
+            System.out.printf("%18s reserved=%-10s committed=%-10s rss=%-10s%n",
+                              "secondary",
+                              Arrays.stream(sortedReserved).sum(),
+                              Arrays.stream(sortedCommitted).sum(),
+                              Arrays.stream(sortedRss).sum());
+            printDistribution("reserved", sortedReserved);
+            printDistribution("committed", sortedCommitted);
+            printDistribution("rss", sortedRss);
+
+            System.out.printf("%nLargest arenas by rss:%n");
+            largest.stream()
+                   .sorted(Comparator.comparingLong((Arena arena) -> arena.rss_kib).reversed())
+                   .forEach(arena -> System.out.printf("%18s startAddress=%-16s heaps=%-3s reserved=%-10s committed=%-10s rss=%-10s%n",
+                                                       "MALLOC_ARENA",
+                                                       Long.toHexString(arena.startAddress),
+                                                       arena.heaps,
+                                                       arena.reserved_kib,
+                                                       arena.committed_kib,
+                                                       arena.rss_kib));
+            if (arenas > MAX_LISTED) {
+                System.out.printf("%18s ... and %d more%n", "", arenas - MAX_LISTED);
+            }
+            printEstimates(sortedRss);
+        }
+
+        private void printDistribution(String name, long[] sorted) {
+            System.out.printf("%18s", name);
+            for (int p : PERCENTILES) {
+                System.out.printf(" p%d=%-10s", p, percentile(sorted, p));
+            }
+            System.out.printf(" max=%-10s%n", sorted[sorted.length - 1]);
+        }
+
+        /**
+         * An arena keeps at least the memory of an idle one, its top chunk and the free chunks
+         * malloc does not trim, estimated as the 10th percentile of the arena RSS. With fewer
+         * arenas the threads share them, the live data moves to the kept arenas and the cost
+         * of the other ones is freed, an arena smaller than this cost frees its whole RSS.
+         * {@code MALLOC_ARENA_MAX} counts the main arena.
+         */
+        private void printEstimates(long[] sortedRss) {
+            long cost = percentile(sortedRss, 10);
+            long total = Arrays.stream(sortedRss).sum();
+            System.out.printf("%nMALLOC_ARENA_MAX estimates, an arena costs at least rss=%s:%n", cost);
+            for (int max = 1; ; max *= 2) {
+                int kept = Math.min(arenas, max - 1);
+                long freed = 0;
+                for (int i = 0; i < arenas - kept; i++) {
+                    freed += Math.min(sortedRss[i], cost);
+                }
+                System.out.printf("%18s arenas=%-5s rss=%-10s freed=%-10s%n", "max=" + max, kept, total - freed, freed);
+                if (kept == arenas) {
+                    break;
+                }
+            }
+        }
+
+        /**
+         * @return the nearest rank percentile of the sorted values.
+         */
+        static long percentile(long[] sorted, int percentile) {
+            int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+            return sorted[Math.max(0, rank - 1)];
+        }
+    }
+
+    /**
+     * Immutable index of the classified segments by address range, lookups are
+     * binary searches on the sorted start and end addresses.
+     *
+     * A classified segment spans {@code size_kib} from its start address, the
+     * blocks merged into it are adjacent.
+     */
+    static class SegmentIndex {
+        private final SegmentTable segments;
+        private final long[] starts;
+        private final long[] ends;
+        private final int[] rows;
+
+        private SegmentIndex(SegmentTable segments, long[] starts, long[] ends, int[] rows) {
+            this.segments = segments;
+            this.starts = starts;
+            this.ends = ends;
+            this.rows = rows;
+        }
+
+        static SegmentIndex of(SegmentTable segments) {
+            int size = segments.size();
+            var order = IntStream.range(0, size).toArray();
+            // smaps and pmap list the mappings in address order, sorting is only a safety net
+            for (int i = 1; i < size; i++) {
+                if (Long.compareUnsigned(segments.startAddress[i - 1], segments.startAddress[i]) > 0) {
+                    order = IntStream.range(0, size)
+                                     .boxed()
+                                     .sorted((a, b) -> Long.compareUnsigned(segments.startAddress[a], segments.startAddress[b]))
+                                     .mapToInt(Integer::intValue)
+                                     .toArray();
+                    break;
+                }
+            }
+            var starts = new long[size];
+            var ends = new long[size];
+            for (int i = 0; i < size; i++) {
+                starts[i] = segments.startAddress[order[i]];
+                ends[i] = starts[i] + segments.size_kib[order[i]] * 1024;
+            }
+            return new SegmentIndex(segments, starts, ends, order);
+        }
+
+        int size() {
+            return rows.length;
+        }
+
+        /**
+         * @return the row in the segment table of the segment at this position of the index.
+         */
+        int row(int position) {
+            return rows[position];
+        }
+
+        /**
+         * @return the position of the segment containing the address, or -1.
+         */
+        int find(long address) {
+            int position = firstEndingAfter(address);
+            return position < rows.length && Long.compareUnsigned(starts[position], address) <= 0 ? position : -1;
+        }
+
+        /**
+         * @return the position of the first segment ending after the address, the size of the index if none.
+         */
+        int firstEndingAfter(long address) {
+            int low = 0;
+            int high = rows.length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (Long.compareUnsigned(ends[middle], address) <= 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * Adds to each segment the number of bytes the range overlaps.
+         *
+         * @return the number of bytes of the range covered by segments.
+         */
+        long cover(long start, long end, long[] covered) {
+            long total = 0;
+            for (int position = firstEndingAfter(start);
+                 position < rows.length && Long.compareUnsigned(starts[position], end) < 0;
+                 position++) {
+                long overlap = Math.min(end, ends[position]) - Math.max(start, starts[position]);
+                covered[position] += overlap;
+                total += overlap;
+            }
+            return total;
+        }
+    }
+
+    /**
+     * Virtual memory regions of a {@code jcmd <pid> VM.native_memory detail} output.
+     * <pre>
+     * [0x00000000a2200000 - 0x0000000100000000] reserved 1538048KB for Java Heap from
+     *     [0x00007f313a8d8894] ReservedSpace::reserve(unsigned long, unsigned long, unsigned long, char*, bool)+0xb4
+     *
+     * 	[0x00000000a2200000 - 0x00000000a4150000] committed 32064KB from
+     * 	        [0x00007f313a8d822b] VirtualSpace::expand_by(unsigned long, bool)+0x15b
+     * [0x00007f313ad72000 - 0x00007f313ad7a000] reserved and committed 32KB for Internal from
+     * </pre>
+     * The call stack frames and the malloc sites are skipped.
+     */
+    static class NmtDetail {
+        private final Path file;
+        private long[] reservedStart = new long[1024];
+        private long[] reservedEnd = new long[1024];
+        private int reserved;
+        private long[] committedStart = new long[1024];
+        private long[] committedEnd = new long[1024];
+        private int committed;
+
+        private NmtDetail(Path file) {
+            this.file = file;
+        }
+
+        static NmtDetail parse(Path file) throws IOException {
+            if (!Files.isReadable(file)) {
+                throw new IOException(String.format("NMT detail file '%s' does not exists or is not readable", file));
+            }
+            var nmt = new NmtDetail(file);
+            var buffer = new byte[64 * 1024];
+            // only the start of the lines matters, the long C++ signatures of the frames are cut
+            var line = new byte[256];
+            int length = 0;
+            try (var in = Files.newInputStream(file)) {
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    for (int i = 0; i < read; i++) {
+                        if (buffer[i] == '\n') {
+                            nmt.parseLine(line, length);
+                            length = 0;
+                        } else if (length < line.length) {
+                            line[length++] = buffer[i];
+                        }
+                    }
+                }
+            }
+            nmt.parseLine(line, length);
+            return nmt;
+        }
+
+        private void parseLine(byte[] line, int length) {
+            int i = 0;
+            while (i < length && (line[i] == ' ' || line[i] == '\t')) {
+                i++;
+            }
+            if (!startsWith(line, i, length, "[0x")) {
+                return;
+            }
+            i += 3;
+            long start = 0;
+            int digit;
+            while (i < length && (digit = Character.digit(line[i], 16)) >= 0) {
+                start = start << 4 | digit;
+                i++;
+            }
+            if (!startsWith(line, i, length, " - 0x")) {
+                return; // a call stack frame
+            }
+            i += 5;
+            long end = 0;
+            while (i < length && (digit = Character.digit(line[i], 16)) >= 0) {
+                end = end << 4 | digit;
+                i++;
+            }
+            if (!startsWith(line, i, length, "] ")) {
+                return;
+            }
+            i += 2;
+            if (startsWith(line, i, length, "reserved and committed")) {
+                addReserved(start, end);
+                addCommitted(start, end);
+            } else if (startsWith(line, i, length, "reserved")) {
+                addReserved(start, end);
+            } else if (startsWith(line, i, length, "committed")) {
+                addCommitted(start, end);
+            }
+        }
+
+        private static boolean startsWith(byte[] line, int from, int length, String prefix) {
+            if (length - from < prefix.length()) {
+                return false;
+            }
+            for (int i = 0; i < prefix.length(); i++) {
+                if (line[from + i] != prefix.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void addReserved(long start, long end) {
+            if (reserved == reservedStart.length) {
+                reservedStart = Arrays.copyOf(reservedStart, reserved * 2);
+                reservedEnd = Arrays.copyOf(reservedEnd, reserved * 2);
+            }
+            reservedStart[reserved] = start;
+            reservedEnd[reserved++] = end;
+        }
+
+        private void addCommitted(long start, long end) {
+            if (committed == committedStart.length) {
+                committedStart = Arrays.copyOf(committedStart, committed * 2);
+                committedEnd = Arrays.copyOf(committedEnd, committed * 2);
+            }
+            committedStart[committed] = start;
+            committedEnd[committed++] = end;
+        }
+
+        /**
+         * Prints per segment type the RSS that lies in regions reserved by the JVM, hence
+         * accounted by NMT, and the RSS that NMT does not explain.
+         *
+         * The resident pages of a segment are not known, its RSS is accounted in proportion
+         * of the part of its address range that NMT reserved.
+         */
+        void printCorrelation(SegmentIndex index) {
+            var reservedBytes = new long[index.size()];
+            var committedBytes = new long[index.size()];
+            int outside = 0;
+            for (int i = 0; i < reserved; i++) {
+                if (index.cover(reservedStart[i], reservedEnd[i], reservedBytes) == 0) {
+                    outside++;
+                }
+            }
+            for (int i = 0; i < committed; i++) {
+                index.cover(committedStart[i], committedEnd[i], committedBytes);
+            }
+
+            var segments = index.segments;
+            var rss = new long[rules.typeCount()];
+            var nmtRss = new long[rules.typeCount()];
+            var nmtCommitted = new long[rules.typeCount()];
+            for (int position = 0; position < index.size(); position++) {
+                int row = index.row(position);
+                byte type = segments.type[row];
+                long size = segments.size_kib[row] * 1024;
+                rss[type] += segments.rss_kib[row];
+                if (size > 0) {
+                    nmtRss[type] += (long) (segments.rss_kib[row] * ((double) Math.min(reservedBytes[position], size) / size));
+                }
+                nmtCommitted[type] += committedBytes[position] / 1024;
+            }
+
+            System.out.printf("%nNMT correlation (%s: %d reserved regions, %d committed regions):%n", file, reserved, committed);
+            long totalRss = 0;
+            long totalNmtRss = 0;
+            long totalNmtCommitted = 0;
+            for (int type = 0; type < rss.length; type++) {
+                if (rss[type] == 0 && nmtCommitted[type] == 0) {
+                    continue;
+                }
+                printCorrelation(rules.typeName(type), rss[type], nmtRss[type], nmtCommitted[type]);
+                totalRss += rss[type];
+                totalNmtRss += nmtRss[type];
+                totalNmtCommitted += nmtCommitted[type];
+            }
+            printCorrelation("total", totalRss, totalNmtRss, totalNmtCommitted);
+            if (outside > 0) {
+                System.out.printf("%d NMT reserved regions are outside of the segments%n", outside);
+            }
+        }
+
+        private static void printCorrelation(String label, long rss, long nmtRss, long nmtCommitted) {
+            System.out.printf("%18s rss=%-10s nmt=%-10s not-in-nmt=%-10s nmt-committed=%-10s%n",
+                              label,
+                              rss,
+                              nmtRss,
+                              rss - nmtRss,
+                              nmtCommitted);
+        }
+    }
+
+    /**
+     * The layout of the target JVM, read from the output of its diagnostic commands, either
+     * saved {@code jcmd <pid> VM.info}, {@code VM.flags -all}, {@code GC.heap_info} and
+     * {@code Compiler.codecache} outputs, or read from a local JVM with the attach API.
+     *
+     * The reserved ranges of the Java heap, the compressed class space and the code heaps
+     * are exact intervals, the segments that start in them are typed with a single lookup
+     * before the classification rules are tried. The stack sizes, the page size and
+     * {@code MALLOC_ARENA_MAX} replace the defaults of the {@link Config} the rules derive from.
+     */
+    static class JvmLayout {
+        static final JvmLayout NONE = new JvmLayout();
+
+        private static final String[] DIAGNOSTIC_COMMANDS = {"vmInfo", "vmFlags", "gcHeapInfo", "compilerCodecache"};
+        // Heap address: 0x00000000f8000000, size: 128 MB, Compressed Oops mode: 32-bit
+        private static final Pattern HEAP_ADDRESS = Pattern.compile("Heap address: 0x(\\p{XDigit}+), size: (\\d+) MB");
+        //  garbage-first heap   total 131072K, used 2048K [0x00000000f8000000, 0x0000000100000000)
+        //  def new generation   total 39296K, used 2795K [0x00000000f8000000, 0x00000000faaa0000, 0x00000000faaa0000)
+        private static final Pattern HEAP_SPACE = Pattern.compile("total \\d+K, used \\d+K \\[0x(\\p{XDigit}+), (?:0x\\p{XDigit}+, )*0x(\\p{XDigit}+)\\)");
+        // Compressed class space mapped at: 0x00007f285d000000-0x00007f289d000000, reserved size: 1073741824
+        private static final Pattern CLASS_SPACE = Pattern.compile("Compressed class space mapped at: 0x(\\p{XDigit}+)-0x(\\p{XDigit}+)");
+        // Compressed class space size: 1073741824 Address: 0x0000000800000000, before JDK 17
+        private static final Pattern CLASS_SPACE_SIZE = Pattern.compile("Compressed class space size: (\\d+) Address: 0x(\\p{XDigit}+)");
+        //  bounds [0x00007f28a4ec7000, 0x00007f28a5137000, 0x00007f28ac400000]
+        private static final Pattern CODE_HEAP_BOUNDS = Pattern.compile("bounds \\[0x(\\p{XDigit}+), 0x\\p{XDigit}+, 0x(\\p{XDigit}+)]");
+        // -XX:ThreadStackSize=512 or, with VM.flags -all, intx ThreadStackSize = 1024 {pd product} {default}
+        private static final Pattern FLAG = Pattern.compile("\\b(ThreadStackSize|VMThreadStackSize|CompilerThreadStackSize|StackYellowPages|StackRedPages|StackReservedPages)\\s*=\\s*(\\d+)");
+        private static final Pattern XSS = Pattern.compile("-Xss(\\d+)([kKmMgG]?)(?:\\s|$)");
+        // Page Sizes: 4k, 2M
+        private static final Pattern PAGE_SIZE = Pattern.compile("Page Sizes?: (\\d+)([kKmMgG])");
+        // glibc malloc tunables: MALLOC_ARENA_MAX=2 or GLIBC_TUNABLES=glibc.malloc.arena_max=2, or the environment of the process
+        private static final Pattern MALLOC_ARENA_MAX = Pattern.compile("(?:MALLOC_ARENA_MAX|glibc\\.malloc\\.arena_max)=(\\d+)");
+        // # Java VM: OpenJDK 64-Bit Server VM (17.0.2+8-86, mixed mode, sharing, tiered, compressed oops, g1 gc, linux-amd64)
+        private static final Pattern JAVA_VM = Pattern.compile("Java VM: (.+)");
+
+        private long[] start = new long[8];
+        private long[] end = new long[8];
+        private byte[] type = new byte[8];
+        private int size;
+
+        private long threadStackSize_kib = -1;
+        private long vmThreadStackSize_kib = -1;
+        private long compilerThreadStackSize_kib = -1;
+        private int yellowPages = -1;
+        private int redPages = -1;
+        private int reservedPages = -1;
+        private long pageSize_kib = -1;
+        private int mallocArenaMax = -1;
+        private int addressBits = -1;
+
+        /**
+         * Parses the saved outputs of jcmd, the files may be concatenated in any order.
+         */
+        static JvmLayout parse(List<Path> files) throws IOException {
+            var layout = new JvmLayout();
+            for (var file : files) {
+                if (!Files.isReadable(file)) {
+                    throw new IOException(String.format("JVM layout file '%s' does not exists or is not readable", file));
+                }
+                layout.parse(Files.readString(file));
+            }
+            return layout.sorted();
+        }
+
+        /**
+         * Runs the diagnostic commands in the JVM of the local process, through the
+         * {@code DiagnosticCommand} MBean of its local management agent, started by the attach API
+         * if needed, the environment of the process tells {@code MALLOC_ARENA_MAX} of older JDKs.
+         */
+        static JvmLayout attach(String pid) throws IOException {
+            var layout = new JvmLayout();
+            var self = pid.equals("self") || pid.equals(Long.toString(ProcessHandle.current().pid()));
+            if (!self && !FleetInspector.isJava(Paths.get("/proc", pid))) {
+                // the attach mechanism sends SIGQUIT, it would kill another process
+                throw new IOException("it is not a java process");
+            }
+            try {
+                if (self) {
+                    layout.run(ManagementFactory.getPlatformMBeanServer());
+                } else {
+                    String url;
+                    var vm = VirtualMachine.attach(pid);
+                    try {
+                        url = vm.startLocalManagementAgent();
+                    } finally {
+                        vm.detach();
+                    }
+                    try (var connector = JMXConnectorFactory.connect(new JMXServiceURL(url))) {
+                        layout.run(connector.getMBeanServerConnection());
+                    }
+                }
+            } catch (AttachNotSupportedException | JMException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+            var environ = Paths.get("/proc", pid, "environ");
+            if (layout.mallocArenaMax < 0 && Files.isReadable(environ)) {
+                layout.parse(new String(Files.readAllBytes(environ), StandardCharsets.UTF_8).replace('\0', '\n'));
+            }
+            return layout.sorted();
+        }
+
+        /**
+         * Runs the diagnostic commands in the JVM this code runs in, through its platform
+         * {@code DiagnosticCommand} MBean, the attach API is not involved.
+         */
+        static JvmLayout current() throws IOException {
+            return attach("self");
+        }
+
+        private void run(MBeanServerConnection server) throws IOException, JMException {
+            var diagnosticCommand = new ObjectName("com.sun.management:type=DiagnosticCommand");
+            for (var command : DIAGNOSTIC_COMMANDS) {
+                var arguments = command.equals("vmFlags") ? new String[]{"-all"} : null;
+                parse((String) server.invoke(diagnosticCommand,
+                                             command,
+                                             new Object[]{arguments},
+                                             new String[]{String[].class.getName()}));
+            }
+        }
+
+        private void parse(String output) {
+            long heapStart = Long.MAX_VALUE;
+            long heapEnd = 0;
+            for (var line : output.split("\n")) {
+                var matcher = HEAP_ADDRESS.matcher(line);
+                if (matcher.find()) {
+                    long address = Long.parseUnsignedLong(matcher.group(1), 16);
+                    heapStart = Math.min(heapStart, address);
+                    heapEnd = Math.max(heapEnd, address + Long.parseLong(matcher.group(2)) * 1024 * 1024);
+                    continue;
+                }
+                if ((matcher = HEAP_SPACE.matcher(line)).find()) {
+                    heapStart = Math.min(heapStart, Long.parseUnsignedLong(matcher.group(1), 16));
+                    heapEnd = Math.max(heapEnd, Long.parseUnsignedLong(matcher.group(2), 16));
+                    continue;
+                }
+                if ((matcher = CLASS_SPACE.matcher(line)).find()) {
+                    add(Long.parseUnsignedLong(matcher.group(1), 16), Long.parseUnsignedLong(matcher.group(2), 16), SegmentType.CLASS_SPACE);
+                    continue;
+                }
+                if ((matcher = CLASS_SPACE_SIZE.matcher(line)).find()) {
+                    long address = Long.parseUnsignedLong(matcher.group(2), 16);
+                    add(address, address + Long.parseLong(matcher.group(1)), SegmentType.CLASS_SPACE);
+                    continue;
+                }
+                if ((matcher = CODE_HEAP_BOUNDS.matcher(line)).find()) {
+                    add(Long.parseUnsignedLong(matcher.group(1), 16), Long.parseUnsignedLong(matcher.group(2), 16), SegmentType.CODE_HEAP);
+                    continue;
+                }
+                if ((matcher = PAGE_SIZE.matcher(line)).find()) {
+                    pageSize_kib = toKib(Long.parseLong(matcher.group(1)), matcher.group(2));
+                    continue;
+                }
+                if ((matcher = MALLOC_ARENA_MAX.matcher(line)).find()) {
+                    mallocArenaMax = Integer.parseInt(matcher.group(1));
+                    continue;
+                }
+                if ((matcher = JAVA_VM.matcher(line)).find()) {
+                    addressBits = matcher.group(1).contains("64-Bit") ? 64 : 32;
+                    continue;
+                }
+                if ((matcher = XSS.matcher(line)).find()) {
+                    threadStackSize_kib = toKib(Long.parseLong(matcher.group(1)), matcher.group(2).isEmpty() ? "b" : matcher.group(2));
+                }
+                matcher = FLAG.matcher(line);
+                while (matcher.find()) {
+                    long value = Long.parseLong(matcher.group(2));
+                    switch (matcher.group(1)) {
+                        case "ThreadStackSize":
+                            threadStackSize_kib = value;
+                            break;
+                        case "VMThreadStackSize":
+                            vmThreadStackSize_kib = value;
+                            break;
+                        case "CompilerThreadStackSize":
+                            compilerThreadStackSize_kib = value;
+                            break;
+                        case "StackYellowPages":
+                            yellowPages = (int) value;
+                            break;
+                        case "StackRedPages":
+                            redPages = (int) value;
+                            break;
+                        case "StackReservedPages":
+                            reservedPages = (int) value;
+                            break;
+                    }
+                }
+            }
+            if (heapStart < heapEnd) {
+                add(heapStart, heapEnd, SegmentType.JAVA_HEAP);
+            }
+        }
+
+        private static long toKib(long value, String unit) {
+            switch (unit) {
+                case "g":
+                case "G":
+                    return value * 1024 * 1024;
+                case "m":
+                case "M":
+                    return value * 1024;
+                case "k":
+                case "K":
+                    return value;
+                default:
+                    return value / 1024;
+            }
+        }
+
+        private void add(long start, long end, SegmentType type) {
+            if (size == this.start.length) {
+                this.start = Arrays.copyOf(this.start, size * 2);
+                this.end = Arrays.copyOf(this.end, size * 2);
+                this.type = Arrays.copyOf(this.type, size * 2);
+            }
+            this.start[size] = start;
+            this.end[size] = end;
+            this.type[size++] = (byte) type.ordinal();
+        }
+
+        /**
+         * Sorts the intervals by start address, the same range read from several commands is kept once.
+         */
+        private JvmLayout sorted() {
+            var order = IntStream.range(0, size).boxed()
+                                 .sorted(Comparator.comparingLong(i -> start[i]))
+                                 .mapToInt(Integer::intValue)
+                                 .toArray();
+            var sortedStart = new long[Math.max(size, 1)];
+            var sortedEnd = new long[Math.max(size, 1)];
+            var sortedType = new byte[Math.max(size, 1)];
+            int sorted = 0;
+            for (int i : order) {
+                if (sorted > 0 && start[i] < sortedEnd[sorted - 1]) {
+                    // the heap of GC.heap_info and VM.info, or the overlapping ranges of a confused input
+                    sortedEnd[sorted - 1] = Math.max(sortedEnd[sorted - 1], end[i]);
+                    continue;
+                }
+                sortedStart[sorted] = start[i];
+                sortedEnd[sorted] = end[i];
+                sortedType[sorted++] = type[i];
+            }
+            start = sortedStart;
+            end = sortedEnd;
+            type = sortedType;
+            size = sorted;
+            return this;
+        }
+
+        /**
+         * @return the interval that contains the address, or -1.
+         */
+        int intervalOf(long address) {
+            int i = Arrays.binarySearch(start, 0, size, address);
+            if (i < 0) {
+                i = -i - 2; // the interval that starts before the address
+            }
+            return i >= 0 && address < end[i] ? i : -1;
+        }
+
+        boolean contains(int interval, long address) {
+            return address >= start[interval] && address < end[interval];
+        }
+
+        byte type(int interval) {
+            return type[interval];
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        /**
+         * Replaces the sizes the classification rules derive from, by the ones of this JVM,
+         * the {@link Config} derives the thread stack mappings from the stack size flags.
+         */
+        void configure(Config config) {
+            if (pageSize_kib > 0) {
+                config.page_size_kib = pageSize_kib;
+                config.glibc_guard_page_kib = pageSize_kib;
+            }
+            config.yellow_pages = yellowPages >= 0 ? yellowPages : config.yellow_pages;
+            config.red_pages = redPages >= 0 ? redPages : config.red_pages;
+            config.reserved_pages = reservedPages >= 0 ? reservedPages : config.reserved_pages;
+            // the zones are sized in 4K units, rounded up to the page size
+            config.thread_guard_pages_kib = guardZone_kib(config.yellow_pages, config.page_size_kib)
+                                            + guardZone_kib(config.red_pages, config.page_size_kib)
+                                            + guardZone_kib(config.reserved_pages, config.page_size_kib);
+            if (threadStackSize_kib > 0) {
+                config.thread_stack_size_kib = threadStackSize_kib;
+            }
+            if (compilerThreadStackSize_kib > 0) {
+                config.compiler_thread_stack_size_kib = compilerThreadStackSize_kib;
+            }
+            if (vmThreadStackSize_kib > 0) {
+                config.vm_thread_stack_size_kib = vmThreadStackSize_kib;
+            }
+            if (mallocArenaMax >= 0) {
+                config.malloc_arena_max = mallocArenaMax;
+            }
+            if (addressBits == 32) {
+                // the malloc heaps of a 32-bit process are 1 MiB, and the Java heap is typed by the layout
+                config.malloc_arena_size_kib = 1024;
+                config.malloc_arena_min_address = 0;
+            }
+        }
+
+        private static String orDefault(long value) {
+            return value < 0 ? "default" : Long.toString(value);
+        }
+
+        private static long guardZone_kib(int pages, long page_size_kib) {
+            return (pages * 4 + page_size_kib - 1) / page_size_kib * page_size_kib;
+        }
+
+        void print(PrintStream out) {
+            out.printf("JVM layout:%n");
+            for (int i = 0; i < size; i++) {
+                out.printf("%18s %x-%x%n", rules.typeName(type[i]), start[i], end[i]);
+            }
+            out.printf("%18s addressBits=%s threadStackSize=%s vmThreadStackSize=%s compilerThreadStackSize=%s pageSize=%s mallocArenaMax=%s%n",
+                       "",
+                       orDefault(addressBits),
+                       orDefault(threadStackSize_kib),
+                       orDefault(vmThreadStackSize_kib),
+                       orDefault(compilerThreadStackSize_kib),
+                       orDefault(pageSize_kib),
+                       orDefault(mallocArenaMax));
+            out.printf("%n");
+        }
+    }
+
+    /**
+     * Reads the page table entries of segments in {@code /proc/<pid>/pagemap}, to tell
+     * whether their resident pages are packed or scattered.
+     *
+     * The pagemap has a 64-bit entry per virtual page, bit 63 is set when the page is
+     * present in RAM and bit 62 when it is swapped. The entries of a segment are read
+     * with large positioned reads in a reused direct buffer, a segment of several GiB
+     * only takes a few reads and nothing is allocated per page.
+     */
+    static class PagemapScanner implements Closeable {
+        private static final int MAX_LISTED = 10;
+
+        private final FileChannel channel;
+        private static final long AT_PAGESZ = 6;
+
+        private final ByteBuffer entries = ByteBuffer.allocateDirect(1024 * 1024).order(ByteOrder.nativeOrder());
+        private final long page_size = kernelPageSize();
+
+        // results of the last scan
+        private long pages;
+        private long resident;
+        private long swapped;
+        private long runs;
+        private long largestRun;
+
+        PagemapScanner(Path pagemap) throws IOException {
+            channel = FileChannel.open(pagemap);
+        }
+
+        /**
+         * @return the base page size of the kernel, from the auxiliary vector of this process, the
+         * pagemap has an entry per base page, whatever the page size the JVM uses, e.g. 64 KiB on some
+         * aarch64 kernels.
+         */
+        static long kernelPageSize() {
+            try {
+                var auxv = ByteBuffer.wrap(Files.readAllBytes(Paths.get("/proc/self/auxv"))).order(ByteOrder.nativeOrder());
+                while (auxv.remaining() >= 2 * Long.BYTES) {
+                    long type = auxv.getLong();
+                    long value = auxv.getLong();
+                    if (type == AT_PAGESZ) {
+                        return value;
+                    }
+                }
+            } catch (IOException ignored) {
+                // not Linux, or /proc is not mounted
+            }
+            return 4096;
+        }
+
+        /**
+         * Scans the pages of the range, resident pages that follow each other form a run.
+         *
+         * The pagemap ends with the user address space, the pages of a kernel range like
+         * {@code [vsyscall]} have no entry and are not resident.
+         */
+        void scan(long startAddress, long size_kib) throws IOException {
+            pages = size_kib * 1024 / page_size;
+            resident = 0;
+            swapped = 0;
+            runs = 0;
+            largestRun = 0;
+
+            long run = 0;
+            // the addresses of the kernel ranges are negative as signed values
+            long position = Long.divideUnsigned(startAddress, page_size) * Long.BYTES;
+            long end = position + pages * Long.BYTES;
+            while (position < end) {
+                entries.clear().limit((int) Math.min(entries.capacity(), end - position));
+                while (entries.hasRemaining()) {
+                    if (channel.read(entries, position + entries.position()) < 0) {
+                        end = position + entries.position();
+                        break;
+                    }
+                }
+                entries.flip();
+                position += entries.limit();
+                while (entries.hasRemaining()) {
+                    long entry = entries.getLong();
+                    if (entry < 0) { // present
+                        resident++;
+                        run++;
+                        continue;
+                    }
+                    if ((entry & 1L << 62) != 0) {
+                        swapped++;
+                    }
+                    if (run > 0) {
+                        runs++;
+                        largestRun = Math.max(largestRun, run);
+                        run = 0;
+                    }
+                }
+            }
+            if (run > 0) {
+                runs++;
+                largestRun = Math.max(largestRun, run);
+            }
+        }
+
+        long pages() {
+            return pages;
+        }
+
+        long resident() {
+            return resident;
+        }
+
+        long runs() {
+            return runs;
+        }
+
+        long largestRun() {
+            return largestRun;
+        }
+
+        /**
+         * @return 0 when the resident pages form a single run, up to 1 when none of them are adjacent.
+         */
+        static double fragmentation(long resident, long runs) {
+            return resident > 1 ? (double) (runs - 1) / (resident - 1) : 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+
+        /**
+         * @return the selected types indexed by type, from their comma separated names.
+         * @throws IllegalArgumentException when a name is not a type of the rules.
+         */
+        static boolean[] parseTypes(String names) {
+            var selected = new boolean[rules.typeCount()];
+            for (var name : names.split(",")) {
+                int type = 0;
+                while (type < rules.typeCount() && !rules.typeName(type).equals(name.strip())) {
+                    type++;
+                }
+                if (type == rules.typeCount()) {
+                    throw new IllegalArgumentException(String.format("Unknown segment type '%s' for --pagemap, expected one of %s",
+                                                                     name,
+                                                                     IntStream.range(0, rules.typeCount()).mapToObj(rules::typeName).collect(Collectors.joining(","))));
+                }
+                selected[type] = true;
+            }
+            return selected;
+        }
+
+        /**
+         * Scans the segments of the selected types, then prints the resident page runs
+         * per type and for the segments with the most resident pages.
+         */
+        static void report(Path pagemap, SegmentTable segments, boolean[] selected) throws IOException {
+            var scanned = new ArrayList<long[]>(); // row, resident, runs, largest run, swapped
+            var pages = new long[selected.length];
+            var resident = new long[selected.length];
+            var runs = new long[selected.length];
+            var swapped = new long[selected.length];
+            var count = new long[selected.length];
+            try (var scanner = new PagemapScanner(pagemap)) {
+                for (int i = 0; i < segments.size(); i++) {
+                    byte type = segments.type[i];
+                    // the kernel ranges, above the user address space, have no pagemap entry
+                    if (!selected[type] || segments.startAddress[i] < 0) {
+                        continue;
+                    }
+                    scanner.scan(segments.startAddress[i], segments.size_kib[i]);
+                    scanned.add(new long[]{i, scanner.resident, scanner.runs, scanner.largestRun, scanner.swapped});
+                    count[type]++;
+                    pages[type] += scanner.pages;
+                    resident[type] += scanner.resident;
+                    runs[type] += scanner.runs;
+                    swapped[type] += scanner.swapped;
+                }
+            }
+
+            System.out.printf("%nPagemap residency (%s KiB pages):%n", kernelPageSize() / 1024);
+            scanned.sort(Comparator.comparingLong((long[] scan) -> scan[1]).reversed());
+            for (int type = 0; type < selected.length; type++) {
+                if (!selected[type] || count[type] == 0) {
+                    continue;
+                }
+                System.out.printf("%18s count=%-5s pages=%-10s resident=%-10s runs=%-8s fragmentation=%.2f swapped=%s%n",
+                                  rules.typeName(type),
+                                  count[type],
+                                  pages[type],
+                                  resident[type],
+                                  runs[type],
+                                  fragmentation(resident[type], runs[type]),
+                                  swapped[type]);
+                // the segments with the most resident pages
+                int listed = 0;
+                for (var scan : scanned) {
+                    int row = (int) scan[0];
+                    if (segments.type[row] != type) {
+                        continue;
+                    }
+                    if (listed++ == MAX_LISTED) {
+                        System.out.printf("%18s ... and %d more%n", "", count[type] - MAX_LISTED);
+                        break;
+                    }
+                    System.out.printf("%18s size=%-10d resident=%-8s runs=%-6s largestRun=%-8s fragmentation=%.2f swapped=%s%n",
+                                      Long.toHexString(segments.startAddress[row]),
+                                      segments.size_kib[row],
+                                      scan[1],
+                                      scan[2],
+                                      scan[3],
+                                      fragmentation(scan[1], scan[2]),
+                                      scan[4]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Maps the thread stack segments to the threads of the process, by the stack pointer of
+     * each thread, and groups them by thread name prefix, e.g. {@code pool-1-thread-}.
+     *
+     * The stack pointers come from {@code /proc/<pid>/task/<tid>/syscall}, readable with the
+     * ptrace permission, and from the {@code [0x...]} last Java frame address of the threads of a
+     * saved {@code jcmd <pid> Thread.print}, matched by {@code nid}. The dump also gives the full
+     * Java names, {@code comm} is truncated to 15 characters. The {@code kstkesp} field of
+     * {@code stat} is not used, the kernel only fills it for a thread that is exiting or dumping core.
+     *
+     * The task directory is read in a single parallel pass, each thread in its own slot.
+     */
+    static class ThreadStacks {
+        private static final int MAX_LISTED = 10;
+        private static final int HISTOGRAM = 4; // index of the first bucket in the stats of a pool
+        // "pool-1-thread-1" #14 prio=5 os_prio=0 cpu=0.32ms elapsed=12.03s tid=0x00007f2c8c1a6000 nid=0x5c4e waiting on condition  [0x00007f2c605fe000]
+        // "VM Thread" os_prio=0 cpu=3.07ms elapsed=12.10s tid=0x00007f2c8c0e8800 nid=0x5c3f runnable
+        private static final Pattern THREAD = Pattern.compile("^\"(.*)\"\\s.*\\bnid=(0x\\p{XDigit}+|\\d+)\\b(?:.*\\[0x(\\p{XDigit}+)])?");
+
+        private long[] tids;
+        private String[] names;
+        private long[] stackPointers; // 0 when unknown
+        private int denied; // threads whose syscall file is not readable
+
+        /**
+         * @param procDir the process to read the tasks of, or null to only use the thread dump.
+         * @param threadDump a saved {@code jcmd <pid> Thread.print}, or null.
+         */
+        static ThreadStacks read(Path procDir, Path threadDump) throws IOException {
+            var threads = new ThreadStacks();
+            if (procDir != null) {
+                threads.readTasks(procDir.resolve("task"));
+            } else {
+                threads.tids = new long[0];
+                threads.names = new String[0];
+                threads.stackPointers = new long[0];
+            }
+            if (threadDump != null) {
+                if (!Files.isReadable(threadDump)) {
+                    throw new IOException(String.format("Thread dump '%s' does not exists or is not readable", threadDump));
+                }
+                threads.readThreadDump(threadDump);
+            }
+            return threads;
+        }
+
+        private void readTasks(Path taskDir) throws IOException {
+            if (!Files.isReadable(taskDir)) {
+                throw new IOException(String.format("Process '%s' does not exists or its tasks are not readable", taskDir.getParent().getFileName()));
+            }
+            try (var tasks = Files.list(taskDir)) {
+                tids = tasks.mapToLong(task -> Long.parseLong(task.getFileName().toString())).sorted().toArray();
+            }
+            names = new String[tids.length];
+            stackPointers = new long[tids.length];
+            var denials = new boolean[tids.length];
+            IntStream.range(0, tids.length).parallel().forEach(i -> {
+                var task = taskDir.resolve(Long.toString(tids[i]));
+                try {
+                    names[i] = Files.readString(task.resolve("comm")).strip();
+                } catch (IOException e) {
+                    names[i] = ""; // the thread exited
+                }
+                try {
+                    stackPointers[i] = stackPointer(Files.readString(task.resolve("syscall")));
+                } catch (AccessDeniedException e) {
+                    denials[i] = true;
+                } catch (IOException e) {
+                    // the thread exited
+                }
+            });
+            for (boolean denial : denials) {
+                denied += denial ? 1 : 0;
+            }
+        }
+
+        /**
+         * @return the stack pointer of a {@code syscall} file, the field before the program counter,
+         * {@code nr args... sp pc} in a system call or {@code -1 sp pc} otherwise, 0 when running.
+         */
+        static long stackPointer(String syscall) {
+            var fields = WHITE_SPACE_SEPARATOR.split(syscall.strip());
+            if (fields.length < 3 || !fields[fields.length - 2].startsWith("0x")) {
+                return 0;
+            }
+            return Long.parseUnsignedLong(fields[fields.length - 2].substring(2), 16);
+        }
+
+        private void readThreadDump(Path threadDump) throws IOException {
+            var dumpTids = new ArrayList<Long>();
+            var dumpNames = new ArrayList<String>();
+            var dumpStackPointers = new ArrayList<Long>();
+            for (var line : Files.readAllLines(threadDump)) {
+                var matcher = THREAD.matcher(line);
+                if (!matcher.find()) {
+                    continue;
+                }
+                var nid = matcher.group(2);
+                long tid = nid.startsWith("0x") ? Long.parseLong(nid.substring(2), 16) : Long.parseLong(nid);
+                long stackPointer = matcher.group(3) != null ? Long.parseUnsignedLong(matcher.group(3), 16) : 0;
+                int i = Arrays.binarySearch(tids, tid);
+                if (i >= 0) {
+                    names[i] = matcher.group(1);
+                    stackPointers[i] = stackPointers[i] != 0 ? stackPointers[i] : stackPointer;
+                } else if (tids.length == 0) {
+                    dumpTids.add(tid);
+                    dumpNames.add(matcher.group(1));
+                    dumpStackPointers.add(stackPointer);
+                }
+            }
+            if (tids.length == 0) {
+                tids = dumpTids.stream().mapToLong(Long::longValue).toArray();
+                names = dumpNames.toArray(new String[0]);
+                stackPointers = dumpStackPointers.stream().mapToLong(Long::longValue).toArray();
+            }
+        }
+
+        /**
+         * @return the name without its trailing number, the threads of a pool share it.
+         */
+        static String pool(String name) {
+            int end = name.length();
+            while (end > 0 && Character.isDigit(name.charAt(end - 1))) {
+                end--;
+            }
+            return end == 0 ? name : name.substring(0, end);
+        }
+
+        void report(SegmentIndex index) {
+            var segments = index.segments;
+            var located = new boolean[index.size()];
+            var pools = new LinkedHashMap<String, long[]>(); // threads, located, rss, max rss, then the histogram buckets
+            int locatedThreads = 0;
+            for (int i = 0; i < tids.length; i++) {
+                int position = stackPointers[i] != 0 ? index.find(stackPointers[i]) : -1;
+                var pool = pools.computeIfAbsent(pool(names[i]), name -> new long[HISTOGRAM + 20]);
+                pool[0]++;
+                if (position < 0 || located[position]) {
+                    continue; // a stack shared by threads of a dump taken at another time is counted once
+                }
+                located[position] = true;
+                locatedThreads++;
+                long rss_kib = segments.rss_kib[index.row(position)];
+                pool[1]++;
+                pool[2] += rss_kib;
+                pool[3] = Math.max(pool[3], rss_kib);
+                pool[HISTOGRAM + bucket(rss_kib)]++;
+            }
+
+            System.out.printf("%nThread stacks (%d threads, %d located, %d pools", tids.length, locatedThreads, pools.size());
+            if (denied > 0) {
+                System.out.printf(", the stack pointer of %d threads is not readable without the ptrace permission", denied);
+            }
+            System.out.printf("):%n");
+            var sorted = pools.entrySet()
+                              .stream()
+                              .sorted(Comparator.comparingLong((Map.Entry<String, long[]> pool) -> pool.getValue()[2]).reversed())
+                              .collect(Collectors.toList());
+            sorted.stream().limit(MAX_LISTED).forEach(pool -> {
+                var stats = pool.getValue();
+                var histogram = new StringBuilder();
+                for (int bucket = 0; bucket < stats.length - HISTOGRAM; bucket++) {
+                    if (stats[HISTOGRAM + bucket] > 0) {
+                        histogram.append(histogram.length() == 0 ? "" : " ").append(4L << bucket).append(':').append(stats[HISTOGRAM + bucket]);
+                    }
+                }
+                System.out.printf("%18s threads=%-5s located=%-5s rss=%-10s max=%-10s histogram=%s%n",
+                                  pool.getKey(),
+                                  stats[0],
+                                  stats[1],
+                                  stats[2],
+                                  stats[3],
+                                  histogram);
+            });
+            if (sorted.size() > MAX_LISTED) {
+                System.out.printf("%18s ... and %d more%n", "", sorted.size() - MAX_LISTED);
+            }
+
+            // the stacks glibc caches for reuse once their thread exited, or of the threads without stack pointer
+            long count = 0;
+            long rss_kib = 0;
+            for (int position = 0; position < index.size(); position++) {
+                int row = index.row(position);
+                if (!located[position]
+                    && (segments.isType(row, SegmentType.JAVA_THREAD) || segments.isType(row, SegmentType.NON_JAVA_THREAD))) {
+                    count++;
+                    rss_kib += segments.rss_kib[row];
+                }
+            }
+            System.out.printf("%18s count=%-5s rss=%-10s%n", "unattributed", count, rss_kib);
+        }
+
+        /**
+         * @return the power of two bucket of the resident size, from 4 KiB.
+         */
+        private static int bucket(long rss_kib) {
+            int bucket = 0;
+            while (bucket < 19 && rss_kib > 4L << bucket) {
+                bucket++;
+            }
+            return bucket;
+        }
+    }
+
+    static class Config {
+        private final long java_heap_max_start_address = Long.parseUnsignedLong("7f1000000000", 16);
+
+        private long page_size_kib = 4;
+        private long huge_page_size_kib = 2048;
+        private int yellow_pages = 2;
+        private int red_pages = 1;
+        private int reserved_pages = 1;
+        private long thread_guard_pages_kib = (yellow_pages + red_pages + reserved_pages) * page_size_kib; // By default 2 Yellow + 1 Red + 1 Reserved * page size
+        // -XX:ThreadStackSize, -XX:CompilerThreadStackSize and -XX:VMThreadStackSize, 1 MiB by default on 64-bit Linux
+        private long thread_stack_size_kib = 1024;
+        private long compiler_thread_stack_size_kib = 1024;
+        private long vm_thread_stack_size_kib = 1024;
+
+        private long glibc_guard_page_kib = 4;
+
+        // HEAP_MAX_SIZE of glibc, the heaps of the secondary arenas are mapped with this size and alignment, 1 MiB on 32-bit
+        private long malloc_arena_size_kib = 64 * 1024;
+        private long malloc_arena_min_address = Long.parseUnsignedLong("800000000", 16); // the Java heap with compressed oops lies below 32 GiB
+        private int malloc_arena_max = -1; // glibc default, 8 arenas per core
+
+        /**
+         * The size of a Java thread stack mapping, its guard zones are within the stack size.
+         */
+        long javaThreadSize_kib(long stack_size_kib) {
+            return stack_size_kib;
+        }
+
+        /**
+         * The size of the stack mapping of a thread the JVM creates for itself, glibc adds its
+         * guard page to the stack size.
+         */
+        long nonJavaThreadSize_kib() {
+            return vm_thread_stack_size_kib + glibc_guard_page_kib;
+        }
+
+        /**
+         * The total rule condition of a thread stack mapping, glibc before 2.27 adds one page to
+         * a stack size multiple of 64K, to avoid cache aliasing.
+         * https://code.woboq.org/userspace/glibc/nptl/allocatestack.c.html#550
+         */
+        String threadTotal(long size_kib) {
+            return size_kib + ".." + (size_kib + page_size_kib);
+        }
+    }
+
+
+    /**
+     * Memory segments stored column-wise in primitive arrays, a segment is a row index.
+     */
+    static class SegmentTable {
+        private long[] startAddress;
+        private long[] inode;
+        private long[] offset; // in the mapped file, in bytes
+        private long[] size_kib;
+        private long[] committed_kib; // the accessible part of the size, the rest is only reserved
+        private long[] rss_kib;
+        private long[] pss_kib;
+        private long[] swap_kib;
+        private long[] swap_pss_kib;
+        private long[] anon_huge_pages_kib;
+        private long[] locked_kib;
+        private long[] thp_eligible_kib; // size of the blocks eligible to transparent huge pages
+        private byte[] permissions;
+        private byte[] type;
+        private int[] mapping;
+        private int size;
+
+        private final MappingDictionary mappings;
+
+        SegmentTable(int capacity) {
+            this(capacity, new MappingDictionary());
+        }
+
+        SegmentTable(int capacity, MappingDictionary mappings) {
+            this.mappings = mappings;
+            startAddress = new long[capacity];
+            inode = new long[capacity];
+            offset = new long[capacity];
+            size_kib = new long[capacity];
+            committed_kib = new long[capacity];
+            rss_kib = new long[capacity];
+            pss_kib = new long[capacity];
+            swap_kib = new long[capacity];
+            swap_pss_kib = new long[capacity];
+            anon_huge_pages_kib = new long[capacity];
+            locked_kib = new long[capacity];
+            thp_eligible_kib = new long[capacity];
+            permissions = new byte[capacity];
+            type = new byte[capacity];
+            mapping = new int[capacity];
+        }
+
+        int size() {
+            return size;
+        }
+
+        boolean isFull() {
+            return size == startAddress.length;
+        }
+
+        /**
+         * @return the index of the new segment, its sizes are zeroed and its type is unknown.
+         */
+        int add(long startAddress, byte permissions, long inode, int mapping) {
+            if (isFull()) {
+                grow();
+            }
+            int i = size++;
+            this.startAddress[i] = startAddress;
+            this.permissions[i] = permissions;
+            this.inode[i] = inode;
+            this.mapping[i] = mapping;
+            offset[i] = 0;
+            size_kib[i] = 0;
+            committed_kib[i] = 0;
+            rss_kib[i] = 0;
+            pss_kib[i] = 0;
+            swap_kib[i] = 0;
+            swap_pss_kib[i] = 0;
+            anon_huge_pages_kib[i] = 0;
+            locked_kib[i] = 0;
+            thp_eligible_kib[i] = 0;
+            type[i] = (byte) SegmentType.UNKNOWN.ordinal();
+            return i;
+        }
+
+        void grow() {
+            int capacity = Math.max(16, startAddress.length * 2);
+            startAddress = Arrays.copyOf(startAddress, capacity);
+            inode = Arrays.copyOf(inode, capacity);
+            offset = Arrays.copyOf(offset, capacity);
+            size_kib = Arrays.copyOf(size_kib, capacity);
+            committed_kib = Arrays.copyOf(committed_kib, capacity);
+            rss_kib = Arrays.copyOf(rss_kib, capacity);
+            pss_kib = Arrays.copyOf(pss_kib, capacity);
+            swap_kib = Arrays.copyOf(swap_kib, capacity);
+            swap_pss_kib = Arrays.copyOf(swap_pss_kib, capacity);
+            anon_huge_pages_kib = Arrays.copyOf(anon_huge_pages_kib, capacity);
+            locked_kib = Arrays.copyOf(locked_kib, capacity);
+            thp_eligible_kib = Arrays.copyOf(thp_eligible_kib, capacity);
+            permissions = Arrays.copyOf(permissions, capacity);
+            type = Arrays.copyOf(type, capacity);
+            mapping = Arrays.copyOf(mapping, capacity);
+        }
+
+        void copyRow(int from, int to) {
+            if (from == to) {
+                return;
+            }
+            startAddress[to] = startAddress[from];
+            inode[to] = inode[from];
+            offset[to] = offset[from];
+            size_kib[to] = size_kib[from];
+            committed_kib[to] = committed_kib[from];
+            rss_kib[to] = rss_kib[from];
+            pss_kib[to] = pss_kib[from];
+            swap_kib[to] = swap_kib[from];
+            swap_pss_kib[to] = swap_pss_kib[from];
+            anon_huge_pages_kib[to] = anon_huge_pages_kib[from];
+            locked_kib[to] = locked_kib[from];
+            thp_eligible_kib[to] = thp_eligible_kib[from];
+            permissions[to] = permissions[from];
+            type[to] = type[from];
+            mapping[to] = mapping[from];
+        }
+
+        /**
+         * Appends a copy of a segment of another table sharing the same mapping dictionary.
+         */
+        int addRow(SegmentTable other, int row) {
+            int i = add(other.startAddress[row], other.permissions[row], other.inode[row], other.mapping[row]);
+            offset[i] = other.offset[row];
+            size_kib[i] = other.size_kib[row];
+            committed_kib[i] = other.committed_kib[row];
+            rss_kib[i] = other.rss_kib[row];
+            pss_kib[i] = other.pss_kib[row];
+            swap_kib[i] = other.swap_kib[row];
+            swap_pss_kib[i] = other.swap_pss_kib[row];
+            anon_huge_pages_kib[i] = other.anon_huge_pages_kib[row];
+            locked_kib[i] = other.locked_kib[row];
+            thp_eligible_kib[i] = other.thp_eligible_kib[row];
+            type[i] = other.type[row];
+            return i;
+        }
+
+        /**
+         * Merges the sizes of the higher segment into the lower one.
+         */
+        void merge(int lower, int higher) {
+            merge(lower, this, higher);
+        }
+
+        /**
+         * Merges the sizes of the higher segment of a table sharing the same mapping dictionary.
+         */
+        void merge(int lower, SegmentTable other, int higher) {
+            size_kib[lower] += other.size_kib[higher];
+            committed_kib[lower] += other.committed_kib[higher];
+            rss_kib[lower] += other.rss_kib[higher];
+            pss_kib[lower] += other.pss_kib[higher];
+            swap_kib[lower] += other.swap_kib[higher];
+            swap_pss_kib[lower] += other.swap_pss_kib[higher];
+            anon_huge_pages_kib[lower] += other.anon_huge_pages_kib[higher];
+            locked_kib[lower] += other.locked_kib[higher];
+            thp_eligible_kib[lower] += other.thp_eligible_kib[higher];
+        }
+
+        void retainLast() {
+            if (size > 0) {
+                copyRow(size - 1, 0);
+                size = 1;
+            }
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        String typeName(int i) {
+            return rules.typeName(type[i]);
+        }
+
+        void type(int i, SegmentType type) {
+            this.type[i] = (byte) type.ordinal();
+        }
+
+        boolean isType(int i, SegmentType type) {
+            return this.type[i] == type.ordinal();
+        }
+
+        /**
+         * @return the columns of the segment a snapshot records, all but the offset, to compare segments read in different ways.
+         */
+        String describe(int i) {
+            return String.format("%s %x %s %d size=%d committed=%d rss=%d pss=%d swap=%d swapPss=%d anonHugePages=%d locked=%d thpEligible=%d %s",
+                                 typeName(i),
+                                 startAddress[i],
+                                 Permissions.toString(permissions[i]),
+                                 inode[i],
+                                 size_kib[i],
+                                 committed_kib[i],
+                                 rss_kib[i],
+                                 pss_kib[i],
+                                 swap_kib[i],
+                                 swap_pss_kib[i],
+                                 anon_huge_pages_kib[i],
+                                 locked_kib[i],
+                                 thp_eligible_kib[i],
+                                 mappings.name(mapping[i]));
+        }
+
+        String toString(int i) {
+            return String.format("type=%18s startAddress=%-16s perm=%s size=%-10d rss=%-10s mapping=%s",
+                                 typeName(i),
+                                 Long.toHexString(startAddress[i]),
+                                 Permissions.toString(permissions[i]),
+                                 size_kib[i],
+                                 rss_kib[i],
+                                 mappings.name(mapping[i]));
+        }
+    }
+
+    /**
+     * Permissions of a mapping packed in a byte, r=8 | w=4 | x=2 | s=1.
+     */
+    static final class Permissions {
+        static final byte READ = 8;
+        static final byte WRITE = 4;
+        static final byte EXECUTE = 2;
+        static final byte SHARED = 1;
+
+        static final byte NONE = 0; // ---p
+        static final byte READ_WRITE = READ | WRITE; // rw-p
+        static final byte READ_WRITE_EXECUTE = READ | WRITE | EXECUTE; // rwxp
+
+        private static final String[] NAMES = IntStream.range(0, 16)
+                                                       .mapToObj(i -> ((i & READ) != 0 ? "r" : "-")
+                                                                      + ((i & WRITE) != 0 ? "w" : "-")
+                                                                      + ((i & EXECUTE) != 0 ? "x" : "-")
+                                                                      + ((i & SHARED) != 0 ? "s" : "p"))
+                                                       .toArray(String[]::new);
+
+        private Permissions() {
+        }
+
+        static byte parse(byte[] bytes, int i) {
+            return (byte) ((bytes[i] == 'r' ? READ : 0)
+                           | (bytes[i + 1] == 'w' ? WRITE : 0)
+                           | (bytes[i + 2] == 'x' ? EXECUTE : 0)
+                           | (bytes[i + 3] == 's' ? SHARED : 0));
+        }
+
+        static byte parse(CharSequence chars, int i) {
+            return (byte) ((chars.charAt(i) == 'r' ? READ : 0)
+                           | (chars.charAt(i + 1) == 'w' ? WRITE : 0)
+                           | (chars.charAt(i + 2) == 'x' ? EXECUTE : 0)
+                           | (chars.charAt(i + 3) == 's' ? SHARED : 0));
+        }
+
+        static String toString(byte permissions) {
+            return NAMES[permissions];
+        }
+    }
+
+    /**
+     * Interns the mapping names, segments only keep the index of their name.
+     *
+     * Lookups hash the bytes or chars in place, a String is only created
+     * the first time a name is seen.
+     */
+    static class MappingDictionary {
+        static final int ANONYMOUS = 0;
+
+        private String[] names = new String[64];
+        private int[] slots = new int[128]; // name index + 1, 0 for an empty slot
+        private int size;
+
+        MappingDictionary() {
+            this(JavaPmapInspector.rules);
+        }
+
+        /**
+         * The anonymous mapping and the mapping names of the rules are interned first,
+         * so their index is known to the rules.
+         */
+        MappingDictionary(ClassificationRules rules) {
+            intern("", 0, 0);
+            if (rules != null) {
+                for (var name : rules.mappingNames()) {
+                    intern(name, 0, name.length());
+                }
+            }
+        }
+
+        String name(int mapping) {
+            return names[mapping];
+        }
+
+        int size() {
+            return size;
+        }
+
+        int intern(byte[] bytes, int from, int to) {
+            int hash = 0;
+            for (int i = from; i < to; i++) {
+                if (bytes[i] < 0) {
+                    // not ASCII, lets String decode it
+                    var name = new String(bytes, from, to - from, StandardCharsets.UTF_8);
+                    return intern(name, 0, name.length());
+                }
+                hash = 31 * hash + bytes[i];
+            }
+            int mask = slots.length - 1;
+            for (int slot = mix(hash) & mask; ; slot = (slot + 1) & mask) {
+                int index = slots[slot] - 1;
+                if (index < 0) {
+                    return add(new String(bytes, from, to - from, StandardCharsets.US_ASCII), slot);
+                }
+                if (equals(names[index], bytes, from, to)) {
+                    return index;
+                }
+            }
+        }
+
+        int intern(CharSequence chars, int from, int to) {
+            int hash = 0;
+            for (int i = from; i < to; i++) {
+                hash = 31 * hash + chars.charAt(i);
+            }
+            int mask = slots.length - 1;
+            for (int slot = mix(hash) & mask; ; slot = (slot + 1) & mask) {
+                int index = slots[slot] - 1;
+                if (index < 0) {
+                    return add(chars.subSequence(from, to).toString(), slot);
+                }
+                if (equals(names[index], chars, from, to)) {
+                    return index;
+                }
+            }
+        }
+
+        private int add(String name, int slot) {
+            if (size == names.length) {
+                names = Arrays.copyOf(names, size * 2);
+            }
+            names[size] = name;
+            slots[slot] = ++size;
+            if (size * 2 > slots.length) {
+                rehash();
+            }
+            return size - 1;
+        }
+
+        private void rehash() {
+            slots = new int[slots.length * 2];
+            int mask = slots.length - 1;
+            for (int index = 0; index < size; index++) {
+                int slot = mix(names[index].hashCode()) & mask;
+                while (slots[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                slots[slot] = index + 1;
+            }
+        }
+
+        private static boolean equals(String name, byte[] bytes, int from, int to) {
+            if (name.length() != to - from) {
+                return false;
+            }
+            for (int i = 0; i < name.length(); i++) {
+                if (name.charAt(i) != bytes[from + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static boolean equals(String name, CharSequence chars, int from, int to) {
+            if (name.length() != to - from) {
+                return false;
+            }
+            for (int i = 0; i < name.length(); i++) {
+                if (name.charAt(i) != chars.charAt(from + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static int mix(int hash) {
+            return hash ^ (hash >>> 16);
+        }
+    }
+
+    /**
+     * Open addressing map of {@code long} keys to {@code int} values, without boxing.
+     */
+    static class LongIntHashMap {
+        private static final int MISSING = -1;
+
+        private long[] keys;
+        private int[] values;
+        private boolean[] used;
+        private int size;
+
+        LongIntHashMap(int expectedSize) {
+            int capacity = Integer.highestOneBit(Math.max(16, expectedSize * 2) - 1) << 1;
+            keys = new long[capacity];
+            values = new int[capacity];
+            used = new boolean[capacity];
+        }
+
+        /**
+         * @return the value, or -1 when the key is missing.
+         */
+        int get(long key) {
+            int mask = keys.length - 1;
+            for (int slot = slot(key, mask); used[slot]; slot = (slot + 1) & mask) {
+                if (keys[slot] == key) {
+                    return values[slot];
+                }
+            }
+            return MISSING;
+        }
+
+        void put(long key, int value) {
+            int mask = keys.length - 1;
+            int slot = slot(key, mask);
+            while (used[slot]) {
+                if (keys[slot] == key) {
+                    values[slot] = value;
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+            used[slot] = true;
+            keys[slot] = key;
+            values[slot] = value;
+            if (++size * 2 > keys.length) {
+                rehash();
+            }
+        }
+
+        void clear() {
+            Arrays.fill(used, false);
+            size = 0;
+        }
+
+        private void rehash() {
+            var oldKeys = keys;
+            var oldValues = values;
+            var oldUsed = used;
+            keys = new long[oldKeys.length * 2];
+            values = new int[oldKeys.length * 2];
+            used = new boolean[oldKeys.length * 2];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldUsed[i]) {
+                    put(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+
+        private static int slot(long key, int mask) {
+            long hash = key * 0x9E3779B97F4A7C15L;
+            return (int) (hash ^ (hash >>> 32)) & mask;
+        }
+    }
+
+    /**
+     * Identifies the memory segment patterns, with the {@link ClassificationRules}.
+     */
+    static class MemorySegmentIdentifier {
+        private final ClassificationRules rules;
+        private final JvmLayout layout;
+
+        MemorySegmentIdentifier() {
+            this(JavaPmapInspector.rules, JavaPmapInspector.layout);
+        }
+
+        MemorySegmentIdentifier(ClassificationRules rules) {
+            this(rules, JvmLayout.NONE);
+        }
+
+        MemorySegmentIdentifier(ClassificationRules rules, JvmLayout layout) {
+            this.rules = rules;
+            this.layout = layout;
+        }
+
+        /**
+         * The blocks in a range of the JVM layout are typed and merged by a single lookup,
+         * the rules only classify the other blocks, and never merge a block of a known range
+         * into a preceding block.
+         */
+        SegmentIdentifierResult tryMergeMapping(SegmentTable segments,
+                                                int lowerAddressBlock,
+                                                int higherAddressBlock) {
+            if (layout.isEmpty()) {
+                return rules.match(segments, lowerAddressBlock, higherAddressBlock, false);
+            }
+            int interval = layout.intervalOf(segments.startAddress[lowerAddressBlock]);
+            if (interval >= 0) {
+                segments.type[lowerAddressBlock] = layout.type(interval);
+                if (layout.contains(interval, segments.startAddress[higherAddressBlock])) {
+                    segments.merge(lowerAddressBlock, higherAddressBlock);
+                    return SegmentIdentifierResult.CONTIGUOUS_MAPPING;
+                }
+                return SegmentIdentifierResult.SINGLE_SEGMENT_MAPPING;
+            }
+            return rules.match(segments,
+                               lowerAddressBlock,
+                               higherAddressBlock,
+                               layout.intervalOf(segments.startAddress[higherAddressBlock]) >= 0);
+        }
+    }
+
+    /**
+     * Classification rules, declared as data and compiled to a dispatch table.
+     *
+     * A rule line is a segment type followed by conditions and an action:
+     * <pre>
+     * # type          conditions                                          action
+     * JAVA_THREAD     lower=---p higher=rw-p lower-size=16 total=1028 unknown-only  merge
+     * NETTY_ARENA     lower=rw-p higher=---p total=16384                            merge
+     * </pre>
+     *
+     * Conditions:
+     * <ul>
+     *     <li>{@code lower=perm}, {@code higher=perm}: permissions of the lower and higher address blocks,
+     *     {@code ?} matches any permission letter</li>
+     *     <li>{@code mapping=name}: mapping name of the higher address block</li>
+     *     <li>{@code lower-size=kib}, {@code lower-size=min..max} or {@code lower-size=min..}: size of the lower address block</li>
+     *     <li>{@code total=kib}, {@code total=min..max} or {@code total=min..}: size of both blocks</li>
+     *     <li>{@code below=hex}: the lower address block starts below this address</li>
+     *     <li>{@code above=hex}: the lower address block starts at or above this address</li>
+     *     <li>{@code align=kib}: the lower address block starts on a multiple of this size</li>
+     *     <li>{@code inode}: the lower address block is a mapped file</li>
+     *     <li>{@code unknown-only}: the lower address block is not already identified</li>
+     * </ul>
+     *
+     * Actions: {@code merge} the higher block into the lower one, type the {@code lower}
+     * or the {@code higher} block only, or {@code file} that types the lower block as a
+     * (shared) mapped file and merges the higher block of the same inode.
+     *
+     * The rules are tried in order and the first matching rule wins. They are
+     * grouped per lower/higher permission pair, then indexed by the higher mapping
+     * name, the total size or the lower size, so matching a pair only looks at the
+     * few rules that can match it, without regex nor allocation.
+     */
+    static class ClassificationRules {
+        private static final int[] NO_RULES = new int[0];
+        private static final int KEY_MAPPING = 0;
+        private static final int KEY_TOTAL = 1;
+        private static final int KEY_LOWER_SIZE = 2;
+
+        private final Rule[] rules;
+        private final String[] typeNames;
+        private final List<String> mappingNames;
+        private final LongIntHashMap keyed = new LongIntHashMap(256);
+        private final List<int[]> keyedRules = new ArrayList<>();
+        private final int[][] unkeyedRules = new int[256][];
+
+        private ClassificationRules(List<Rule> rules, List<String> typeNames, List<String> mappingNames) {
+            this.rules = rules.toArray(new Rule[0]);
+            this.typeNames = typeNames.toArray(new String[0]);
+            this.mappingNames = List.copyOf(mappingNames);
+
+            for (int bucket = 0; bucket < 256; bucket++) {
+                var unkeyed = new ArrayList<Integer>();
+                var keyedInBucket = new LinkedHashMap<Long, List<Integer>>();
+                for (int r = 0; r < this.rules.length; r++) {
+                    var rule = this.rules[r];
+                    if ((rule.lowerPermissions & (1 << (bucket >> 4))) == 0
+                        || (rule.higherPermissions & (1 << (bucket & 0xF))) == 0) {
+                        continue;
+                    }
+                    if (rule.mapping >= 0) {
+                        keyedInBucket.computeIfAbsent(key(bucket, KEY_MAPPING, rule.mapping), k -> new ArrayList<>()).add(r);
+                    } else if (rule.totalMin == rule.totalMax) {
+                        keyedInBucket.computeIfAbsent(key(bucket, KEY_TOTAL, rule.totalMin), k -> new ArrayList<>()).add(r);
+                    } else if (rule.lowerSizeMin == rule.lowerSizeMax) {
+                        keyedInBucket.computeIfAbsent(key(bucket, KEY_LOWER_SIZE, rule.lowerSizeMin), k -> new ArrayList<>()).add(r);
+                    } else {
+                        unkeyed.add(r);
+                    }
+                }
+                unkeyedRules[bucket] = unkeyed.stream().mapToInt(Integer::intValue).toArray();
+                keyedInBucket.forEach((key, indexes) -> {
+                    keyed.put(key, keyedRules.size());
+                    keyedRules.add(indexes.stream().mapToInt(Integer::intValue).toArray());
+                });
+            }
+        }
+
+        /**
+         * @param noMerge whether the higher block must not be merged into the lower one.
+         */
+        SegmentIdentifierResult match(SegmentTable segments, int lower, int higher, boolean noMerge) {
+            int bucket = segments.permissions[lower] << 4 | segments.permissions[higher];
+            long lowerSize = segments.size_kib[lower];
+            long total = lowerSize + segments.size_kib[higher];
+
+            var byMapping = keyedRules(bucket, KEY_MAPPING, segments.mapping[higher]);
+            var byTotal = keyedRules(bucket, KEY_TOTAL, total);
+            var byLowerSize = keyedRules(bucket, KEY_LOWER_SIZE, lowerSize);
+            var unkeyed = unkeyedRules[bucket];
+
+            // merges the candidate lists, they are each in rule order
+            int m = 0, t = 0, l = 0, u = 0;
+            for (; ; ) {
+                int next = Integer.MAX_VALUE;
+                if (m < byMapping.length) next = byMapping[m];
+                if (t < byTotal.length) next = Math.min(next, byTotal[t]);
+                if (l < byLowerSize.length) next = Math.min(next, byLowerSize[l]);
+                if (u < unkeyed.length) next = Math.min(next, unkeyed[u]);
+                if (next == Integer.MAX_VALUE) {
+                    // other unknown possibilites
+                    // * Direct ByteBuffers
+                    // * Memory allocated by Unsafe.allocateMemory
+                    // * Unclosed resources (e.g. ZipInputStream)
+                    // * other native libraries
+                    return SegmentIdentifierResult.UNKNOWN_SINGLE_SEGMENT_MAPPING;
+                }
+                if (m < byMapping.length && byMapping[m] == next) m++;
+                else if (t < byTotal.length && byTotal[t] == next) t++;
+                else if (l < byLowerSize.length && byLowerSize[l] == next) l++;
+                else u++;
+
+                var rule = rules[next];
+                if (rule.matches(segments, lower, higher, lowerSize, total) && !(noMerge && rule.merges())) {
+                    return rule.apply(segments, lower, higher);
+                }
+            }
+        }
+
+        String typeName(int type) {
+            return typeNames[type];
+        }
+
+        int typeCount() {
+            return typeNames.length;
+        }
+
+        /**
+         * @return the mapping names used by the rules, the {@link MappingDictionary} interns them first.
+         */
+        List<String> mappingNames() {
+            return mappingNames;
+        }
+
+        void print(PrintStream out) {
+            for (var rule : rules) {
+                out.println(rule.source);
+            }
+        }
+
+        private int[] keyedRules(int bucket, int kind, long value) {
+            int index = keyed.get(key(bucket, kind, value));
+            return index < 0 ? NO_RULES : keyedRules.get(index);
+        }
+
+        private static long key(int bucket, int kind, long value) {
+            return (value << 10) | (kind << 8) | bucket;
+        }
+
+        /**
+         * Built-in rules, derived from the {@link Config}.
+         */
+        static List<String> defaults(Config config) {
+            return Stream.of(
+                    // Identifies Linux kernel specific mappings
+                    // https://stackoverflow.com/questions/19938324/what-are-vdso-and-vsyscall
+                    // https://lwn.net/Articles/615809/
+                    "KERNEL_MAPPING     mapping=[vsyscall]  higher",
+                    "KERNEL_MAPPING     mapping=[vdso]      higher",
+                    "KERNEL_MAPPING     mapping=[vvar]      higher",
+                    "MAIN_NATIVE_HEAP   mapping=[heap]      higher",
+                    "MAIN_NATIVE_STACK  mapping=[stack]     higher",
+
+                    // https://github.com/corretto/corretto-11/blob/3b31d243a19774bebde63df21cc84e994a89439a/src/src/hotspot/os/linux/os_linux.cpp#L6048-L6085
+
+                    // Java thread pattern, ThreadStackSize and one page of glibc before 2.27, 16 + 1008 with the newer ones
+                    //     7f66b834a000 ---p 00000000  00:00       0       16       0       0          0         0        0              0              0               0    0       0      0           0
+                    //     7f66b834e000 rw-p 00000000  00:00       0     1012      92      92         92        92        0              0              0               0    0       0      0           0
+                    String.format("JAVA_THREAD        lower=---p higher=rw-p lower-size=%d total=%s unknown-only  merge",
+                                  config.thread_guard_pages_kib,
+                                  config.threadTotal(config.javaThreadSize_kib(config.thread_stack_size_kib))),
+                    // the compiler threads are Java threads with their own stack size
+                    String.format("JAVA_THREAD        lower=---p higher=rw-p lower-size=%d total=%s unknown-only  merge",
+                                  config.thread_guard_pages_kib,
+                                  config.threadTotal(config.javaThreadSize_kib(config.compiler_thread_stack_size_kib))),
+
+                    // Non java thread, the glibc guard page, then VMThreadStackSize and one page of glibc before 2.27
+                    //     7f69eb8f6000 ---p 00000000  00:00       0        4       0       0          0         0        0              0              0               0    0       0      0           0
+                    //     7f69eb8f7000 rw-p 00000000  00:00       0     1028      12      12         12        12        0              0              0               0    0       0      0           0
+                    String.format("NON_JAVA_THREAD    lower=---p higher=rw-p lower-size=%d total=%s  merge",
+                                  config.glibc_guard_page_kib,
+                                  config.threadTotal(config.nonJavaThreadSize_kib())),
+
+                    // Malloc Arena heap pattern, a heap is 64MiB aligned on its size, the committed rw-p block then
+                    // the reserved ---p rest, the ArenaAnalyzer groups the heaps of an arena
+                    //     7f672c000000 rw-p 00000000  00:00       0     9568    9452    9452       9452      9452        0              0              0               0    0       0      0           0
+                    //     7f672c958000 ---p 00000000  00:00       0    55968       0       0          0         0        0              0              0               0    0       0      0           0
+                    String.format("MALLOC_ARENA       lower=rw-p higher=---p total=%d align=%d above=%x unknown-only  merge",
+                                  config.malloc_arena_size_kib,
+                                  config.malloc_arena_size_kib,
+                                  config.malloc_arena_min_address),
+                    // a heap the arena filled up has no ---p block, the kernel does not merge it with the next heap
+                    // as their anonymous pages are tracked apart
+                    String.format("MALLOC_ARENA       lower=rw-p lower-size=%d align=%d above=%x unknown-only  lower",
+                                  config.malloc_arena_size_kib,
+                                  config.malloc_arena_size_kib,
+                                  config.malloc_arena_min_address),
+
+                    // Mapped file
+                    //     7f6b17490000 r-xp 00000000  08:01 3531531    17672   14912   14912      14912         0        0              0              0               0    0       0      0           0 libjvm.so
+                    //     7f6b185d2000 ---p 01142000  08:01 3531531     2044       0       0          0         0        0              0              0               0    0       0      0           0 libjvm.so
+                    //     7f6b187d1000 r--p 01141000  08:01 3531531      764     764     764        764       764        0              0              0               0    0       0      0           0 libjvm.so
+                    //     7f6b18890000 rw-p 01200000  08:01 3531531      232     232     232        232       208        0              0              0               0    0       0      0           0 libjvm.so
+                    "MAPPED_FILE        inode  file",
+
+                    // Java Heap
+                    //        740000000 rw-p 00000000  00:00       0  3164800 2746068 2746068    2746068   2746068        0              0              0               0    0       0      0           0
+                    //        8012a0000 ---p 00000000  00:00       0  1029504       0       0          0         0        0              0              0               0    0       0      0           0
+                    // 3gb heap (740000000 -> 800000000) + 1260000 (19267584 bytes, 18816 kib) of compressed class space ?
+                    String.format("JAVA_HEAP          lower=rw-p higher=---p below=%x unknown-only  merge",
+                                  config.java_heap_max_start_address),
+
+                    // Code Heap
+                    //     7f297490d000 rwxp 00000000  00:00       0     2496    1016    1016       1016      1016        0              0              0               0    0       0      0           0
+                    //     7f2974b7d000 ---p 00000000  00:00       0     3196       0       0          0         0        0              0              0               0    0       0      0           0
+                    //     7f2974e9c000 rwxp 00000000  00:00       0    63616   63588   63588      63588     63588        0              0              0               0    0       0      0           0
+                    //     7f2978cbc000 ---p 00000000  00:00       0    56416       0       0          0         0        0              0              0               0    0       0      0           0
+                    "CODE_HEAP          lower=rwxp higher=---p  merge",
+
+                    // Unknown pattern 16 + 3060
+                    //     7f66c4989000 ---p 00000000  00:00       0       16       0       0          0         0        0              0              0               0    0       0      0           0
+                    //     7f66c498d000 rw-p 00000000  00:00       0     3060    2140    2140       2140      2140        0              0              0               0    0       0      0           0
+                    "UNKNOWN_SEGMENT1   lower=---p higher=rw-p total=3076  merge",
+
+                    // Unkownn segment
+                    //     7f66c4c8a000 rw-p 00000000  00:00       0     2048    2048    2048       2048      2048        0              0              0               0    0       0      0           0
+                    "UNKNOWN_SEGMENT2   lower-size=2048  lower"
+            ).distinct().collect(Collectors.toList()); // the compiler thread rule when its stack has the default size
+        }
+
+        /**
+         * Compiles the rules of the file, if any, followed by the built-in rules.
+         *
+         * @throws IllegalArgumentException when a rule is invalid.
+         */
+        static ClassificationRules load(Path rulesFile, Config config) throws IOException {
+            var lines = new ArrayList<String>();
+            if (rulesFile != null) {
+                if (!Files.isReadable(rulesFile)) {
+                    throw new IOException(String.format("Rules file '%s' does not exists or is not readable", rulesFile));
+                }
+                lines.addAll(Files.readAllLines(rulesFile));
+            }
+            lines.addAll(defaults(config));
+            return compile(lines, rulesFile == null ? "built-in rules" : rulesFile.toString());
+        }
+
+        static ClassificationRules compile(List<String> lines, String origin) {
+            var typeNames = Arrays.stream(SegmentType.values()).map(Enum::name).collect(Collectors.toCollection(ArrayList::new));
+            var mappingNames = new ArrayList<String>();
+            var rules = new ArrayList<Rule>();
+            for (int i = 0; i < lines.size(); i++) {
+                var line = lines.get(i).strip();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                try {
+                    rules.add(Rule.parse(line, typeNames, mappingNames));
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException(String.format("Invalid rule at %s:%d, %s%n   %s", origin, i + 1, e.getMessage(), line), e);
+                }
+            }
+            if (typeNames.size() > Byte.MAX_VALUE) {
+                throw new IllegalArgumentException(String.format("Too many segment types in %s", origin));
+            }
+            return new ClassificationRules(rules, typeNames, mappingNames);
+        }
+    }
+
+    static class Rule {
+        private static final int ANY_PERMISSIONS = 0xFFFF;
+
+        private final String source;
+        private byte type;
+        private Action action;
+        private int lowerPermissions = ANY_PERMISSIONS;
+        private int higherPermissions = ANY_PERMISSIONS;
+        private int mapping = -1;
+        private long lowerSizeMin = 0;
+        private long lowerSizeMax = Long.MAX_VALUE;
+        private long totalMin = 0;
+        private long totalMax = Long.MAX_VALUE;
+        private long below = Long.MAX_VALUE;
+        private long above = 0;
+        private long align_kib = 1;
+        private boolean mappedFile;
+        private boolean unknownOnly;
+
+        private enum Action {
+            MERGE,
+            LOWER,
+            HIGHER,
+            FILE,
+        }
+
+        private Rule(String source) {
+            this.source = source;
+        }
+
+        static Rule parse(String line, List<String> typeNames, List<String> mappingNames) {
+            var rule = new Rule(line);
+            var tokens = WHITE_SPACE_SEPARATOR.split(line);
+            if (!typeNames.contains(tokens[0])) {
+                typeNames.add(tokens[0]); // site specific segment type
+            }
+            rule.type = (byte) typeNames.indexOf(tokens[0]);
+            for (int i = 1; i < tokens.length; i++) {
+                var token = tokens[i];
+                var separator = token.indexOf('=');
+                if (separator < 0) {
+                    switch (token) {
+                        case "inode":
+                            rule.mappedFile = true;
+                            break;
+                        case "unknown-only":
+                            rule.unknownOnly = true;
+                            break;
+                        case "merge":
+                        case "lower":
+                        case "higher":
+                        case "file":
+                            rule.action = Action.valueOf(token.toUpperCase(Locale.ROOT));
+                            break;
+                        default:
+                            throw new IllegalArgumentException("unknown condition or action '" + token + "'");
+                    }
+                    continue;
+                }
+                var name = token.substring(0, separator);
+                var value = token.substring(separator + 1);
+                try {
+                    switch (name) {
+                        case "lower":
+                            rule.lowerPermissions = permissionsMask(value);
+                            break;
+                        case "higher":
+                            rule.higherPermissions = permissionsMask(value);
+                            break;
+                        case "mapping":
+                            if (value.isEmpty()) {
+                                throw new IllegalArgumentException("missing mapping name");
+                            }
+                            if (!mappingNames.contains(value)) {
+                                mappingNames.add(value);
+                            }
+                            // the dictionary interns the anonymous mapping first
+                            rule.mapping = mappingNames.indexOf(value) + 1;
+                            break;
+                        case "lower-size":
+                            rule.lowerSizeMin = min(value);
+                            rule.lowerSizeMax = max(value);
+                            break;
+                        case "total":
+                            rule.totalMin = min(value);
+                            rule.totalMax = max(value);
+                            break;
+                        case "below":
+                            rule.below = Long.parseUnsignedLong(value, 16);
+                            break;
+                        case "above":
+                            rule.above = Long.parseUnsignedLong(value, 16);
+                            break;
+                        case "align":
+                            rule.align_kib = Long.parseLong(value);
+                            if (rule.align_kib <= 0) {
+                                throw new IllegalArgumentException("alignment must be positive");
+                            }
+                            break;
+                        default:
+                            throw new IllegalArgumentException("unknown condition '" + name + "'");
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("invalid value for '" + name + "'");
+                }
+            }
+            if (rule.action == null) {
+                throw new IllegalArgumentException("missing action: merge, lower, higher or file");
+            }
+            return rule;
+        }
+
+        /**
+         * @return the lower bound of a size or of a {@code min..max} or {@code min..} range.
+         */
+        private static long min(String range) {
+            var separator = range.indexOf("..");
+            return Long.parseLong(separator < 0 ? range : range.substring(0, separator));
+        }
+
+        /**
+         * @return the upper bound of a size or of a range, unbounded for {@code min..}.
+         */
+        private static long max(String range) {
+            var separator = range.indexOf("..");
+            if (separator < 0) {
+                return Long.parseLong(range);
+            }
+            return separator + 2 == range.length() ? Long.MAX_VALUE : Long.parseLong(range.substring(separator + 2));
+        }
+
+        /**
+         * @return the set of matching permissions, as a bit set of the permission bytes.
+         */
+        private static int permissionsMask(String pattern) {
+            if (pattern.length() != 4) {
+                throw new IllegalArgumentException("permissions must have 4 letters, like rw-p or ??-s");
+            }
+            int mask = 0;
+            for (int permissions = 0; permissions < 16; permissions++) {
+                var name = Permissions.toString((byte) permissions);
+                boolean matches = true;
+                for (int i = 0; i < 4; i++) {
+                    if (pattern.charAt(i) != '?' && pattern.charAt(i) != name.charAt(i)) {
+                        matches = false;
+                    }
+                }
+                if (matches) {
+                    mask |= 1 << permissions;
+                }
+            }
+            return mask;
+        }
+
+        boolean matches(SegmentTable segments, int lower, int higher, long lowerSize, long total) {
+            return (mapping < 0 || segments.mapping[higher] == mapping)
+                   && lowerSize >= lowerSizeMin && lowerSize <= lowerSizeMax
+                   && total >= totalMin && total <= totalMax
+                   && segments.startAddress[lower] < below
+                   && segments.startAddress[lower] >= above
+                   && segments.startAddress[lower] % (align_kib * 1024) == 0
+                   && (!mappedFile || segments.inode[lower] > 0)
+                   && (!unknownOnly || segments.isType(lower, SegmentType.UNKNOWN));
+        }
+
+        boolean merges() {
+            return action == Action.MERGE;
+        }
+
+        SegmentIdentifierResult apply(SegmentTable segments, int lower, int higher) {
+            switch (action) {
+                case MERGE:
+                    segments.type[lower] = type;
+                    segments.merge(lower, higher);
+                    return SegmentIdentifierResult.CONTIGUOUS_MAPPING;
+                case LOWER:
+                    segments.type[lower] = type;
+                    return SegmentIdentifierResult.SINGLE_SEGMENT_MAPPING;
+                case HIGHER:
+                    segments.type[higher] = type;
+                    return SegmentIdentifierResult.SINGLE_SEGMENT_MAPPING;
+                case FILE:
+                    // [r-][w-]-s
+                    segments.type(lower,
+                                  (segments.permissions[lower] & (Permissions.EXECUTE | Permissions.SHARED)) == Permissions.SHARED
+                                  ? SegmentType.SHARED_MAPPED_FILE
+                                  : SegmentType.MAPPED_FILE);
+                    if (segments.inode[lower] == segments.inode[higher]) {
+                        segments.merge(lower, higher);
+
+                        return SegmentIdentifierResult.CONTIGUOUS_MAPPING;
+                    }
+                    return SegmentIdentifierResult.FIRST_OF_CONTIGUOUS_SEGMENT_MAPPING;
+                default:
+                    throw new IllegalStateException(action.name());
+            }
+        }
+    }
+
+    enum SegmentIdentifierResult {
+        SINGLE_SEGMENT_MAPPING,
+        UNKNOWN_SINGLE_SEGMENT_MAPPING,
+        CONTIGUOUS_MAPPING,
+        FIRST_OF_CONTIGUOUS_SEGMENT_MAPPING,
+    }
+
+    enum SegmentType {
+        UNKNOWN,
+        MALLOC_ARENA,
+        MAPPED_FILE,
+        KERNEL_MAPPING,
+        MAIN_NATIVE_HEAP,
+        MAIN_NATIVE_STACK,
+        NON_JAVA_THREAD,
+        JAVA_HEAP,
+        JAVA_THREAD,
+        UNKNOWN_SEGMENT1,
+        UNKNOWN_SEGMENT2,
+        CODE_HEAP, SHARED_MAPPED_FILE,
+        CLASS_SPACE,
+        MEMFD_JAVA_HEAP,
+        ZGC_HEAP_VIEW,
+    }
+
+
+
+    /**
+     * Types the mappings of a Java heap backed by a memfd, like the ZGC heap. Before generational ZGC
+     * the heap memory is mapped in three colored views, marked0, marked1 and remapped, a page is
+     * resident in each view it is accessed through, hence counted in the RSS of each view.
+     *
+     * The first mapping of a file offset is a {@code MEMFD_JAVA_HEAP}, the mappings of the same inode
+     * and offset at higher addresses are {@code ZGC_HEAP_VIEW}, a hash of the inode and offset keeps
+     * it linear. The reserved address space right after a mapping is typed like it. The segments
+     * are expected in address order, ZGC maps the same chunks in each view.
+     */
+    static class HeapViews {
+        private static final String MEMFD_HEAP = "memfd:java_heap";
+
+        private final LongIntHashMap mapped = new LongIntHashMap(64);
+        private long[] mappedInode = new long[64];
+        private long[] mappedOffset = new long[64];
+        private int mappedCount;
+        private long viewEnd = -1;
+        private byte viewType;
+
+        /**
+         * @return a consumer that types the heap views of the segments before handing them over.
+         */
+        static SegmentRangeConsumer retyping(SegmentRangeConsumer consumer) {
+            var views = new HeapViews();
+            return (segments, from, to) -> {
+                views.retype(segments, from, to);
+                consumer.accept(segments, from, to);
+            };
+        }
+
+        void retype(SegmentTable segments, int from, int to) {
+            for (int i = from; i < to; i++) {
+                if (segments.inode[i] > 0
+                    && (segments.permissions[i] & Permissions.SHARED) != 0
+                    && segments.mappings.name(segments.mapping[i]).startsWith(MEMFD_HEAP)) {
+                    segments.type(i, firstMapping(segments.inode[i], segments.offset[i])
+                                     ? SegmentType.MEMFD_JAVA_HEAP
+                                     : SegmentType.ZGC_HEAP_VIEW);
+                    viewType = segments.type[i];
+                    viewEnd = segments.startAddress[i] + segments.size_kib[i] * 1024;
+                } else if (segments.startAddress[i] == viewEnd
+                           && segments.inode[i] == 0
+                           && segments.permissions[i] == Permissions.NONE) {
+                    segments.type[i] = viewType;
+                    viewEnd = -1;
+                } else {
+                    viewEnd = -1;
+                }
+            }
+        }
+
+        static boolean isHeapView(byte type) {
+            return type == SegmentType.MEMFD_JAVA_HEAP.ordinal() || type == SegmentType.ZGC_HEAP_VIEW.ordinal();
+        }
+
+        /**
+         * Forgets the mappings, to type the segments of another sample.
+         */
+        void clear() {
+            mapped.clear();
+            mappedCount = 0;
+            viewEnd = -1;
+        }
+
+        private boolean firstMapping(long inode, long offset) {
+            long key = inode * 0x9E3779B97F4A7C15L + offset;
+            int known = mapped.get(key);
+            if (known >= 0) {
+                // a colliding key is taken as another range
+                return mappedInode[known] != inode || mappedOffset[known] != offset;
+            }
+            if (mappedCount == mappedInode.length) {
+                mappedInode = Arrays.copyOf(mappedInode, mappedCount * 2);
+                mappedOffset = Arrays.copyOf(mappedOffset, mappedCount * 2);
+            }
+            mappedInode[mappedCount] = inode;
+            mappedOffset[mappedCount] = offset;
+            mapped.put(key, mappedCount++);
+            return true;
+        }
+    }
+
+    /**
+     * Classifies all the segments of a process at once, the address ordered segments are
+     * split in chunks that are classified concurrently on a fork/join pool, each chunk
+     * as if it was a process of its own.
+     *
+     * A chunk guesses that its first segment does not merge with the last segment of the
+     * previous chunk. The combine step replays the merge attempts across each boundary, from
+     * the last segment of the previous chunk, until a segment starts on a raw segment where a
+     * segment of the chunk starts, with the same type. The rest of the chunk is then what the
+     * sequential classification gives, usually the guess is right at the first pair.
+     */
+    static class ParallelClassifier {
+        private static final int MIN_CHUNK_SIZE = 16 * 1024;
+
+        private final ForkJoinPool pool;
+        private final MemorySegmentIdentifier msi = new MemorySegmentIdentifier();
+        private final int chunkSize;
+
+        ParallelClassifier(ForkJoinPool pool) {
+            this(pool, 0);
+        }
+
+        /**
+         * @param chunkSize the number of raw segments per chunk, 0 to size them after the pool parallelism.
+         */
+        ParallelClassifier(ForkJoinPool pool, int chunkSize) {
+            this.pool = pool;
+            this.chunkSize = chunkSize;
+        }
+
+        /**
+         * Classifies the raw segments, they are left untouched, and hands the identified
+         * segments to the consumer in address order.
+         */
+        void classify(SegmentTable raw, SegmentRangeConsumer consumer) {
+            int size = raw.size;
+            if (size == 0) {
+                consumer.accept(raw, 0, 0);
+                return;
+            }
+            int perChunk = chunkSize > 0 ? chunkSize : Math.max(MIN_CHUNK_SIZE, size / (pool.getParallelism() * 4) + 1);
+            var chunks = new Chunk[(size + perChunk - 1) / perChunk];
+            pool.invoke(new ChunkTask(raw, chunks, perChunk, 0, chunks.length));
+            combine(raw, chunks, consumer);
+        }
+
+        private void combine(SegmentTable raw, Chunk[] chunks, SegmentRangeConsumer consumer) {
+            var first = chunks[0];
+            consumer.accept(first.segments, 0, first.segments.size - 1);
+            // the last segment of the chunk, not yet identified, followed by the re-classified segments
+            var carried = new SegmentTable(16, raw.mappings);
+            carried.addRow(first.segments, first.segments.size - 1);
+
+            for (int c = 1; c < chunks.length; c++) {
+                var chunk = chunks[c];
+                int last = 0;
+                int known = 0;
+                boolean converged = false;
+                for (int j = chunk.from; j < chunk.to && !converged; j++) {
+                    int i = carried.addRow(raw, j);
+                    if (msi.tryMergeMapping(carried, last, i) == SegmentIdentifierResult.CONTIGUOUS_MAPPING) {
+                        carried.size--;
+                        continue;
+                    }
+                    while (known < chunk.segments.size && chunk.firstRaw[known] < j) {
+                        known++; // the chunk merged raw segments that start a segment here
+                    }
+                    if (known < chunk.segments.size && chunk.firstRaw[known] == j && chunk.openingType[known] == carried.type[i]) {
+                        carried.size--;
+                        consumer.accept(carried, 0, carried.size);
+                        consumer.accept(chunk.segments, known, chunk.segments.size - 1);
+                        carried.clear();
+                        carried.addRow(chunk.segments, chunk.segments.size - 1);
+                        converged = true;
+                    } else {
+                        last = i;
+                    }
+                }
+                if (!converged) {
+                    // the whole chunk got classified again
+                    consumer.accept(carried, 0, last);
+                    carried.copyRow(last, 0);
+                    carried.size = 1;
+                }
+            }
+            consumer.accept(carried, 0, carried.size);
+        }
+
+        /**
+         * Identified segments of a chunk, with the raw segment each one starts on, and the
+         * type it had at this point, a merge attempt with the previous segment may have typed it.
+         */
+        private static class Chunk {
+            private final int from;
+            private final int to;
+            private final SegmentTable segments;
+            private final int[] firstRaw;
+            private final byte[] openingType;
+
+            Chunk(SegmentTable raw, int from, int to, MemorySegmentIdentifier msi) {
+                this.from = from;
+                this.to = to;
+                segments = new SegmentTable(to - from, raw.mappings);
+                for (int j = from; j < to; j++) {
+                    segments.addRow(raw, j);
+                }
+                firstRaw = new int[to - from];
+                openingType = new byte[to - from];
+
+                // like classifyInPlace(), keeping track of where the segments start
+                int last = 0;
+                int lastFirstRaw = from;
+                byte lastOpeningType = segments.type[0];
+                int identified = 0;
+                for (int i = 1; i < segments.size; i++) {
+                    if (msi.tryMergeMapping(segments, last, i) != SegmentIdentifierResult.CONTIGUOUS_MAPPING) {
+                        segments.copyRow(last, identified);
+                        firstRaw[identified] = lastFirstRaw;
+                        openingType[identified++] = lastOpeningType;
+                        last = i;
+                        lastFirstRaw = from + i;
+                        lastOpeningType = segments.type[i];
+                    }
+                }
+                segments.copyRow(last, identified);
+                firstRaw[identified] = lastFirstRaw;
+                openingType[identified] = lastOpeningType;
+                segments.size = identified + 1;
+            }
+        }
+
+        private class ChunkTask extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+
+            private final SegmentTable raw;
+            private final Chunk[] chunks;
+            private final int perChunk;
+            private final int fromChunk;
+            private final int toChunk;
+
+            ChunkTask(SegmentTable raw, Chunk[] chunks, int perChunk, int fromChunk, int toChunk) {
+                this.raw = raw;
+                this.chunks = chunks;
+                this.perChunk = perChunk;
+                this.fromChunk = fromChunk;
+                this.toChunk = toChunk;
+            }
+
+            @Override
+            protected void compute() {
+                if (toChunk - fromChunk == 1) {
+                    int from = fromChunk * perChunk;
+                    chunks[fromChunk] = new Chunk(raw, from, Math.min(raw.size, from + perChunk), msi);
+                    return;
+                }
+                int middle = (fromChunk + toChunk) >>> 1;
+                invokeAll(new ChunkTask(raw, chunks, perChunk, fromChunk, middle),
+                          new ChunkTask(raw, chunks, perChunk, middle, toChunk));
+            }
+        }
+    }
+
+    /**
+     * Classifies successive samples of the same process, only the address
+     * ranges whose layout changed since the previous sample go through the
+     * {@link MemorySegmentIdentifier} again.
+     *
+     * A classified range is keyed on its start address, it's reused when its
+     * raw segments and the raw segment that follows (which decided where the
+     * range stops) have the same start address, size, permissions and inode.
+     */
+    static class IncrementalClassifier {
+        private static final long END_OF_SEGMENTS = 0x9E3779B97F4A7C15L;
+
+        private final MemorySegmentIdentifier msi;
+        private final MappingDictionary mappings;
+        private ClassifiedRanges previous;
+        private ClassifiedRanges current;
+        private long[] layouts = new long[1024];
+        private int reused;
+        private int reclassified;
+
+        IncrementalClassifier(MappingDictionary mappings) {
+            this(new MemorySegmentIdentifier(), mappings);
+        }
+
+        IncrementalClassifier(MemorySegmentIdentifier msi, MappingDictionary mappings) {
+            this.msi = msi;
+            this.mappings = mappings;
+            previous = new ClassifiedRanges(mappings);
+            current = new ClassifiedRanges(mappings);
+        }
+
+        /**
+         * @return the classified ranges of this sample, in address order, they stay valid until
+         * the next sample after this one is classified.
+         */
+        ClassifiedRanges classify(SegmentTable segments) {
+            int count = segments.size;
+            if (layouts.length <= count) {
+                layouts = new long[count * 2];
+            }
+            for (int i = 0; i < count; i++) {
+                layouts[i] = layoutOf(segments, i);
+            }
+            layouts[count] = END_OF_SEGMENTS;
+
+            var swap = previous;
+            previous = current;
+            current = swap;
+            current.clear();
+            reused = 0;
+            reclassified = 0;
+
+            int last = -1;
+            boolean lastReused = false;
+            int i = 0;
+            while (i < count) {
+                if (last >= 0) {
+                    if (msi.tryMergeMapping(segments, last, i) == SegmentIdentifierResult.CONTIGUOUS_MAPPING) {
+                        i++;
+                        continue;
+                    }
+                    if (!lastReused) {
+                        current.add(segments, last, i - last, hash(layouts, last, i - last));
+                        reclassified++;
+                    }
+                }
+
+                // the first segment is never the higher block of a pair, always classify it
+                int known = i > 0 ? previous.indexOf(segments.startAddress[i]) : -1;
+                if (known >= 0) {
+                    int parts = previous.parts[known];
+                    if (i + parts <= count && hash(layouts, i, parts) == previous.layoutHash[known]) {
+                        current.addSameLayout(segments, i, previous, known);
+                        reused++;
+                        // the merge attempt with the next segment is made on the first raw segment
+                        // holding the range sizes, like it would have been without reuse
+                        segments.type[i] = previous.segments.type[known];
+                        for (int part = i + 1; part < i + parts; part++) {
+                            segments.merge(i, part);
+                        }
+                        last = i;
+                        lastReused = true;
+                        i += parts;
+                        continue;
+                    }
+                }
+                last = i;
+                lastReused = false;
+                i++;
+            }
+            if (last >= 0 && !lastReused) {
+                current.add(segments, last, count - last, hash(layouts, last, count - last));
+                reclassified++;
+            }
+            return current;
+        }
+
+        /**
+         * Hashes the layouts of the range parts and of the segment that follows.
+         */
+        private static long hash(long[] layouts, int from, int parts) {
+            long hash = parts;
+            for (int i = from; i <= from + parts; i++) {
+                hash = mix(hash * 31 + layouts[i]);
+            }
+            return hash;
+        }
+
+        private static long layoutOf(SegmentTable segments, int i) {
+            long layout = mix(segments.startAddress[i]);
+            layout = mix(layout * 31 + segments.size_kib[i]);
+            layout = mix(layout * 31 + segments.permissions[i]);
+            return mix(layout * 31 + segments.inode[i]);
+        }
+
+        // splitmix64 finalizer
+        private static long mix(long z) {
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            return z ^ (z >>> 31);
+        }
+    }
+
+    /**
+     * Classified segments of a sample, with the number of raw segments each
+     * one is made of and the hash of their layout, indexed by start address.
+     */
+    static class ClassifiedRanges {
+        private final SegmentTable segments;
+        private final LongIntHashMap index = new LongIntHashMap(1024);
+        private int[] parts = new int[1024];
+        private long[] layoutHash = new long[1024];
+
+        ClassifiedRanges(MappingDictionary mappings) {
+            segments = new SegmentTable(1024, mappings);
+        }
+
+        int indexOf(long startAddress) {
+            return index.get(startAddress);
+        }
+
+        void add(SegmentTable raw, int row, int parts, long layoutHash) {
+            int i = segments.addRow(raw, row);
+            index(i, parts, layoutHash);
+        }
+
+        /**
+         * Adds a range classified like the known one, with the sizes of this sample.
+         */
+        void addSameLayout(SegmentTable raw, int from, ClassifiedRanges previous, int known) {
+            int i = segments.addRow(raw, from);
+            segments.type[i] = previous.segments.type[known];
+            for (int part = from + 1; part < from + previous.parts[known]; part++) {
+                segments.merge(i, raw, part);
+            }
+            index(i, previous.parts[known], previous.layoutHash[known]);
+        }
+
+        private void index(int i, int parts, long layoutHash) {
+            if (i >= this.parts.length) {
+                this.parts = Arrays.copyOf(this.parts, i * 2);
+                this.layoutHash = Arrays.copyOf(this.layoutHash, i * 2);
+            }
+            this.parts[i] = parts;
+            this.layoutHash[i] = layoutHash;
+            index.put(segments.startAddress[i], i);
+        }
+
+        void clear() {
+            segments.clear();
+            index.clear();
+        }
+    }
+
+    /**
+     * Periodically resamples a process and reports the RSS growth per segment
+     * type and per malloc arena, as well as the segments that appeared or vanished.
+     */
+    static class Watcher {
+        private final Path procDir;
+        private final Duration interval;
+        private final SnapshotWriter recorder;
+        private final SmapsReader smapsReader = new SmapsReader();
+        private final SegmentTable segments = new SegmentTable(1024);
+        private final IncrementalClassifier classifier = new IncrementalClassifier(segments.mappings);
+        private final HeapViews heapViews = new HeapViews();
+        private final SampleDiff diff = new SampleDiff();
+
+        /**
+         * @param recorder appends each classified sample as a snapshot, may be null.
+         */
+        Watcher(Path procDir, Duration interval, SnapshotWriter recorder) {
+            this.procDir = procDir;
+            this.interval = interval;
+            this.recorder = recorder;
+        }
+
+        void run() throws IOException, InterruptedException {
+            var cmd = recorder != null ? SmapsReader.readCmdline(procDir.resolve("cmdline")) : null;
+            var nextSample = System.nanoTime();
+            for (int sample = 0; ; sample++) {
+                segments.clear();
+                try (var reader = smapsReader.open(procDir.resolve("smaps"))) {
+                    while (reader.fill(segments) > 0) {
+                        segments.grow();
+                    }
+                } catch (IOException | UncheckedIOException e) {
+                    System.out.printf("%nProcess %s is gone, stopping%n", procDir.getFileName());
+                    return;
+                }
+                var now = System.nanoTime();
+                var current = classifier.classify(segments);
+                heapViews.clear();
+                heapViews.retype(current.segments, 0, current.segments.size);
+                diff.report(sample,
+                            LocalDateTime.now(),
+                            now,
+                            current,
+                            String.format(", reclassified=%d reused=%d", classifier.reclassified, classifier.reused));
+                if (recorder != null) {
+                    recorder.write(cmd,
+                                   System.currentTimeMillis(),
+                                   current.segments,
+                                   GlobalStat.of(smapsReader.vsz_kib, smapsReader.rss_kib));
+                }
+
+                nextSample += interval.toNanos();
+                var sleepNanos = nextSample - System.nanoTime();
+                if (sleepNanos > 0) {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } else {
+                    nextSample = System.nanoTime(); // sampling slower than the interval, don't try to catch up
+                }
+            }
+        }
+    }
+
+    /**
+     * Reports the RSS growth between successive samples of a process, per segment
+     * type and per malloc arena, as well as the segments that appeared or vanished.
+     * The samples come from {@link Watcher} or from replayed snapshots.
+     */
+    static class SampleDiff {
+        private static final int MAX_LISTED = 10;
+
+        private ClassifiedRanges previous;
+        private final long[] previousRss = new long[rules.typeCount()];
+        private final long[] firstRss = new long[rules.typeCount()];
+        private long previousNanos;
+        private long firstNanos;
+
+        /**
+         * Reports the sample against the previous one, which must stay unchanged until this call.
+         *
+         * @param now    the time of the sample in nanoseconds, only the elapsed time between samples matters.
+         * @param detail appended to the elapsed time in the header of the deltas.
+         */
+        void report(int sample, LocalDateTime time, long now, ClassifiedRanges current, String detail) {
+            var rss = new long[rules.typeCount()];
+            var counts = new int[rules.typeCount()];
+            var order = new byte[rules.typeCount() * 2];
+            int orderSize = 0;
+            var ranges = current.segments;
+            for (int i = 0; i < ranges.size; i++) {
+                byte type = ranges.type[i];
+                if (counts[type]++ == 0) {
+                    order[orderSize++] = type;
+                }
+                rss[type] += ranges.rss_kib[i];
+            }
+
+            System.out.printf("%n--- sample %d at %s ---%n", sample, time.truncatedTo(ChronoUnit.SECONDS));
+            if (previous == null) {
+                System.out.printf("Memory mappings:%n");
+                for (int i = 0; i < orderSize; i++) {
+                    System.out.printf("%18s count=%-5s rss=%-10s%n",
+                                      rules.typeName(order[i]),
+                                      counts[order[i]],
+                                      rss[order[i]]);
+                }
+                System.arraycopy(rss, 0, firstRss, 0, rss.length);
+                firstNanos = now;
+            } else {
+                var elapsedMinutes = (now - previousNanos) / 60e9;
+                var totalMinutes = (now - firstNanos) / 60e9;
+                System.out.printf("Memory mappings (+%.1fs%s):%n", (now - previousNanos) / 1e9, detail);
+                // types that vanished since the previous sample are listed last
+                for (byte type = 0; type < previousRss.length; type++) {
+                    if (counts[type] == 0 && previousRss[type] != 0) {
+                        order[orderSize++] = type;
+                    }
+                }
+                for (int i = 0; i < orderSize; i++) {
+                    byte type = order[i];
+                    long delta = rss[type] - previousRss[type];
+                    long sinceStart = rss[type] - firstRss[type];
+                    System.out.printf("%18s count=%-5s rss=%-10s delta=%+-10d rate=%+.1f KiB/min overall=%+.1f KiB/min%n",
+                                      rules.typeName(type),
+                                      counts[type],
+                                      rss[type],
+                                      delta,
+                                      delta / elapsedMinutes,
+                                      sinceStart / totalMinutes);
+                }
+                reportArenas(current, elapsedMinutes);
+                reportAppearedAndVanished(current);
+            }
+            previous = current;
+            System.arraycopy(rss, 0, previousRss, 0, rss.length);
+            previousNanos = now;
+        }
+
+        private void reportArenas(ClassifiedRanges current, double elapsedMinutes) {
+            var ranges = current.segments;
+            var before = previous.segments;
+            var deltas = new long[ranges.size];
+            var changed = IntStream.range(0, ranges.size)
+                                   .filter(i -> ranges.isType(i, SegmentType.MALLOC_ARENA))
+                                   .filter(i -> {
+                                       int j = previous.indexOf(ranges.startAddress[i]);
+                                       if (j < 0 || !before.isType(j, SegmentType.MALLOC_ARENA)) {
+                                           return false;
+                                       }
+                                       deltas[i] = ranges.rss_kib[i] - before.rss_kib[j];
+                                       return deltas[i] != 0;
+                                   })
+                                   .boxed()
+                                   .sorted(Comparator.comparingLong((Integer i) -> Math.abs(deltas[i])).reversed())
+                                   .mapToInt(Integer::intValue)
+                                   .toArray();
+            if (changed.length == 0) {
+                return;
+            }
+            System.out.printf("Malloc arenas RSS changes (%d):%n", changed.length);
+            Arrays.stream(changed).limit(MAX_LISTED).forEach(i -> System.out.printf("%18s rss=%-10s delta=%+-10d rate=%+.1f KiB/min%n",
+                                                                                    Long.toHexString(ranges.startAddress[i]),
+                                                                                    ranges.rss_kib[i],
+                                                                                    deltas[i],
+                                                                                    deltas[i] / elapsedMinutes));
+            printMore(changed.length);
+        }
+
+        private void reportAppearedAndVanished(ClassifiedRanges current) {
+            var appeared = IntStream.range(0, current.segments.size)
+                                    .filter(i -> !sameRange(current, i, previous))
+                                    .toArray();
+            var vanished = IntStream.range(0, previous.segments.size)
+                                    .filter(i -> !sameRange(previous, i, current))
+                                    .toArray();
+            if (appeared.length > 0) {
+                System.out.printf("New segments (%d):%n", appeared.length);
+                Arrays.stream(appeared).limit(MAX_LISTED).forEach(i -> System.out.println(current.segments.toString(i)));
+                printMore(appeared.length);
+            }
+            if (vanished.length > 0) {
+                System.out.printf("Vanished segments (%d):%n", vanished.length);
+                Arrays.stream(vanished).limit(MAX_LISTED).forEach(i -> System.out.println(previous.segments.toString(i)));
+                printMore(vanished.length);
+            }
+        }
+
+        private static boolean sameRange(ClassifiedRanges ranges, int i, ClassifiedRanges other) {
+            int j = other.indexOf(ranges.segments.startAddress[i]);
+            return j >= 0
+                   && other.segments.type[j] == ranges.segments.type[i]
+                   && other.segments.size_kib[j] == ranges.segments.size_kib[i];
+        }
+
+        private static void printMore(int count) {
+            if (count > MAX_LISTED) {
+                System.out.printf("%18s ... and %d more%n", "", count - MAX_LISTED);
+            }
+        }
+    }
+
+    /**
+     * Appends classified samples to a snapshot file, to archive them compactly and
+     * replay them later without parsing nor classifying them again.
+     * <pre>
+     * file:     magic "JPMS", version byte, frames
+     * frame:    body length (4 bytes), body
+     * body:     time millis, cmd, vsz, rss, type names, mapping names, segment count, segments
+     * segment:  start address delta from the end of the previous segment (zigzag), size, rss, pss, swap,
+     *           anonymous huge pages, swap pss, locked, THP eligible, committed, permissions byte, type byte,
+     *           mapping name index, inode
+     * </pre>
+     * Version 1 snapshots have neither swap pss, locked nor THP eligible, they are read as 0.
+     * Before version 3 the committed size is read as the size of the accessible segments.
+     * Numbers are unsigned LEB128 varints, sizes in KiB, strings are a varint length followed
+     * by UTF-8 bytes. The names of the types of the rules and of the mappings its segments use
+     * are the string tables of the snapshot, so a snapshot can be read on its own.
+     *
+     * The segments of a sample are encoded as they are classified, the frame is written
+     * in a single append once the sample is complete.
+     */
+    static class SnapshotWriter implements SegmentRangeConsumer, Closeable {
+        static final byte[] MAGIC = {'J', 'P', 'M', 'S'};
+        static final byte VERSION = 3;
+
+        private final FileChannel channel;
+        private final VarintBuffer encodedSegments = new VarintBuffer(64 * 1024);
+        private final VarintBuffer frame = new VarintBuffer(64 * 1024);
+        private MappingDictionary mappings;
+        private int[] mappingIndex = new int[64]; // index in the snapshot + 1, 0 when not yet used
+        private int[] usedMappings = new int[64];
+        private int usedMappingCount;
+        private String cmd;
+        private long timeMillis;
+        private int segmentCount;
+        private long previousEnd;
+
+        private SnapshotWriter(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Opens the file for appending, it's created with the format header when empty. The frame
+         * a recorder killed while appending it left truncated is cut off, the new frames follow the
+         * last complete one.
+         *
+         * @throws IOException when the file is not a snapshot file of this format version.
+         */
+        static SnapshotWriter open(Path file) throws IOException {
+            var channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                if (channel.size() == 0) {
+                    var header = ByteBuffer.allocate(MAGIC.length + 1).put(MAGIC).put(VERSION).flip();
+                    while (header.hasRemaining()) {
+                        channel.write(header);
+                    }
+                } else {
+                    int version = SnapshotReader.checkHeader(channel, file);
+                    if (version != VERSION) {
+                        throw new IOException(String.format("it has the older snapshot format version %d, appending requires version %d", version, VERSION));
+                    }
+                    long end = new SnapshotReader(channel).index();
+                    if (end < channel.size()) {
+                        channel.truncate(end);
+                    }
+                }
+                channel.position(channel.size());
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            return new SnapshotWriter(channel);
+        }
+
+        void begin(String cmd, long timeMillis) {
+            this.cmd = cmd;
+            this.timeMillis = timeMillis;
+            encodedSegments.clear();
+            segmentCount = 0;
+            previousEnd = 0;
+            for (int i = 0; i < usedMappingCount; i++) {
+                mappingIndex[usedMappings[i]] = 0;
+            }
+            usedMappingCount = 0;
+        }
+
+        @Override
+        public void accept(SegmentTable segments, int from, int to) {
+            mappings = segments.mappings;
+            for (int i = from; i < to; i++) {
+                long start = segments.startAddress[i];
+                encodedSegments.putZigzag(start - previousEnd);
+                encodedSegments.putVarint(segments.size_kib[i]);
+                encodedSegments.putVarint(segments.rss_kib[i]);
+                encodedSegments.putVarint(segments.pss_kib[i]);
+                encodedSegments.putVarint(segments.swap_kib[i]);
+                encodedSegments.putVarint(segments.anon_huge_pages_kib[i]);
+                encodedSegments.putVarint(segments.swap_pss_kib[i]);
+                encodedSegments.putVarint(segments.locked_kib[i]);
+                encodedSegments.putVarint(segments.thp_eligible_kib[i]);
+                encodedSegments.putVarint(segments.committed_kib[i]);
+                encodedSegments.put(segments.permissions[i]);
+                encodedSegments.put(segments.type[i]);
+                encodedSegments.putVarint(snapshotMapping(segments.mapping[i]));
+                encodedSegments.putVarint(segments.inode[i]);
+                previousEnd = start + segments.size_kib[i] * 1024;
+                segmentCount++;
+            }
+        }
+
+        /**
+         * Appends the frame of the sample begun with {@link #begin}.
+         */
+        void end(GlobalStat globalStat) throws IOException {
+            frame.clear();
+            frame.putInt(0); // body length, set once known
+            frame.putVarint(timeMillis);
+            frame.putString(cmd);
+            frame.putString(globalStat.vsz_kib);
+            frame.putString(globalStat.rss_kib);
+            frame.putVarint(rules.typeCount());
+            for (int type = 0; type < rules.typeCount(); type++) {
+                frame.putString(rules.typeName(type));
+            }
+            frame.putVarint(usedMappingCount);
+            for (int i = 0; i < usedMappingCount; i++) {
+                frame.putString(mappings.name(usedMappings[i]));
+            }
+            frame.putVarint(segmentCount);
+            frame.put(encodedSegments);
+            frame.setInt(0, frame.size() - Integer.BYTES);
+
+            var buffer = frame.asByteBuffer();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+
+        /**
+         * Writes a complete sample.
+         */
+        void write(String cmd, long timeMillis, SegmentTable segments, GlobalStat globalStat) throws IOException {
+            begin(cmd, timeMillis);
+            accept(segments, 0, segments.size);
+            end(globalStat);
+        }
+
+        private int snapshotMapping(int mapping) {
+            if (mapping >= mappingIndex.length) {
+                mappingIndex = Arrays.copyOf(mappingIndex, Math.max(mapping + 1, mappingIndex.length * 2));
+            }
+            if (mappingIndex[mapping] == 0) {
+                if (usedMappingCount == usedMappings.length) {
+                    usedMappings = Arrays.copyOf(usedMappings, usedMappingCount * 2);
+                }
+                usedMappings[usedMappingCount++] = mapping;
+                mappingIndex[mapping] = usedMappingCount;
+            }
+            return mappingIndex[mapping] - 1;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * Growable byte array with the varint encoding of the snapshot format.
+     */
+    static class VarintBuffer {
+        private byte[] bytes;
+        private int size;
+
+        VarintBuffer(int capacity) {
+            bytes = new byte[capacity];
+        }
+
+        int size() {
+            return size;
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        void put(byte value) {
+            ensureCapacity(1);
+            bytes[size++] = value;
+        }
+
+        void put(VarintBuffer other) {
+            ensureCapacity(other.size);
+            System.arraycopy(other.bytes, 0, bytes, size, other.size);
+            size += other.size;
+        }
+
+        void putInt(int value) {
+            ensureCapacity(Integer.BYTES);
+            setInt(size, value);
+            size += Integer.BYTES;
+        }
+
+        void setInt(int position, int value) {
+            bytes[position] = (byte) (value >>> 24);
+            bytes[position + 1] = (byte) (value >>> 16);
+            bytes[position + 2] = (byte) (value >>> 8);
+            bytes[position + 3] = (byte) value;
+        }
+
+        void putVarint(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7FL) != 0) {
+                bytes[size++] = (byte) (value | 0x80);
+                value >>>= 7;
+            }
+            bytes[size++] = (byte) value;
+        }
+
+        /**
+         * Small negative values are encoded as small positive ones, -1 as 1, 1 as 2, ...
+         */
+        void putZigzag(long value) {
+            putVarint((value << 1) ^ (value >> 63));
+        }
+
+        void putString(String value) {
+            var utf8 = value.getBytes(StandardCharsets.UTF_8);
+            putVarint(utf8.length);
+            ensureCapacity(utf8.length);
+            System.arraycopy(utf8, 0, bytes, size, utf8.length);
+            size += utf8.length;
+        }
+
+        ByteBuffer asByteBuffer() {
+            return ByteBuffer.wrap(bytes, 0, size);
+        }
+
+        private void ensureCapacity(int length) {
+            if (size + length > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(size + length, bytes.length * 2));
+            }
+        }
+    }
+
+    /**
+     * Reads the snapshots of a file written by {@link SnapshotWriter}, any snapshot can be
+     * read directly, the frames are indexed when the file is opened and a snapshot is read
+     * from a memory mapping of its frame.
+     *
+     * A frame truncated by a recorder that got killed while appending it is ignored.
+     */
+    static class SnapshotReader implements Closeable {
+        private final FileChannel channel;
+        private long[] offsets = new long[64];
+        private int[] lengths = new int[64];
+        private int size;
+        private int version;
+
+        private SnapshotReader(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        static SnapshotReader open(Path file) throws IOException {
+            if (!Files.isReadable(file)) {
+                throw new IOException("it does not exists or is not readable");
+            }
+            var reader = new SnapshotReader(FileChannel.open(file));
+            try {
+                reader.version = checkHeader(reader.channel, file);
+                reader.index();
+            } catch (IOException e) {
+                reader.close();
+                throw e;
+            }
+            return reader;
+        }
+
+        /**
+         * @return the format version of the file, from 1 to {@link SnapshotWriter#VERSION}.
+         */
+        static int checkHeader(FileChannel channel, Path file) throws IOException {
+            var header = ByteBuffer.allocate(SnapshotWriter.MAGIC.length + 1);
+            channel.read(header, 0);
+            if (header.position() < header.capacity()
+                || !Arrays.equals(Arrays.copyOf(header.array(), SnapshotWriter.MAGIC.length), SnapshotWriter.MAGIC)) {
+                throw new IOException(file + " is not a snapshot file");
+            }
+            byte version = header.get(SnapshotWriter.MAGIC.length);
+            if (version < 1 || version > SnapshotWriter.VERSION) {
+                throw new IOException(String.format("%s has the snapshot format version %d, this version reads versions up to %d",
+                                                    file,
+                                                    version,
+                                                    SnapshotWriter.VERSION));
+            }
+            return version;
+        }
+
+        /**
+         * @return the end of the last complete frame.
+         */
+        private long index() throws IOException {
+            var length = ByteBuffer.allocate(Integer.BYTES);
+            long position = SnapshotWriter.MAGIC.length + 1;
+            long fileSize = channel.size();
+            while (position + Integer.BYTES <= fileSize) {
+                if (channel.read(length.clear(), position) < Integer.BYTES) {
+                    break;
+                }
+                int bodyLength = length.getInt(0);
+                long body = position + Integer.BYTES;
+                if (bodyLength < 0 || body + bodyLength > fileSize) {
+                    break; // truncated frame
+                }
+                if (size == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, size * 2);
+                    lengths = Arrays.copyOf(lengths, size * 2);
+                }
+                offsets[size] = body;
+                lengths[size++] = bodyLength;
+                position = body + bodyLength;
+            }
+            return position;
+        }
+
+        int size() {
+            return size;
+        }
+
+        /**
+         * Appends the segments of the snapshot to the table, as they were classified, the
+         * mapping names are interned in the table dictionary and the types are matched by
+         * name with the types of the current rules.
+         */
+        Snapshot read(int snapshot, SegmentTable segments) throws IOException {
+            var body = channel.map(FileChannel.MapMode.READ_ONLY, offsets[snapshot], lengths[snapshot]);
+            long timeMillis = getVarint(body);
+            var cmd = getString(body);
+            var globalStat = new GlobalStat(getString(body), getString(body));
+
+            var typeRemap = new byte[(int) getVarint(body)];
+            for (int i = 0; i < typeRemap.length; i++) {
+                var name = getString(body);
+                int type = 0;
+                while (type < rules.typeCount() && !rules.typeName(type).equals(name)) {
+                    type++;
+                }
+                if (type == rules.typeCount()) {
+                    throw new IOException(String.format("Snapshot %d has the segment type %s, unknown to the rules in use", snapshot, name));
+                }
+                typeRemap[i] = (byte) type;
+            }
+            var mappingRemap = new int[(int) getVarint(body)];
+            for (int i = 0; i < mappingRemap.length; i++) {
+                var name = getString(body);
+                mappingRemap[i] = segments.mappings.intern(name, 0, name.length());
+            }
+
+            long count = getVarint(body);
+            long previousEnd = 0;
+            for (long s = 0; s < count; s++) {
+                long start = previousEnd + getZigzag(body);
+                long size_kib = getVarint(body);
+                long rss_kib = getVarint(body);
+                long pss_kib = getVarint(body);
+                long swap_kib = getVarint(body);
+                long anon_huge_pages_kib = getVarint(body);
+                long swap_pss_kib = version >= 2 ? getVarint(body) : 0;
+                long locked_kib = version >= 2 ? getVarint(body) : 0;
+                long thp_eligible_kib = version >= 2 ? getVarint(body) : 0;
+                long committed_kib = version >= 3 ? getVarint(body) : -1;
+                byte permissions = body.get();
+                byte type = typeRemap[body.get()];
+                int mapping = mappingRemap[(int) getVarint(body)];
+                int i = segments.add(start, permissions, getVarint(body), mapping);
+                segments.size_kib[i] = size_kib;
+                segments.committed_kib[i] = committed_kib >= 0 ? committed_kib : permissions == Permissions.NONE ? 0 : size_kib;
+                segments.rss_kib[i] = rss_kib;
+                segments.pss_kib[i] = pss_kib;
+                segments.swap_kib[i] = swap_kib;
+                segments.anon_huge_pages_kib[i] = anon_huge_pages_kib;
+                segments.swap_pss_kib[i] = swap_pss_kib;
+                segments.locked_kib[i] = locked_kib;
+                segments.thp_eligible_kib[i] = thp_eligible_kib;
+                segments.type[i] = type;
+                previousEnd = start + size_kib * 1024;
+            }
+            return new Snapshot(timeMillis, cmd, globalStat);
+        }
+
+        private static long getVarint(ByteBuffer buffer) {
+            long value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = buffer.get();
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+        }
+
+        private static long getZigzag(ByteBuffer buffer) {
+            long value = getVarint(buffer);
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        private static String getString(ByteBuffer buffer) {
+            var utf8 = new byte[(int) getVarint(buffer)];
+            buffer.get(utf8);
+            return new String(utf8, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * Sample information of a snapshot, its segments are read in a {@link SegmentTable}.
+     */
+    static class Snapshot {
+        private final long timeMillis;
+        private final String cmd;
+        private final GlobalStat globalStat;
+
+        Snapshot(long timeMillis, String cmd, GlobalStat globalStat) {
+            this.timeMillis = timeMillis;
+            this.cmd = cmd;
+            this.globalStat = globalStat;
+        }
+
+        LocalDateTime time() {
+            return LocalDateTime.ofInstant(Instant.ofEpochMilli(timeMillis), ZoneId.systemDefault());
+        }
+    }
+
+    /**
+     * Classifies the mappings of a process on demand, to embed the inspector in an
+     * application, it neither prints nor exits. The smaps reader, the segment table
+     * and the classified ranges are reused between samples, only the ranges whose
+     * layout changed are classified again.
+     * <pre>
+     * var sampler = new JavaPmapInspector.MemorySampler(Paths.get("/proc/self"));
+     * sampler.sample();
+     * for (int type = 0; type &lt; sampler.typeCount(); type++) {
+     *     record(sampler.typeName(type), sampler.rss_kib(type));
+     * }
+     * </pre>
+     * A sampler has its own rules, the built-in ones unless a rules file is given, the
+     * configuration of the command line, see {@link #configure}, does not apply to it.
+     * A sampler is not thread safe.
+     */
+    public static class MemorySampler {
+        private final Path procDir;
+        private final ClassificationRules rules;
+        private final SmapsReader smapsReader = new SmapsReader();
+        private final SegmentTable segments;
+        private final IncrementalClassifier classifier;
+        private final HeapViews heapViews = new HeapViews();
+        private final long[] count;
+        private final long[] reserved_kib;
+        private final long[] rss_kib;
+        private long total_rss_kib;
+
+        public MemorySampler(Path procDir) throws IOException {
+            this(procDir, null);
+        }
+
+        /**
+         * @param rulesFile the rules tried before the built-in ones, or null.
+         * @throws IOException when the rules file can't be read.
+         * @throws IllegalArgumentException when a rule is invalid.
+         */
+        public MemorySampler(Path procDir, Path rulesFile) throws IOException {
+            this(procDir, rulesFile, JvmLayout.NONE);
+        }
+
+        MemorySampler(Path procDir, Path rulesFile, JvmLayout layout) throws IOException {
+            var config = new Config();
+            layout.configure(config);
+            this.procDir = procDir;
+            rules = ClassificationRules.load(rulesFile, config);
+            segments = new SegmentTable(1024, new MappingDictionary(rules));
+            classifier = new IncrementalClassifier(new MemorySegmentIdentifier(rules, layout), segments.mappings);
+            count = new long[rules.typeCount()];
+            reserved_kib = new long[rules.typeCount()];
+            rss_kib = new long[rules.typeCount()];
+        }
+
+        /**
+         * Reads and classifies the mappings of the process.
+         */
+        public void sample() throws IOException {
+            segments.clear();
+            try (var reader = smapsReader.open(procDir.resolve("smaps"))) {
+                while (reader.fill(segments) > 0) {
+                    segments.grow();
+                }
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            var ranges = classifier.classify(segments).segments;
+            heapViews.clear();
+            heapViews.retype(ranges, 0, ranges.size);
+            Arrays.fill(count, 0);
+            Arrays.fill(reserved_kib, 0);
+            Arrays.fill(rss_kib, 0);
+            total_rss_kib = 0;
+            for (int i = 0; i < ranges.size; i++) {
+                byte type = ranges.type[i];
+                count[type]++;
+                reserved_kib[type] += ranges.size_kib[i];
+                rss_kib[type] += ranges.rss_kib[i];
+                total_rss_kib += HeapViews.isHeapView(type) ? ranges.pss_kib[i] : ranges.rss_kib[i];
+            }
+        }
+
+        public int typeCount() {
+            return count.length;
+        }
+
+        public String typeName(int type) {
+            return rules.typeName(type);
+        }
+
+        /**
+         * @return the index of the type, or -1 when the rules don't have it.
+         */
+        public int typeOf(String name) {
+            for (int type = 0; type < count.length; type++) {
+                if (rules.typeName(type).equals(name)) {
+                    return type;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * @return the number of segments of the type in the last sample.
+         */
+        public long count(int type) {
+            return count[type];
+        }
+
+        public long reserved_kib(int type) {
+            return reserved_kib[type];
+        }
+
+        public long rss_kib(int type) {
+            return rss_kib[type];
+        }
 
-import static java.util.stream.Collectors.groupingBy;
+        /**
+         * @return the RSS of the process, the pages of a multi-mapped heap are counted once, see {@link HeapViews}.
+         */
+        public long rss_kib() {
+            return total_rss_kib;
+        }
+    }
 
-public class JavaPmapInspector {
-    private static final Pattern WHITE_SPACE_SEPARATOR = Pattern.compile("\\s+");
-    private static Config config;
+    /**
+     * Samples the process it's loaded in on a daemon thread, emits the breakdown as JFR
+     * events and optionally serves it in the Prometheus text format.
+     * <pre>
+     * -javaagent:java-pmap-inspector.jar=interval=10s,port=9464
+     * </pre>
+     * Arguments, comma separated: {@code interval} between samples (10s), {@code port} of the
+     * metrics endpoint (none by default), {@code host} it binds (127.0.0.1), {@code rules}
+     * file, {@code max-cpu} percent of a core the sampling may use (1). The {@link JvmLayout}
+     * of the JVM is read from its own diagnostic commands on the agent thread, before the first sample.
+     *
+     * The CPU time of each sample, kernel time spent generating smaps included, is measured
+     * on the sampling thread, when it exceeds the budget the next sample is delayed, so
+     * the overhead stays under it whatever the number of mappings. The metrics text is
+     * rendered after each sample, a scrape only copies it.
+     */
+    static class Agent implements Runnable {
+        private final Path rulesFile;
+        private final Duration interval;
+        private final double maxCpu;
+        private final String host;
+        private final int port;
+        private MemorySampler sampler;
+        private ThreadMXBean threads;
+        private int mallocArena;
+        private int javaThread;
 
-    public static void main(String[] args) throws IOException {
-        if (args.length < 1) {
-            System.err.println("Usage:");
-            System.err.println("   pmap -X pid > pmap.txt; java JavaPmapInspector.java pmap.txt");
-            System.err.println("   java JavaPmapInspector.java <(pmap -X pid)");
-            System.err.println("   pmap -X pid | java JavaPmapInspector.java -");
-            System.err.println();
-            System.err.println("Inspect `pmap -X` output of a java process, requires Java11.");
-            System.err.println();
-            System.err.println("WARNING: May not be 100% accurate as most memory mappings are anonymous, which ");
-            System.err.println("means that segment patterns with the same protections may be _bagged _ together.");
-            System.exit(1);
+        private volatile byte[] metrics = new byte[0];
+        private long samples;
+        private long failures;
+        private long cpuNanosTotal;
+
+        Agent(MemorySampler sampler, Path rulesFile, Duration interval, double maxCpu, String host, int port) {
+            this.rulesFile = rulesFile;
+            this.interval = interval;
+            this.maxCpu = maxCpu;
+            this.host = host;
+            this.port = port;
+            use(sampler);
         }
-        config = new Config();
-
-        List<String> lines = read(args);
-
-        System.out.printf("cmd: %s%n", lines.get(0));
-        var globalStat = GlobalStat.of(lines.get(lines.size() - 1));
-
-
-        var msi = new MemorySegmentIdentifier();
-        var memorySegments = lines.stream().skip(2)
-                                  .takeWhile(line -> !line.matches("\\s+====.*"))
-                                  .collect(Collector.of(
-                                          ArrayDeque<MemorySegment>::new,
-                                          (a, line) -> {
-                                              var memorySegmemt = MemorySegment.from(line);
-
-                                              if (a.isEmpty()) {
-                                                  a.add(memorySegmemt);
-//                                                  System.out.println("==> 1st  = " + memorySegmemt);
-                                              } else {
-                                                  SegmentIdentifierResult mergeResult = msi.tryMergeMapping(a.peekLast(), memorySegmemt);
-                                                  if (mergeResult != SegmentIdentifierResult.CONTIGUOUS_MAPPING) {
-                                                      a.add(memorySegmemt);
-                                                  }
-//                                                  System.out.printf("==> %s = %s as %s%n", mergeResult, memorySegmemt, a.peekLast().type);
-                                              }
-                                          },
-                                          (a, b) -> {
-                                              throw new UnsupportedOperationException();
-                                          }
-                                  ));
-
-        memorySegments.stream().filter(m -> m.type == SegmentType.UNKNOWN).forEach(System.out::println);
-
-        // Print report
-        System.out.printf("%nShared file mappings:%n");
-        var sharedMappings = memorySegments.stream()
-                                           .filter(m -> m.type == SegmentType.SHARED_MAPPED_FILE)
-                                           .collect(groupingBy(
-                                                   m -> m.mapping,
-                                                   LinkedHashMap::new,
-                                                   multiCollectorOf(List.of(
-                                                           Collectors.counting(),
-                                                           Collectors.summarizingLong(m1 -> m1.size_kib),
-                                                           Collectors.summarizingLong(m1 -> m1.rss_kib)
-                                                   ))
-                                           ));
-        sharedMappings.forEach((key, value) -> System.out.printf("%18s count=%-5s rssMin=%-10s rssMax=%-10s%n",
-                                                                 key,
-                                                                 value.get(0),
-                                                                 ((LongSummaryStatistics) value.get(1)).getMin(),
-                                                                 ((LongSummaryStatistics) value.get(1)).getMax()
-        ));
-
-        var result = memorySegments.stream().collect(groupingBy(
-                m -> m.type,
-                LinkedHashMap::new,
-                multiCollectorOf(List.of(
-                        Collectors.counting(),
-                        Collectors.summingLong(m1 -> m1.size_kib),
-                        Collectors.summingLong(m1 -> m1.rss_kib)
-                        // TODO rss stats (avg, etc.) ?
-                ))
-        ));
-
-        System.out.printf("%nMemory mappings:%n");
-        result.forEach((key, value) -> System.out.printf("%18s count=%-5s reserved=%-10s rss=%-10s%n",
-                                                         key,
-                                                         value.get(0),
-                                                         value.get(1),
-                                                         value.get(2)));
-        System.out.printf("%n");
-        System.out.printf("stats: %s%n", globalStat);
-    }
-
-
-    private static class Config {
-        private final long java_heap_max_start_address = Long.parseUnsignedLong("7f1000000000", 16);
 
-        private long page_size_kib = 4;
-        private int yellow_pages = 2;
-        private int red_pages = 1;
-        private int reserved_pages = 1;
-        private long thread_guard_pages_kib = (yellow_pages + red_pages + reserved_pages) * page_size_kib; // By default 2 Yellow + 1 Red + 1 Reserved * page size
-        // https://code.woboq.org/userspace/glibc/nptl/allocatestack.c.html#550
-        private long thread_size_kib = thread_guard_pages_kib + 1008 + page_size_kib; // glibc adds one page to the allocated stack size, if the size is multiple of 64K. This is to avoid aliasing problem.
+        private void use(MemorySampler sampler) {
+            this.sampler = sampler;
+            mallocArena = sampler.typeOf(SegmentType.MALLOC_ARENA.name());
+            javaThread = sampler.typeOf(SegmentType.JAVA_THREAD.name());
+        }
+
+        /**
+         * Starts the sampling thread, errors in the arguments or the rules file are thrown, so the JVM
+         * refuses to start, a JVM that loads the agent while running only fails to load it.
+         */
+        static Thread start(String agentArgs) throws IOException {
+            var interval = Duration.ofSeconds(10);
+            double maxCpu = 1;
+            var host = "127.0.0.1";
+            int port = -1;
+            Path rulesFile = null;
+            for (var arg : agentArgs == null || agentArgs.isBlank() ? new String[0] : agentArgs.split(",")) {
+                var keyValue = arg.split("=", 2);
+                var value = keyValue.length == 2 ? keyValue[1].strip() : "";
+                try {
+                    switch (keyValue[0].strip()) {
+                        case "interval":
+                            interval = Options.toDuration(value);
+                            break;
+                        case "port":
+                            port = Integer.parseUnsignedInt(value);
+                            break;
+                        case "host":
+                            host = value;
+                            break;
+                        case "rules":
+                            rulesFile = Paths.get(value);
+                            break;
+                        case "max-cpu":
+                            maxCpu = Double.parseDouble(value.endsWith("%") ? value.substring(0, value.length() - 1) : value);
+                            if (!(maxCpu > 0)) {
+                                throw new NumberFormatException(value);
+                            }
+                            break;
+                        default:
+                            throw new IllegalArgumentException("Unknown pmap inspector agent argument '" + arg + "'");
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid pmap inspector agent argument '" + arg + "'", e);
+                }
+            }
+            // the rules are checked now, the layout is read on the agent thread
+            var agent = new Agent(new MemorySampler(Paths.get("/proc/self"), rulesFile), rulesFile, interval, maxCpu, host, port);
+            var thread = new Thread(agent, "pmap-inspector-agent");
+            thread.setDaemon(true);
+            thread.start();
+            return thread;
+        }
+
+        /**
+         * Reads the layout of this JVM, so its heap, stacks and code heaps are typed from the
+         * first sample, the sampler keeps classifying without it when the diagnostic commands
+         * can't be run.
+         *
+         * It runs on the agent thread, the platform MBean server the diagnostic commands need
+         * also initializes JMX and the logging, which must not happen before the application
+         * configured them, e.g. with {@code java.util.logging.manager}.
+         */
+        private void readLayout() {
+            try {
+                var layout = JvmLayout.current();
+                if (!layout.isEmpty()) {
+                    use(new MemorySampler(Paths.get("/proc/self"), rulesFile, layout));
+                }
+            } catch (IOException | RuntimeException e) {
+                System.err.printf("pmap inspector agent: JVM layout not read, %s%n", e);
+            }
+        }
 
-        private final int glibc_guard_page_kib = 4;
+        @Override
+        public void run() {
+            threads = ManagementFactory.getThreadMXBean();
+            readLayout();
+            if (port >= 0) {
+                // started from this daemon thread, the server dispatcher thread is a daemon too
+                try {
+                    var server = HttpServer.create(new InetSocketAddress(host, port), 0);
+                    server.createContext("/metrics", exchange -> {
+                        var body = metrics;
+                        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                        exchange.sendResponseHeaders(200, body.length);
+                        try (var out = exchange.getResponseBody()) {
+                            out.write(body);
+                        }
+                    });
+                    server.start();
+                } catch (IOException e) {
+                    System.err.printf("pmap inspector agent: metrics endpoint not started on %s:%d, %s%n", host, port, e);
+                }
+            }
 
-        private long non_java_thread_size_kib = 1028 + glibc_guard_page_kib; // TODO why 1028 and not 1024 ? aliasing counter measure ?
+            while (true) {
+                long cpuNanos = threads.getCurrentThreadCpuTime();
+                try {
+                    sampler.sample();
+                    samples++;
+                } catch (IOException e) {
+                    if (failures++ == 0) {
+                        System.err.printf("pmap inspector agent: sampling failed, %s%n", e);
+                    }
+                }
+                cpuNanos = threads.getCurrentThreadCpuTime() - cpuNanos;
+                cpuNanosTotal += cpuNanos;
+                // keeps the sampling CPU time under the budget, a slow sample spaces the next ones
+                long delay = Math.max(interval.toNanos(), (long) (cpuNanos * 100 / maxCpu));
+                emitEvents(cpuNanos);
+                metrics = renderMetrics(cpuNanos, delay).getBytes(StandardCharsets.UTF_8);
+                try {
+                    TimeUnit.NANOSECONDS.sleep(delay);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
 
-        private long malloc_arena_size_kib = 64 * 1024;
+        private void emitEvents(long cpuNanos) {
+            for (int type = 0; type < sampler.typeCount(); type++) {
+                if (sampler.count(type) == 0) {
+                    continue;
+                }
+                var event = new SegmentTypeEvent();
+                if (!event.shouldCommit()) {
+                    break;
+                }
+                event.type = sampler.typeName(type);
+                event.count = sampler.count(type);
+                event.reserved = sampler.reserved_kib(type) * 1024;
+                event.rss = sampler.rss_kib(type) * 1024;
+                event.commit();
+            }
+            var event = new NativeMemoryEvent();
+            if (event.shouldCommit()) {
+                event.rss = sampler.rss_kib() * 1024;
+                event.mallocArenas = mallocArena >= 0 ? sampler.count(mallocArena) : 0;
+                event.mallocArenaRss = mallocArena >= 0 ? sampler.rss_kib(mallocArena) * 1024 : 0;
+                event.javaThreads = javaThread >= 0 ? sampler.count(javaThread) : 0;
+                event.javaThreadStackRss = javaThread >= 0 ? sampler.rss_kib(javaThread) * 1024 : 0;
+                event.sampleCpuTime = cpuNanos;
+                event.commit();
+            }
+        }
+
+        private String renderMetrics(long cpuNanos, long delayNanos) {
+            var text = new StringBuilder(4096);
+            gauge(text, "pmap_segment_count", "Number of memory segments per type.");
+            for (int type = 0; type < sampler.typeCount(); type++) {
+                text.append("pmap_segment_count{type=\"").append(sampler.typeName(type)).append("\"} ").append(sampler.count(type)).append('\n');
+            }
+            gauge(text, "pmap_segment_reserved_bytes", "Reserved virtual memory per segment type.");
+            for (int type = 0; type < sampler.typeCount(); type++) {
+                text.append("pmap_segment_reserved_bytes{type=\"").append(sampler.typeName(type)).append("\"} ").append(sampler.reserved_kib(type) * 1024).append('\n');
+            }
+            gauge(text, "pmap_segment_rss_bytes", "Resident memory per segment type.");
+            for (int type = 0; type < sampler.typeCount(); type++) {
+                text.append("pmap_segment_rss_bytes{type=\"").append(sampler.typeName(type)).append("\"} ").append(sampler.rss_kib(type) * 1024).append('\n');
+            }
+            gauge(text, "pmap_rss_bytes", "Resident memory of the process.");
+            text.append("pmap_rss_bytes ").append(sampler.rss_kib() * 1024).append('\n');
+            gauge(text, "pmap_sample_cpu_seconds", "CPU time of the last sample.");
+            text.append("pmap_sample_cpu_seconds ").append(cpuNanos / 1e9).append('\n');
+            gauge(text, "pmap_sample_interval_seconds", "Delay before the next sample, longer than the interval when over the CPU budget.");
+            text.append("pmap_sample_interval_seconds ").append(delayNanos / 1e9).append('\n');
+            counter(text, "pmap_sampler_cpu_seconds_total", "CPU time spent sampling.");
+            text.append("pmap_sampler_cpu_seconds_total ").append(cpuNanosTotal / 1e9).append('\n');
+            counter(text, "pmap_samples_total", "Samples taken.");
+            text.append("pmap_samples_total ").append(samples).append('\n');
+            counter(text, "pmap_sample_failures_total", "Samples that could not be read.");
+            text.append("pmap_sample_failures_total ").append(failures).append('\n');
+            return text.toString();
+        }
 
+        private static void gauge(StringBuilder text, String name, String help) {
+            text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            text.append("# TYPE ").append(name).append(" gauge\n");
+        }
+
+        private static void counter(StringBuilder text, String name, String help) {
+            text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            text.append("# TYPE ").append(name).append(" counter\n");
+        }
     }
 
+    @Name("io.github.bric3.pmap.SegmentType")
+    @Label("Memory Segment Type")
+    @Description("Memory mappings of the process of a segment type")
+    @Category({"Java Application", "Native Memory"})
+    @StackTrace(false)
+    static class SegmentTypeEvent extends Event {
+        @Label("Type")
+        String type;
 
-    private static class MemorySegment {
+        @Label("Count")
+        long count;
 
+        @Label("Reserved")
+        @DataAmount
+        long reserved;
 
-        private final String[] fields;
-        private final long startAddress;
-        private final long inode;
-        private long size_kib;
-        private long rss_kib;
-        private String mapping = "";
+        @Label("RSS")
+        @DataAmount
+        long rss;
+    }
+
+    @Name("io.github.bric3.pmap.NativeMemory")
+    @Label("Native Memory")
+    @Description("Resident memory of the process, of the malloc arenas and of the Java thread stacks")
+    @Category({"Java Application", "Native Memory"})
+    @StackTrace(false)
+    static class NativeMemoryEvent extends Event {
+        @Label("RSS")
+        @DataAmount
+        long rss;
+
+        @Label("Malloc Arenas")
+        long mallocArenas;
+
+        @Label("Malloc Arenas RSS")
+        @DataAmount
+        long mallocArenaRss;
 
-        private SegmentType type = SegmentType.UNKNOWN;
-        private final String permissions;
+        @Label("Java Threads")
+        long javaThreads;
 
-        public MemorySegment(String line) {
-            fields = WHITE_SPACE_SEPARATOR.split(line.trim());
-            startAddress = Long.parseUnsignedLong(fields[0], 16);
-            permissions = fields[1];
-            size_kib = Long.parseLong(fields[5]);
-            rss_kib = Long.parseLong(fields[6]);
-            inode = Long.parseLong(fields[4]);
-            if (fields.length == 19) {
-                mapping = fields[18];
+        @Label("Java Thread Stacks RSS")
+        @DataAmount
+        long javaThreadStackRss;
+
+        @Label("Sample CPU Time")
+        @Timespan
+        long sampleCpuTime;
+    }
+
+    /**
+     * Inspects every Java process of the host, their smaps are read and
+     * classified concurrently, each process by its own reader, segment table
+     * and {@link MemorySegmentIdentifier}.
+     *
+     * The processes with the most threads, hence the most mappings, are
+     * submitted first, so the wall time stays close to the largest process one.
+     */
+    static class FleetInspector {
+        private final Path proc;
+
+        FleetInspector(Path proc) {
+            this.proc = proc;
+        }
+
+        void run() throws IOException, InterruptedException {
+            var self = Long.toString(ProcessHandle.current().pid());
+            List<Path> processes;
+            try (var dirs = Files.list(proc)) {
+                processes = dirs.filter(dir -> dir.getFileName().toString().chars().allMatch(Character::isDigit))
+                                .filter(dir -> !dir.getFileName().toString().equals(self))
+                                .filter(FleetInspector::isJava)
+                                .collect(Collectors.toList());
+            }
+            var threads = new LinkedHashMap<Path, Long>();
+            processes.forEach(dir -> threads.put(dir, threadCount(dir)));
+            processes.sort(Comparator.comparing((Path dir) -> threads.get(dir)).reversed());
+
+            var executor = Executors.newFixedThreadPool(Math.max(1, Math.min(processes.size(), Runtime.getRuntime().availableProcessors())),
+                                                        runnable -> {
+                                                            var thread = new Thread(runnable, "fleet-inspector");
+                                                            thread.setDaemon(true);
+                                                            return thread;
+                                                        });
+            var inspections = new ArrayList<Future<ProcessSummary>>();
+            for (var dir : processes) {
+                inspections.add(executor.submit(() -> inspect(dir)));
             }
+            var summaries = new ArrayList<ProcessSummary>();
+            for (int i = 0; i < inspections.size(); i++) {
+                try {
+                    var summary = inspections.get(i).get();
+                    if (summary != null) {
+                        summaries.add(summary);
+                    }
+                } catch (ExecutionException e) {
+                    // an error, the process is skipped like the others that failed
+                    System.err.printf("Process %s skipped, %s%n", processes.get(i).getFileName(), e.getCause());
+                }
+            }
+            executor.shutdown();
+
+            summaries.sort(Comparator.comparingLong((ProcessSummary summary) -> summary.rss_kib).reversed());
+            print(summaries, processes.size() - summaries.size());
         }
 
-        public static MemorySegment from(String line) {
-            return new MemorySegment(line);
+        /**
+         * @return the summary of the process, or null when it exited during the scan, can't be read,
+         * or its mappings could not be classified, a single process never aborts the run.
+         */
+        private static ProcessSummary inspect(Path procDir) {
+            try (var smapsReader = new SmapsReader().open(procDir.resolve("smaps"))) {
+                var summary = new ProcessSummary(procDir.getFileName().toString(),
+                                                 SmapsReader.readCmdline(procDir.resolve("cmdline")));
+                classify(smapsReader, new SegmentTable(BATCH_SIZE), new MemorySegmentIdentifier(), HeapViews.retyping(summary::add));
+                return summary;
+            } catch (IOException | UncheckedIOException e) {
+                return null;
+            } catch (RuntimeException e) {
+                System.err.printf("Process %s skipped, %s%n", procDir.getFileName(), e);
+                return null;
+            }
         }
 
+        static boolean isJava(Path procDir) {
+            try {
+                if (Files.readString(procDir.resolve("comm")).strip().equals("java")) {
+                    return true;
+                }
+                // the launcher may have renamed its main thread, the command is still java
+                var cmd = SmapsReader.readCmdline(procDir.resolve("cmdline"));
+                var executable = cmd.split(" ", 2)[0];
+                return executable.equals("java") || executable.endsWith("/java");
+            } catch (IOException | UncheckedIOException e) {
+                return false;
+            }
+        }
 
-        @Override
-        public String toString() {
-            return String.format("type=%18s startAddress=%-16s perm=%s size=%-10d rss=%-10s mapping=%s",
-                                 type,
-                                 Long.toHexString(startAddress),
-                                 permissions,
-                                 size_kib,
-                                 rss_kib,
-                                 mapping);
+        /**
+         * @return the number of threads from {@code /proc/<pid>/stat}, 0 when unknown.
+         */
+        private static long threadCount(Path procDir) {
+            try {
+                var stat = Files.readString(procDir.resolve("stat"));
+                // the command between parentheses may contain spaces, num_threads is the 18th field after it
+                var fields = WHITE_SPACE_SEPARATOR.split(stat.substring(stat.lastIndexOf(')') + 2));
+                return Long.parseLong(fields[17]);
+            } catch (IOException | RuntimeException e) {
+                return 0;
+            }
+        }
+
+        private static void print(List<ProcessSummary> summaries, int skipped) {
+            var count = new long[rules.typeCount()];
+            var reserved = new long[rules.typeCount()];
+            var rss = new long[rules.typeCount()];
+            long total_rss_kib = 0;
+            for (var summary : summaries) {
+                for (int type = 0; type < count.length; type++) {
+                    count[type] += summary.count[type];
+                    reserved[type] += summary.reserved[type];
+                    rss[type] += summary.rss[type];
+                }
+                total_rss_kib += summary.rss_kib;
+            }
+            var types = IntStream.range(0, count.length).filter(type -> count[type] > 0).toArray();
+
+            System.out.printf("Java processes: %d", summaries.size());
+            if (skipped > 0) {
+                System.out.printf(" (%d skipped, exited, not readable or failed)", skipped);
+            }
+            System.out.printf("%n%nRSS per process (KiB):%n");
+            var header = new StringBuilder(String.format("%8s", "pid"));
+            for (int type : types) {
+                header.append(String.format(" %" + columnWidth(type) + "s", rules.typeName(type)));
+            }
+            System.out.printf("%s %10s  %s%n", header, "rss", "cmd");
+            for (var summary : summaries) {
+                var row = new StringBuilder(String.format("%8s", summary.pid));
+                for (int type : types) {
+                    row.append(String.format(" %" + columnWidth(type) + "d", summary.rss[type]));
+                }
+                System.out.printf("%s %10d  %s%n", row, summary.rss_kib, abbreviate(summary.cmd));
+            }
+
+            System.out.printf("%nHost memory mappings:%n");
+            for (int type : types) {
+                System.out.printf("%18s count=%-5s reserved=%-10s rss=%-10s%n",
+                                  rules.typeName(type),
+                                  count[type],
+                                  reserved[type],
+                                  rss[type]);
+            }
+            System.out.printf("%n");
+            System.out.printf("stats: processes=%d rss=%s kib%n", summaries.size(), total_rss_kib);
+        }
+
+        private static int columnWidth(int type) {
+            return Math.max(10, rules.typeName(type).length());
+        }
+
+        private static String abbreviate(String cmd) {
+            return cmd.length() <= 80 ? cmd : cmd.substring(0, 77) + "...";
         }
     }
 
-    private static class MemorySegmentIdentifier {
-        SegmentIdentifierResult tryMergeMapping(MemorySegment lowerAddressBlock,
-                                                MemorySegment higherAddressBlock) {
+    /**
+     * Per-type totals of the segments of a process.
+     */
+    static class ProcessSummary {
+        private final String pid;
+        private final String cmd;
+        private final long[] count = new long[rules.typeCount()];
+        private final long[] reserved = new long[rules.typeCount()];
+        private final long[] rss = new long[rules.typeCount()];
+        private long rss_kib;
 
-            // Identifies Linux kernel specific mappings
-            // https://stackoverflow.com/questions/19938324/what-are-vdso-and-vsyscall
-            // https://lwn.net/Articles/615809/
-            if (higherAddressBlock.mapping != null) {
-                if (Set.of("[vsyscall]", "[vdso]", "[vvar]").contains(higherAddressBlock.mapping)) {
-                    higherAddressBlock.type = SegmentType.KERNEL_MAPPING;
-                    return SegmentIdentifierResult.SINGLE_SEGMENT_MAPPING;
+        ProcessSummary(String pid, String cmd) {
+            this.pid = pid;
+            this.cmd = cmd;
+        }
+
+        void add(SegmentTable segments, int from, int to) {
+            for (int i = from; i < to; i++) {
+                byte type = segments.type[i];
+                count[type]++;
+                reserved[type] += segments.size_kib[i];
+                rss[type] += segments.rss_kib[i];
+                rss_kib += segments.rss_kib[i];
+            }
+        }
+    }
+
+    /**
+     * Reads {@code /proc/<pid>/smaps} without forking {@code pmap}.
+     *
+     * The file is read through a reused buffer and the mapping header lines
+     * and the interesting {@code Key: value kB} lines are parsed straight from
+     * the bytes into the segment table. Mapping names are interned in the
+     * table dictionary, so a String is only created for a name never seen before.
+     */
+    static class SmapsReader implements SegmentSource, Closeable {
+        private static final byte[] SIZE = "Size:".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] RSS = "Rss:".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] PSS = "Pss:".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] SWAP = "Swap:".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] SWAP_PSS = "SwapPss:".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] ANON_HUGE_PAGES = "AnonHugePages:".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] LOCKED = "Locked:".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] THP_ELIGIBLE = "THPeligible:".getBytes(StandardCharsets.US_ASCII);
+
+        private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        private FileChannel channel;
+        private boolean eof;
+        private int lineStart;
+        private int lineEnd;
+        private long vsz_kib;
+        private long rss_kib;
+        private boolean hasAnonHugePages;
+
+        /**
+         * Opens the file, the reader and its buffer can be reused for another file once closed.
+         */
+        SmapsReader open(Path smaps) throws IOException {
+            close();
+            channel = FileChannel.open(smaps);
+            eof = false;
+            vsz_kib = 0;
+            rss_kib = 0;
+            hasAnonHugePages = false;
+            buffer.clear().flip();
+            return this;
+        }
+
+        @Override
+        public int fill(SegmentTable segments) {
+            var bytes = buffer.array();
+            int first = segments.size;
+            int row = -1;
+            while (nextLine()) {
+                int from = lineStart;
+                int to = lineEnd;
+                if (isHeader()) {
+                    if (segments.isFull()) {
+                        // keep the header for the next batch, the segments in the table are complete
+                        buffer.position(from);
+                        break;
+                    }
+                    row = parseHeader(segments, bytes, from, to);
+                } else if (row < 0) {
+                    continue;
+                } else if (startsWith(bytes, from, to, SIZE)) {
+                    segments.size_kib[row] = parseDecimal(bytes, from + SIZE.length, to);
+                    segments.committed_kib[row] = segments.permissions[row] == Permissions.NONE ? 0 : segments.size_kib[row];
+                } else if (startsWith(bytes, from, to, RSS)) {
+                    segments.rss_kib[row] = parseDecimal(bytes, from + RSS.length, to);
+                } else if (startsWith(bytes, from, to, PSS)) {
+                    segments.pss_kib[row] = parseDecimal(bytes, from + PSS.length, to);
+                } else if (startsWith(bytes, from, to, SWAP)) {
+                    segments.swap_kib[row] = parseDecimal(bytes, from + SWAP.length, to);
+                } else if (startsWith(bytes, from, to, SWAP_PSS)) {
+                    segments.swap_pss_kib[row] = parseDecimal(bytes, from + SWAP_PSS.length, to);
+                } else if (startsWith(bytes, from, to, ANON_HUGE_PAGES)) {
+                    segments.anon_huge_pages_kib[row] = parseDecimal(bytes, from + ANON_HUGE_PAGES.length, to);
+                    hasAnonHugePages = true;
+                } else if (startsWith(bytes, from, to, LOCKED)) {
+                    segments.locked_kib[row] = parseDecimal(bytes, from + LOCKED.length, to);
+                } else if (startsWith(bytes, from, to, THP_ELIGIBLE)) {
+                    // a flag, the size is known as the Size field comes first
+                    segments.thp_eligible_kib[row] = parseDecimal(bytes, from + THP_ELIGIBLE.length, to) == 1 ? segments.size_kib[row] : 0;
                 }
-                if (Objects.equals("[heap]", higherAddressBlock.mapping)) {
-                    higherAddressBlock.type = SegmentType.MAIN_NATIVE_HEAP;
-                    return SegmentIdentifierResult.SINGLE_SEGMENT_MAPPING;
+            }
+            for (int i = first; i < segments.size; i++) {
+                vsz_kib += segments.size_kib[i];
+                rss_kib += segments.rss_kib[i];
+            }
+            return segments.size - first;
+        }
+
+        @Override
+        public boolean hasAnonHugePages() {
+            return hasAnonHugePages;
+        }
+
+        /**
+         * @return the Rss of {@code smaps_rollup}, or the given summed Rss when
+         * the kernel does not provide it (before 4.14).
+         */
+        static long readRollupRss(Path smapsRollup, long summedRss) {
+            var rollup = new SegmentTable(1);
+            try (var smapsReader = new SmapsReader().open(smapsRollup)) {
+                return smapsReader.fill(rollup) > 0 ? rollup.rss_kib[0] : summedRss;
+            } catch (IOException | UncheckedIOException ignored) {
+                return summedRss;
+            }
+        }
+
+        static String readCmdline(Path cmdline) throws IOException {
+            var bytes = Files.readAllBytes(cmdline);
+            for (int i = 0; i < bytes.length; i++) {
+                if (bytes[i] == 0) {
+                    bytes[i] = ' ';
                 }
-                if (Objects.equals("[stack]", higherAddressBlock.mapping)) {
-                    higherAddressBlock.type = SegmentType.MAIN_NATIVE_STACK;
-                    return SegmentIdentifierResult.SINGLE_SEGMENT_MAPPING;
+            }
+            return new String(bytes, StandardCharsets.UTF_8).trim();
+        }
+
+        @Override
+        public void close() {
+            if (channel == null) {
+                return;
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                channel = null;
+            }
+        }
+
+        /**
+         * Mapping header lines start with the lowercase hex start address, field lines with a capitalized key
+         * <pre>
+         *     7f66b834e000-7f66b8349000 rw-p 00000000 00:00 0                          [stack]
+         *     Size:               1012 kB
+         * </pre>
+         */
+        private boolean isHeader() {
+            return lineStart < lineEnd && hexDigit(buffer.get(lineStart)) >= 0;
+        }
+
+        /**
+         * Moves to the next line in the buffer, refilling it when there's no complete line left.
+         */
+        private boolean nextLine() {
+            try {
+                for (; ; ) {
+                    var bytes = buffer.array();
+                    for (int i = buffer.position(); i < buffer.limit(); i++) {
+                        if (bytes[i] == '\n') {
+                            lineStart = buffer.position();
+                            lineEnd = i;
+                            buffer.position(i + 1);
+                            return true;
+                        }
+                    }
+                    if (eof) {
+                        if (!buffer.hasRemaining()) {
+                            return false;
+                        }
+                        lineStart = buffer.position();
+                        lineEnd = buffer.limit();
+                        buffer.position(buffer.limit());
+                        return true;
+                    }
+                    if (buffer.position() == 0 && buffer.limit() == buffer.capacity()) {
+                        throw new IOException("Line too long in smaps");
+                    }
+                    buffer.compact();
+                    // procfs files report a size of 0, read until EOF
+                    eof = channel.read(buffer) < 0;
+                    buffer.flip();
                 }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
             }
+        }
 
+        private static int parseHeader(SegmentTable segments, byte[] bytes, int from, int to) {
+            int i = from;
+            long startAddress = 0;
+            int digit;
+            while (i < to && (digit = hexDigit(bytes[i])) >= 0) {
+                startAddress = (startAddress << 4) | digit;
+                i++;
+            }
+            i = skipField(bytes, i, to); // end address
+            i = skipSpaces(bytes, i, to);
 
-            // https://github.com/corretto/corretto-11/blob/3b31d243a19774bebde63df21cc84e994a89439a/src/src/hotspot/os/linux/os_linux.cpp#L6048-L6085
+            byte permissions = i + 4 <= to ? Permissions.parse(bytes, i) : Permissions.NONE;
+            i = skipField(bytes, i, to);
+            i = skipSpaces(bytes, i, to);
+            long offset = 0;
+            while (i < to && (digit = hexDigit(bytes[i])) >= 0) {
+                offset = (offset << 4) | digit;
+                i++;
+            }
+            i = skipField(bytes, skipSpaces(bytes, i, to), to); // device
+            i = skipSpaces(bytes, i, to);
+            long inode = 0;
+            while (i < to && bytes[i] >= '0' && bytes[i] <= '9') {
+                inode = inode * 10 + (bytes[i] - '0');
+                i++;
+            }
+            i = skipSpaces(bytes, i, to);
 
-            // Java thread pattern
-            //     7f66b834a000 ---p 00000000  00:00       0       16       0       0          0         0        0              0              0               0    0       0      0           0
-            //     7f66b834e000 rw-p 00000000  00:00       0     1012      92      92         92        92        0              0              0               0    0       0      0           0
-            if (lowerAddressBlock.permissions.equals("---p")
-                && lowerAddressBlock.size_kib == config.thread_guard_pages_kib
-                && higherAddressBlock.permissions.equals("rw-p")
-                && (lowerAddressBlock.size_kib + higherAddressBlock.size_kib) == config.thread_size_kib
-                && lowerAddressBlock.type == SegmentType.UNKNOWN) { // segment not already identified
+            // Mimics pmap that only displays the file name of a mapped file
+            if (i < to && bytes[i] == '/') {
+                for (int j = to - 1; j >= i; j--) {
+                    if (bytes[j] == '/') {
+                        i = j + 1;
+                        break;
+                    }
+                }
+            }
+            int row = segments.add(startAddress, permissions, inode, segments.mappings.intern(bytes, i, to));
+            segments.offset[row] = offset;
+            return row;
+        }
 
-                lowerAddressBlock.type = SegmentType.JAVA_THREAD;
-                lowerAddressBlock.size_kib += higherAddressBlock.size_kib;
-                lowerAddressBlock.rss_kib += higherAddressBlock.rss_kib;
+        private static boolean startsWith(byte[] bytes, int from, int to, byte[] prefix) {
+            return to - from >= prefix.length
+                   && Arrays.equals(bytes, from, from + prefix.length, prefix, 0, prefix.length);
+        }
 
-                return SegmentIdentifierResult.CONTIGUOUS_MAPPING;
+        private static long parseDecimal(byte[] bytes, int from, int to) {
+            int i = skipSpaces(bytes, from, to);
+            long value = 0;
+            while (i < to && bytes[i] >= '0' && bytes[i] <= '9') {
+                value = value * 10 + (bytes[i] - '0');
+                i++;
             }
+            return value;
+        }
 
-            // Non java thread
-            //     7f69eb8f6000 ---p 00000000  00:00       0        4       0       0          0         0        0              0              0               0    0       0      0           0
-            //     7f69eb8f7000 rw-p 00000000  00:00       0     1028      12      12         12        12        0              0              0               0    0       0      0           0
-            if (lowerAddressBlock.permissions.equals("---p")
-                && lowerAddressBlock.size_kib == config.glibc_guard_page_kib
-                && higherAddressBlock.permissions.equals("rw-p")
-                && (lowerAddressBlock.size_kib + higherAddressBlock.size_kib) == config.non_java_thread_size_kib) {
+        private static int skipField(byte[] bytes, int i, int to) {
+            while (i < to && bytes[i] != ' ') {
+                i++;
+            }
+            return i;
+        }
 
-                lowerAddressBlock.type = SegmentType.NON_JAVA_THREAD;
-                lowerAddressBlock.size_kib += higherAddressBlock.size_kib;
-                lowerAddressBlock.rss_kib += higherAddressBlock.rss_kib;
+        private static int skipSpaces(byte[] bytes, int i, int to) {
+            while (i < to && (bytes[i] == ' ' || bytes[i] == '\t')) {
+                i++;
+            }
+            return i;
+        }
 
-                return SegmentIdentifierResult.CONTIGUOUS_MAPPING;
+        private static int hexDigit(byte b) {
+            if (b >= '0' && b <= '9') {
+                return b - '0';
             }
+            if (b >= 'a' && b <= 'f') {
+                return b - 'a' + 10;
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Streams the {@code pmap -X} output, line by line.
+     *
+     * A sample starts with the command line and the column header, then one
+     * line per mapping until the {@code ====} separator that is followed by
+     * the total line. The mapping lines are parsed in place into the segment table.
+     */
+    static class PmapReader implements SegmentSource, Closeable {
+        // columns of the header line, read by name since they depend on the kernel and procps versions
+        private static final String[] COLUMNS = {
+                "Address", "Perm", "Inode", "Size", "Rss", "Pss", "Swap", "SwapPss", "AnonHugePages", "Locked", "THPeligible", "Mapping", "Offset"
+        };
+        private static final int ADDRESS = 0;
+        private static final int PERM = 1;
+        private static final int INODE = 2;
+        private static final int SIZE = 3;
+        private static final int RSS = 4;
+        private static final int PSS = 5;
+        private static final int SWAP = 6;
+        private static final int SWAP_PSS = 7;
+        private static final int ANON_HUGE_PAGES = 8;
+        private static final int LOCKED = 9;
+        private static final int THP_ELIGIBLE = 10;
+        private static final int MAPPING = 11;
+        private static final int OFFSET = 12;
 
+        private final BufferedReader reader;
+        private final int[] columnFields = new int[COLUMNS.length]; // field index of each column, -1 when absent
+        private int[] fieldStarts = new int[0];
+        private int[] fieldEnds = new int[0];
+        private String cmd;
+        private GlobalStat globalStat;
+        private boolean endOfSample;
+        private long vsz_kib;
+        private long rss_kib;
 
-            // Malloc Arena thread pattern, only recognize blocks of 64MiB
-            //     7f672c000000 rw-p 00000000  00:00       0     9568    9452    9452       9452      9452        0              0              0               0    0       0      0           0
-            //     7f672c958000 ---p 00000000  00:00       0    55968       0       0          0         0        0              0              0               0    0       0      0           0
-            if (lowerAddressBlock.permissions.equals("rw-p")
-                && higherAddressBlock.permissions.equals("---p")
-                && (lowerAddressBlock.size_kib + higherAddressBlock.size_kib) / config.malloc_arena_size_kib == 1
-                && lowerAddressBlock.type == SegmentType.UNKNOWN) { // segment not already identified
+        private PmapReader(BufferedReader reader) {
+            this.reader = reader;
+        }
 
-                lowerAddressBlock.type = SegmentType.MALLOC_ARENA;
-                lowerAddressBlock.size_kib += higherAddressBlock.size_kib;
-                lowerAddressBlock.rss_kib += higherAddressBlock.rss_kib;
+        static PmapReader open(String input) throws IOException {
+            if (Objects.equals(input, "-")) {
+                return new PmapReader(new BufferedReader(new InputStreamReader(System.in)));
+            }
 
-                return SegmentIdentifierResult.CONTIGUOUS_MAPPING;
+            Path pmap = Paths.get(input);
+            if (!Files.isReadable(pmap)) {
+                throw new IOException(String.format("File '%s' does not exists or is not readable", input));
             }
+            return new PmapReader(Files.newBufferedReader(pmap));
+        }
 
-            // Mapped file
-            //     7f6b17490000 r-xp 00000000  08:01 3531531    17672   14912   14912      14912         0        0              0              0               0    0       0      0           0 libjvm.so
-            //     7f6b185d2000 ---p 01142000  08:01 3531531     2044       0       0          0         0        0              0              0               0    0       0      0           0 libjvm.so
-            //     7f6b187d1000 r--p 01141000  08:01 3531531      764     764     764        764       764        0              0              0               0    0       0      0           0 libjvm.so
-            //     7f6b18890000 rw-p 01200000  08:01 3531531      232     232     232        232       208        0              0              0               0    0       0      0           0 libjvm.so
-            if (lowerAddressBlock.inode > 0) {
-                lowerAddressBlock.type = SegmentType.MAPPED_FILE;
-                if (lowerAddressBlock.permissions.matches("[r-][w-]-s")) {
-                    lowerAddressBlock.type = SegmentType.SHARED_MAPPED_FILE;
+        boolean nextSample() throws IOException {
+            do {
+                cmd = reader.readLine();
+                if (cmd == null) {
+                    return false;
                 }
-                if (lowerAddressBlock.inode == higherAddressBlock.inode) {
-                    lowerAddressBlock.size_kib += higherAddressBlock.size_kib;
-                    lowerAddressBlock.rss_kib += higherAddressBlock.rss_kib;
+            } while (cmd.isBlank());
+            parseHeader(reader.readLine());
+            globalStat = null;
+            endOfSample = false;
+            vsz_kib = 0;
+            rss_kib = 0;
+            return true;
+        }
 
-                    return SegmentIdentifierResult.CONTIGUOUS_MAPPING;
+        @Override
+        public int fill(SegmentTable segments) throws IOException {
+            int first = segments.size;
+            while (!endOfSample && !segments.isFull()) {
+                var line = reader.readLine();
+                if (line == null) {
+                    endOfSample = true;
+                } else if (isSeparator(line)) {
+                    var total = reader.readLine();
+                    if (total != null) {
+                        globalStat = GlobalStat.of(total);
+                    }
+                    endOfSample = true;
+                } else {
+                    int i = parseLine(segments, line);
+                    vsz_kib += segments.size_kib[i];
+                    rss_kib += segments.rss_kib[i];
                 }
-                return SegmentIdentifierResult.FIRST_OF_CONTIGUOUS_SEGMENT_MAPPING;
             }
+            return segments.size - first;
+        }
 
+        /**
+         * @return the total line of the sample, or the sums of the segments
+         * when the input got truncated before it.
+         */
+        GlobalStat globalStat() {
+            return globalStat != null ? globalStat : GlobalStat.of(vsz_kib, rss_kib);
+        }
 
-            // Java Heap
-            //        740000000 rw-p 00000000  00:00       0  3164800 2746068 2746068    2746068   2746068        0              0              0               0    0       0      0           0
-            //        8012a0000 ---p 00000000  00:00       0  1029504       0       0          0         0        0              0              0               0    0       0      0           0
-            // 3gb heap (740000000 -> 800000000) + 1260000 (19267584 bytes, 18816 kib) of compressed class space ?
-//            if (startAddress < config.java_heap_max_start_address) {
-//                type = SegmentType.JAVA_HEAP;
-//            }
+        @Override
+        public boolean hasAnonHugePages() {
+            return columnFields[ANON_HUGE_PAGES] >= 0;
+        }
 
-            if (lowerAddressBlock.startAddress < config.java_heap_max_start_address
-                && lowerAddressBlock.permissions.equals("rw-p")
-                && higherAddressBlock.permissions.equals("---p")
-                && lowerAddressBlock.type == SegmentType.UNKNOWN) {
-                lowerAddressBlock.type = SegmentType.JAVA_HEAP;
-                lowerAddressBlock.size_kib += higherAddressBlock.size_kib;
-                lowerAddressBlock.rss_kib += higherAddressBlock.rss_kib;
+        /**
+         * Locates the columns in the header line, the kernel and procps versions list different columns, e.g.
+         * <pre>
+         *          Address Perm   Offset Device    Inode    Size     Rss     Pss Referenced Anonymous ... Swap SwapPss Locked THPeligible Mapping
+         * </pre>
+         */
+        private void parseHeader(String header) {
+            var names = header == null ? new String[0] : WHITE_SPACE_SEPARATOR.split(header.strip());
+            Arrays.fill(columnFields, -1);
+            for (int field = 0; field < names.length; field++) {
+                for (int column = 0; column < COLUMNS.length; column++) {
+                    if (COLUMNS[column].equals(names[field])) {
+                        columnFields[column] = field;
+                    }
+                }
+            }
+            for (int column : new int[]{ADDRESS, PERM, INODE, SIZE, RSS}) {
+                if (columnFields[column] < 0) {
+                    throw new NumberFormatException("Not a pmap -X header, no " + COLUMNS[column] + " column: " + header);
+                }
+            }
+            // the mapping name is the rest of the line, it may contain spaces
+            int fields = columnFields[MAPPING] >= 0 ? columnFields[MAPPING] + 1 : names.length;
+            fieldStarts = new int[fields];
+            fieldEnds = new int[fields];
+        }
 
-                return SegmentIdentifierResult.CONTIGUOUS_MAPPING;
+        /**
+         * Splits the line on white spaces, the mapping name is the rest of the line after the last column.
+         */
+        private int parseLine(SegmentTable segments, String line) {
+            int fields = 0;
+            int i = 0;
+            int length = line.length();
+            while (fields < fieldStarts.length) {
+                while (i < length && Character.isWhitespace(line.charAt(i))) {
+                    i++;
+                }
+                if (i == length) {
+                    break;
+                }
+                fieldStarts[fields] = i;
+                while (i < length && !Character.isWhitespace(line.charAt(i))) {
+                    i++;
+                }
+                fieldEnds[fields++] = i;
+            }
+            if (fields <= columnFields[RSS]) {
+                throw new NumberFormatException("Not a pmap -X mapping line: " + line);
+            }
+            int mapping = MappingDictionary.ANONYMOUS;
+            int mappingField = columnFields[MAPPING];
+            if (mappingField >= 0 && fields == mappingField + 1) {
+                int end = length;
+                while (Character.isWhitespace(line.charAt(end - 1))) {
+                    end--;
+                }
+                mapping = segments.mappings.intern(line, fieldStarts[mappingField], end);
             }
+            int row = segments.add(parseLong(line, columnFields[ADDRESS], 16),
+                                   Permissions.parse(line, fieldStarts[columnFields[PERM]]),
+                                   parseLong(line, columnFields[INODE], 10),
+                                   mapping);
+            segments.offset[row] = columnFields[OFFSET] >= 0 ? parseLong(line, columnFields[OFFSET], 16) : 0;
+            segments.size_kib[row] = parseLong(line, columnFields[SIZE], 10);
+            segments.committed_kib[row] = segments.permissions[row] == Permissions.NONE ? 0 : segments.size_kib[row];
+            segments.rss_kib[row] = parseLong(line, columnFields[RSS], 10);
+            segments.pss_kib[row] = parseColumn(line, fields, PSS);
+            segments.swap_kib[row] = parseColumn(line, fields, SWAP);
+            segments.swap_pss_kib[row] = parseColumn(line, fields, SWAP_PSS);
+            segments.anon_huge_pages_kib[row] = parseColumn(line, fields, ANON_HUGE_PAGES);
+            segments.locked_kib[row] = parseColumn(line, fields, LOCKED);
+            segments.thp_eligible_kib[row] = parseColumn(line, fields, THP_ELIGIBLE) == 1 ? segments.size_kib[row] : 0;
+            return row;
+        }
 
+        /**
+         * @return the value of an optional column, 0 when the header does not have it.
+         */
+        private long parseColumn(String line, int fields, int column) {
+            int field = columnFields[column];
+            return field >= 0 && field < fields && field != columnFields[MAPPING] ? parseLong(line, field, 10) : 0;
+        }
 
-            // Code Heap
-            //     7f297490d000 rwxp 00000000  00:00       0     2496    1016    1016       1016      1016        0              0              0               0    0       0      0           0
-            //     7f2974b7d000 ---p 00000000  00:00       0     3196       0       0          0         0        0              0              0               0    0       0      0           0
-            //     7f2974e9c000 rwxp 00000000  00:00       0    63616   63588   63588      63588     63588        0              0              0               0    0       0      0           0
-            //     7f2978cbc000 ---p 00000000  00:00       0    56416       0       0          0         0        0              0              0               0    0       0      0           0
-            //     7f297c3d4000 rwxp 00000000  00:00       0    49344   49320   49320      49320     49320        0              0              0               0    0       0      0           0
-            //     7f297f404000 ---p 00000000  00:00       0    70692       0       0          0         0        0              0              0               0    0       0      0           0
-            if (lowerAddressBlock.permissions.equals("rwxp")
-                && higherAddressBlock.permissions.equals("---p")) {
-                lowerAddressBlock.type = SegmentType.CODE_HEAP;
-                lowerAddressBlock.size_kib += higherAddressBlock.size_kib;
-                lowerAddressBlock.rss_kib += higherAddressBlock.rss_kib;
+        private long parseLong(String line, int field, int radix) {
+            int from = fieldStarts[field];
+            int to = fieldEnds[field];
+            long value = 0;
+            for (int i = from; i < to; i++) {
+                int digit = Character.digit(line.charAt(i), radix);
+                if (digit < 0) {
+                    throw new NumberFormatException("For input string: \"" + line.substring(from, to) + "\"");
+                }
+                value = value * radix + digit;
+            }
+            return value;
+        }
 
-                return SegmentIdentifierResult.CONTIGUOUS_MAPPING;
+        private static boolean isSeparator(String line) {
+            int i = 0;
+            while (i < line.length() && Character.isWhitespace(line.charAt(i))) {
+                i++;
             }
+            return i > 0 && line.startsWith("====", i);
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+
+    /**
+     * Generates a deterministic {@code pmap -X} and smaps dump of a JVM process,
+     * along with the expected classification of its segments.
+     *
+     * The layout follows the one of a JVM on Linux x86_64: the Java heap and the
+     * compressed class space low in the address space, the {@code java} launcher and
+     * the main native heap, then the mmap area where Java and native threads,
+     * 64 MiB malloc arenas, mapped files and unidentified anonymous blocks are
+     * interleaved around the code heap, and finally the main stack and the kernel
+     * mappings. The same seed and number of mappings always give the same dump.
+     */
+    static class SyntheticProcess {
+        private static final long JAVA_HEAP_START = 0x700000000L;
+        private static final long EXECUTABLE_START = 0x55d4c8a00000L;
+        private static final long MMAP_START = 0x7f2000000000L;
+        private static final long STACK_START = 0x7ffd4e200000L;
+        private static final long VSYSCALL_START = 0xffffffffff600000L;
+        private static final long ARENA_SIZE_KIB = 65536;
+        private static final int MAX_ARENAS = 512; // 8 * cores on a 64 cores host
+        private static final int TAIL_MAPPINGS = 8; // ld.so, main stack and kernel mappings
+        private static final int PID = 4242;
+
+        private final int mappings;
+        private final long seed;
 
+        // the blocks of the segment being generated
+        private final long[] start = new long[4];
+        private final long[] offset = new long[4];
+        private final long[] size_kib = new long[4];
+        private final long[] rss_kib = new long[4];
+        private final long[] anon_huge_pages_kib = new long[4];
+        private final long[] swap_kib = new long[4];
+        private final boolean[] thp_eligible = new boolean[4];
+        private final byte[] permissions = new byte[4];
+        private int parts;
+        private long inode;
+        private String path;
+        private SegmentType type;
 
-            // Unknown pattern 16 + 3060
-            //     7f66c4989000 ---p 00000000  00:00       0       16       0       0          0         0        0              0              0               0    0       0      0           0
-            //     7f66c498d000 rw-p 00000000  00:00       0     3060    2140    2140       2140      2140        0              0              0               0    0       0      0           0
-            if (lowerAddressBlock.permissions.equals("---p")
-                && higherAddressBlock.permissions.equals("rw-p")
-                && (lowerAddressBlock.size_kib + higherAddressBlock.size_kib) == 16 + 3060) {
+        private SplittableRandom random;
+        private long cursor;
+        private long nextInode;
+        private int emitted;
 
-                lowerAddressBlock.type = SegmentType.UNKNOWN_SEGMENT1;
-                lowerAddressBlock.size_kib += higherAddressBlock.size_kib;
-                lowerAddressBlock.rss_kib += higherAddressBlock.rss_kib;
+        SyntheticProcess(int mappings, long seed) {
+            this.mappings = mappings;
+            this.seed = seed;
+        }
+
+        /**
+         * Writes the {@code pmap -X} dump, the smaps dump and the expected classification
+         * in {@code <prefix>.pmap}, {@code <prefix>.smaps} and {@code <prefix>.expected}.
+         */
+        void writeAll(String prefix) throws IOException {
+            writePmap(Paths.get(prefix + ".pmap"));
+            writeSmaps(Paths.get(prefix + ".smaps"));
+            writeExpected(Paths.get(prefix + ".expected"));
+        }
 
-                return SegmentIdentifierResult.CONTIGUOUS_MAPPING;
+        void writePmap(Path pmap) throws IOException {
+            try (var out = new PrintStream(new BufferedOutputStream(Files.newOutputStream(pmap)), false, StandardCharsets.US_ASCII)) {
+                out.printf("%d:   java -Xms4g -Xmx4g -XX:+AlwaysPreTouch -jar synthetic.jar --mappings=%d --seed=%d%n", PID, mappings, seed);
+                out.printf("         Address Perm   Offset Device    Inode    Size     Rss     Pss Referenced Anonymous LazyFree ShmemPmdMapped Shared_Hugetlb Private_Hugetlb Swap SwapPss Locked THPeligible Mapping%n");
+                var totals = new long[3];
+                generate(() -> {
+                    for (int part = 0; part < parts; part++) {
+                        boolean anonymous = inode == 0 || (permissions[part] & Permissions.SHARED) == 0 && (permissions[part] & Permissions.WRITE) != 0;
+                        var line = String.format("%16x %s %08x %s %8d %7d %7d %7d %10d %9d %8d %14d %14d %15d %4d %7d %6d %11d %s",
+                                                 start[part],
+                                                 Permissions.toString(permissions[part]),
+                                                 offset[part],
+                                                 inode == 0 ? "00:00" : "fd:01",
+                                                 inode,
+                                                 size_kib[part],
+                                                 rss_kib[part],
+                                                 rss_kib[part],
+                                                 rss_kib[part],
+                                                 anonymous ? rss_kib[part] : 0,
+                                                 0, 0, 0, 0,
+                                                 swap_kib[part],
+                                                 swap_kib[part],
+                                                 0,
+                                                 thp_eligible[part] ? 1 : 0,
+                                                 path);
+                        out.println(line.stripTrailing());
+                        totals[0] += size_kib[part];
+                        totals[1] += rss_kib[part];
+                        totals[2] += swap_kib[part];
+                    }
+                });
+                out.printf("                                             ======= ======= ======= ========== ========= ======== ============== ============== =============== ==== ======= ====== ===========%n");
+                out.printf("                                             %7d %7d %7d %10d %9d %8d %14d %14d %15d %4d %7d %6d %11d KB %n",
+                           totals[0], totals[1], totals[1], totals[1], 0, 0, 0, 0, 0, totals[2], totals[2], 0, 0);
             }
+        }
 
-            // Unkownn segment
-            //     7f66c4c8a000 rw-p 00000000  00:00       0     2048    2048    2048       2048      2048        0              0              0               0    0       0      0           0
-            if (lowerAddressBlock.size_kib == 2048) {
-                lowerAddressBlock.type = SegmentType.UNKNOWN_SEGMENT2;
-                return SegmentIdentifierResult.SINGLE_SEGMENT_MAPPING;
+        void writeSmaps(Path smaps) throws IOException {
+            try (var out = new PrintStream(new BufferedOutputStream(Files.newOutputStream(smaps)), false, StandardCharsets.US_ASCII)) {
+                generate(() -> {
+                    for (int part = 0; part < parts; part++) {
+                        var header = String.format("%08x-%08x %s %08x %s %d ",
+                                                   start[part],
+                                                   start[part] + size_kib[part] * 1024,
+                                                   Permissions.toString(permissions[part]),
+                                                   offset[part],
+                                                   inode == 0 ? "00:00" : "fd:01",
+                                                   inode);
+                        if (inode != 0) {
+                            // the kernel pads the path to the 73rd column
+                            out.printf("%-72s/opt/synthetic/%s%n", header, path);
+                        } else if (!path.isEmpty()) {
+                            out.printf("%-72s%s%n", header, path);
+                        } else {
+                            out.println(header);
+                        }
+                        boolean dirty = (permissions[part] & Permissions.WRITE) != 0;
+                        boolean anonymous = inode == 0 || dirty && (permissions[part] & Permissions.SHARED) == 0;
+                        printSmapsField(out, "Size:", size_kib[part]);
+                        printSmapsField(out, "KernelPageSize:", 4);
+                        printSmapsField(out, "MMUPageSize:", 4);
+                        printSmapsField(out, "Rss:", rss_kib[part]);
+                        printSmapsField(out, "Pss:", rss_kib[part]);
+                        printSmapsField(out, "Shared_Clean:", 0);
+                        printSmapsField(out, "Shared_Dirty:", 0);
+                        printSmapsField(out, "Private_Clean:", dirty ? 0 : rss_kib[part]);
+                        printSmapsField(out, "Private_Dirty:", dirty ? rss_kib[part] : 0);
+                        printSmapsField(out, "Referenced:", rss_kib[part]);
+                        printSmapsField(out, "Anonymous:", anonymous ? rss_kib[part] : 0);
+                        printSmapsField(out, "LazyFree:", 0);
+                        printSmapsField(out, "AnonHugePages:", anon_huge_pages_kib[part]);
+                        printSmapsField(out, "ShmemPmdMapped:", 0);
+                        printSmapsField(out, "FilePmdMapped:", 0);
+                        printSmapsField(out, "Shared_Hugetlb:", 0);
+                        printSmapsField(out, "Private_Hugetlb:", 0);
+                        printSmapsField(out, "Swap:", swap_kib[part]);
+                        printSmapsField(out, "SwapPss:", swap_kib[part]);
+                        printSmapsField(out, "Locked:", 0);
+                        out.printf("THPeligible:    %d%n", thp_eligible[part] ? 1 : 0);
+                        out.printf("VmFlags: %s%n", vmFlags(permissions[part]));
+                    }
+                });
             }
+        }
 
-            // other unknown possibilites
-            // * Direct ByteBuffers
-            // * Memory allocated by Unsafe.allocateMemory
-            // * Unclosed resources (e.g. ZipInputStream)
-            // * other native libraries
-            return SegmentIdentifierResult.UNKNOWN_SINGLE_SEGMENT_MAPPING;
+        /**
+         * One line per segment: start address, type and size in KiB, in address order.
+         */
+        void writeExpected(Path expected) throws IOException {
+            try (var out = new PrintStream(new BufferedOutputStream(Files.newOutputStream(expected)), false, StandardCharsets.US_ASCII)) {
+                out.printf("# start_address type size_kib%n");
+                generate(() -> {
+                    long total_kib = 0;
+                    for (int part = 0; part < parts; part++) {
+                        total_kib += size_kib[part];
+                    }
+                    out.printf("%x %s %d%n", start[0], type, total_kib);
+                });
+            }
         }
 
-    }
+        /**
+         * Classifies the segments of the source and compares them to the expected classification.
+         *
+         * @return the differences, empty when the segments are classified as expected.
+         */
+        static List<String> verify(SegmentSource source, Path expected) throws IOException {
+            var lines = Files.readAllLines(expected);
+            lines.removeIf(line -> line.startsWith("#"));
+            var differences = new ArrayList<String>();
+            var next = new int[1];
+            classify(source, new SegmentTable(BATCH_SIZE), new MemorySegmentIdentifier(), (segments, from, to) -> {
+                for (int i = from; i < to; i++) {
+                    var actual = String.format("%x %s %d", segments.startAddress[i], segments.typeName(i), segments.size_kib[i]);
+                    var line = next[0] < lines.size() ? lines.get(next[0]) : "<none>";
+                    if (!line.equals(actual)) {
+                        differences.add(String.format("segment %d: expected '%s', got '%s'", next[0], line, actual));
+                    }
+                    next[0]++;
+                }
+            });
+            if (next[0] != lines.size()) {
+                differences.add(String.format("expected %d segments, got %d", lines.size(), next[0]));
+            }
+            return differences;
+        }
 
-    private enum SegmentIdentifierResult {
-        SINGLE_SEGMENT_MAPPING,
-        UNKNOWN_SINGLE_SEGMENT_MAPPING,
-        CONTIGUOUS_MAPPING,
-        FIRST_OF_CONTIGUOUS_SEGMENT_MAPPING,
-    }
+        /**
+         * Prints {@code Key: value kB} like the kernel does, the value is right aligned on the 24th column.
+         */
+        private static void printSmapsField(PrintStream out, String key, long value_kib) {
+            var value = Long.toString(value_kib);
+            var line = new StringBuilder(32).append(key);
+            for (int i = key.length() + value.length(); i < 24; i++) {
+                line.append(' ');
+            }
+            out.println(line.append(value).append(" kB"));
+        }
 
-    private enum SegmentType {
-        UNKNOWN,
-        MALLOC_ARENA,
-        MAPPED_FILE,
-        KERNEL_MAPPING,
-        MAIN_NATIVE_HEAP,
-        MAIN_NATIVE_STACK,
-        NON_JAVA_THREAD,
-        JAVA_HEAP,
-        JAVA_THREAD,
-        UNKNOWN_SEGMENT1,
-        UNKNOWN_SEGMENT2,
-        CODE_HEAP, SHARED_MAPPED_FILE,
-    }
+        private static String vmFlags(byte permissions) {
+            var flags = new StringBuilder();
+            if ((permissions & Permissions.READ) != 0) {
+                flags.append("rd ");
+            }
+            if ((permissions & Permissions.WRITE) != 0) {
+                flags.append("wr ");
+            }
+            if ((permissions & Permissions.EXECUTE) != 0) {
+                flags.append("ex ");
+            }
+            if ((permissions & Permissions.SHARED) != 0) {
+                flags.append("sh ");
+            }
+            return flags.append("mr mw me ac sd").toString();
+        }
 
+        /**
+         * Generates the segments in address order, the action is called with the blocks of each segment.
+         */
+        private void generate(Runnable segment) {
+            random = new SplittableRandom(seed);
+            nextInode = 1_310_000;
+            emitted = 0;
 
-    private static List<String> read(String[] args) throws IOException {
-        if (Objects.equals(args[0], "-")) {
-            try (var br = new BufferedReader(new InputStreamReader(System.in))) {
-                var lines = new ArrayList<String>(128);
-                for (; ; ) {
-                    String line = br.readLine();
-                    if (line == null)
-                        break;
-                    lines.add(line);
+            cursor = JAVA_HEAP_START;
+            anonymous(SegmentType.JAVA_HEAP);
+            block(Permissions.READ_WRITE, 3 * 1024 * 1024, pages(512 * 1024, 3 * 1024 * 1024));
+            // the pre-touched heap is backed by huge pages, except for its unaligned tail
+            anon_huge_pages_kib[0] = rss_kib[0] / config.huge_page_size_kib * config.huge_page_size_kib;
+            block(Permissions.NONE, 1024 * 1024, 0);
+            emit(segment);
+            // the compressed class space follows the heap, it's reported as Java heap, khugepaged did not collapse it yet
+            anonymous(SegmentType.JAVA_HEAP);
+            block(Permissions.READ_WRITE, 18816, pages(4096, 18816));
+            block(Permissions.NONE, 1048576 - 18816, 0);
+            emit(segment);
+
+            cursor = EXECUTABLE_START;
+            library("java", 4, 4, 4, 4);
+            emit(segment);
+            gap();
+            named(SegmentType.MAIN_NATIVE_HEAP, "[heap]");
+            block(Permissions.READ_WRITE, 14336, pages(1024, 14336));
+            emit(segment);
+
+            cursor = MMAP_START;
+            int arenas = 0;
+            boolean codeHeap = false;
+            while (emitted < mappings - TAIL_MAPPINGS) {
+                if (!codeHeap && emitted >= mappings / 3) {
+                    codeHeap(segment, 2496, 3200);
+                    codeHeap(segment, 11776, 107596);
+                    codeHeap(segment, 29440, 90000);
+                    // the reserved part of the code heap would merge with a following guard page
+                    library("libjvm.so", 1024, 15872, 768, 232);
+                    emit(segment);
+                    codeHeap = true;
+                    continue;
+                }
+                int pick = random.nextInt(100);
+                if (pick < 30) {
+                    javaThread();
+                } else if (pick < 35) {
+                    nativeThread();
+                } else if (pick < 40 && arenas < MAX_ARENAS) {
+                    arena();
+                    arenas++;
+                } else if (pick < 55) {
+                    library(String.format("libsynthetic%05d.so", emitted),
+                            pages(4, 400),
+                            pages(4, 8000),
+                            pages(4, 200),
+                            pages(4, 64));
+                } else if (pick < 85) {
+                    indexFile();
+                } else {
+                    anonymous(SegmentType.UNKNOWN);
+                    long size_kib = pages(4, 1020);
+                    block(Permissions.READ_WRITE, size_kib, pages(0, size_kib));
                 }
-                return lines;
+                emit(segment);
             }
+            // the mapping named blocks are typed on their own, the lower block must already be identified
+            library("ld-linux-x86-64.so.2", 4, 148, 40, 8);
+            emit(segment);
+
+            cursor = STACK_START;
+            named(SegmentType.MAIN_NATIVE_STACK, "[stack]");
+            block(Permissions.READ_WRITE, 136, pages(16, 136));
+            emit(segment);
+            gap();
+            named(SegmentType.KERNEL_MAPPING, "[vvar]");
+            block(Permissions.READ, 16, 0);
+            emit(segment);
+            named(SegmentType.KERNEL_MAPPING, "[vdso]");
+            block((byte) (Permissions.READ | Permissions.EXECUTE), 8, 4);
+            emit(segment);
+            cursor = VSYSCALL_START;
+            named(SegmentType.KERNEL_MAPPING, "[vsyscall]");
+            block(Permissions.EXECUTE, 4, 0);
+            emit(segment);
         }
 
-        Path pmap = Paths.get(args[0]);
-        if (!Files.isReadable(pmap)) {
-            System.err.printf("File '%s' does not exists or is not readable ", args[0]);
-            System.exit(1);
+        private void javaThread() {
+            anonymous(SegmentType.JAVA_THREAD);
+            block(Permissions.NONE, config.thread_guard_pages_kib, 0);
+            long stack_kib = config.javaThreadSize_kib(config.thread_stack_size_kib) - config.thread_guard_pages_kib;
+            block(Permissions.READ_WRITE, stack_kib, pages(8, 400));
+        }
+
+        private void nativeThread() {
+            anonymous(SegmentType.NON_JAVA_THREAD);
+            block(Permissions.NONE, config.glibc_guard_page_kib, 0);
+            long stack_kib = config.nonJavaThreadSize_kib() - config.glibc_guard_page_kib;
+            block(Permissions.READ_WRITE, stack_kib, pages(8, 64));
+        }
+
+        private void arena() {
+            // arenas are aligned on their size
+            long alignment = ARENA_SIZE_KIB * 1024;
+            cursor = (cursor + alignment - 1) & -alignment;
+            anonymous(SegmentType.MALLOC_ARENA);
+            long used_kib;
+            do {
+                used_kib = pages(132, ARENA_SIZE_KIB - 4);
+            } while (used_kib == 2048 || used_kib == 2044); // would merge with a thread (total=3076)
+            block(Permissions.READ_WRITE, used_kib, pages(4, used_kib));
+            // some of the freed chunks got swapped out
+            swap_kib[0] = (used_kib - rss_kib[0]) / 8 / config.page_size_kib * config.page_size_kib;
+            block(Permissions.NONE, ARENA_SIZE_KIB - used_kib, 0);
+        }
+
+        private void codeHeap(Runnable segment, long committed_kib, long reserved_kib) {
+            anonymous(SegmentType.CODE_HEAP);
+            block(Permissions.READ_WRITE_EXECUTE, committed_kib, pages(committed_kib / 4, committed_kib));
+            block(Permissions.NONE, reserved_kib, 0);
+            emit(segment);
+        }
+
+        private void library(String name, long... parts_kib) {
+            file(SegmentType.MAPPED_FILE, name);
+            byte[] libraryPermissions = {
+                    Permissions.READ,
+                    Permissions.READ | Permissions.EXECUTE,
+                    Permissions.READ,
+                    Permissions.READ_WRITE
+            };
+            for (int part = 0; part < parts_kib.length; part++) {
+                block(libraryPermissions[part], parts_kib[part], pages(0, parts_kib[part]));
+            }
+        }
+
+        /**
+         * A memory mapped index file, like the Lucene segments of a search engine.
+         */
+        private void indexFile() {
+            file(SegmentType.SHARED_MAPPED_FILE, String.format("_%s.cfs", Long.toString(nextInode, 36)));
+            long size_kib = pages(4, 65536);
+            block((byte) (Permissions.READ | Permissions.SHARED), size_kib, pages(0, size_kib));
+        }
+
+        private void anonymous(SegmentType type) {
+            segment(type, 0, "");
+        }
+
+        private void named(SegmentType type, String name) {
+            segment(type, 0, name);
+        }
+
+        private void file(SegmentType type, String name) {
+            segment(type, nextInode++, name);
+        }
+
+        private void segment(SegmentType type, long inode, String path) {
+            this.type = type;
+            this.inode = inode;
+            this.path = path;
+            parts = 0;
+        }
+
+        private void block(byte permissions, long size_kib, long rss_kib) {
+            start[parts] = cursor;
+            offset[parts] = inode == 0 || parts == 0 ? 0 : offset[parts - 1] + this.size_kib[parts - 1] * 1024;
+            this.permissions[parts] = permissions;
+            this.size_kib[parts] = size_kib;
+            this.rss_kib[parts] = rss_kib;
+            anon_huge_pages_kib[parts] = 0;
+            swap_kib[parts] = 0;
+            // the kernel backs the private writable anonymous mappings with huge pages when they span one
+            thp_eligible[parts] = inode == 0
+                                  && (permissions & Permissions.WRITE) != 0
+                                  && (permissions & Permissions.SHARED) == 0
+                                  && size_kib >= config.huge_page_size_kib;
+            cursor += size_kib * 1024;
+            parts++;
+        }
+
+        private void emit(Runnable segment) {
+            segment.run();
+            emitted += parts;
+            gap();
+        }
+
+        private void gap() {
+            cursor += random.nextInt(4) * config.page_size_kib * 1024;
+        }
+
+        /**
+         * @return a random size in KiB, multiple of the page size, between min and max.
+         */
+        private long pages(long min_kib, long max_kib) {
+            long page_kib = config.page_size_kib;
+            return (min_kib / page_kib + random.nextLong(max_kib / page_kib - min_kib / page_kib + 1)) * page_kib;
         }
-        return Files.readAllLines(pmap);
-    }
-
-
-    @SuppressWarnings("unchecked")
-    private static <T> Collector<T, List<Object>, List<Object>> multiCollectorOf(List<Collector<T, ?, ?>> collectors) {
-        return Collector.of(
-                () -> collectors.stream().map(Collector::supplier)
-                                .map(Supplier::get).collect(Collectors.toList()),
-                (list, e) -> IntStream.range(0, collectors.size()).forEach(
-                        i -> ((BiConsumer<Object, T>) collectors.get(i).accumulator()).accept(list.get(i), e)),
-                (l1, l2) -> {
-                    IntStream.range(0, collectors.size()).forEach(
-                            i -> l1.set(i, ((BinaryOperator<Object>) collectors.get(i).combiner()).apply(l1.get(i), l2.get(i))));
-                    return l1;
-                },
-                list -> {
-                    IntStream.range(0, collectors.size()).forEach(
-                            i -> list.set(i, ((Function<Object, Object>) collectors.get(i).finisher()).apply(list.get(i))));
-                    return list;
-                });
     }
 
-    private static class GlobalStat {
+    static class GlobalStat {
 
         private String vsz_kib;
         private String rss_kib;
@@ -420,14 +5675,38 @@ public class JavaPmapInspector {
             // Usually, for this use case looking at the RSS is enough.
         }
 
+        public GlobalStat(String vsz_kib, String rss_kib) {
+            this.vsz_kib = vsz_kib;
+            this.rss_kib = rss_kib;
+        }
+
+        public GlobalStat(long vsz_kib, long rss_kib) {
+            this.vsz_kib = Long.toString(vsz_kib);
+            this.rss_kib = Long.toString(rss_kib);
+        }
+
         public static GlobalStat of(String line) {
             return new GlobalStat(line);
         }
 
+        public static GlobalStat of(long vsz_kib, long rss_kib) {
+            return new GlobalStat(vsz_kib, rss_kib);
+        }
+
+        /**
+         * @return the RSS in KiB, or -1 when it's not a number.
+         */
+        long rss_kib() {
+            try {
+                return Long.parseLong(rss_kib);
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
         @Override
         public String toString() {
             return String.format("vsz=%s kib %n rss=%s kib", vsz_kib, rss_kib);
         }
     }
 }
-
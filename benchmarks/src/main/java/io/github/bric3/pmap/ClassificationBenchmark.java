@@ -0,0 +1,88 @@
+package io.github.bric3.pmap;
+
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Slides the {@link JavaPmapInspector.MemorySegmentIdentifier#tryMergeMapping} window
+ * over all the parsed segments of a dump, then collects the identified segments.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClassificationBenchmark {
+
+    @State(Scope.Thread)
+    public static class Segments {
+        JavaPmapInspector.SegmentTable parsed;
+        JavaPmapInspector.SegmentTable segments;
+        JavaPmapInspector.SegmentTable classified;
+        JavaPmapInspector.MemorySegmentIdentifier msi;
+        JavaPmapInspector.ParallelClassifier parallelClassifier;
+
+        @Setup(Level.Trial)
+        public void parse(SyntheticDump dump) throws IOException {
+            var mappings = new JavaPmapInspector.MappingDictionary();
+            parsed = dump.readAll(mappings);
+            segments = new JavaPmapInspector.SegmentTable(parsed.size(), mappings);
+            classified = new JavaPmapInspector.SegmentTable(parsed.size(), mappings);
+            msi = new JavaPmapInspector.MemorySegmentIdentifier();
+            parallelClassifier = new JavaPmapInspector.ParallelClassifier(ForkJoinPool.commonPool());
+            copy(parsed, classified);
+            JavaPmapInspector.classifyInPlace(classified, msi);
+        }
+
+        /**
+         * Segments are merged in place, each invocation starts from the parsed ones, it takes
+         * a fraction of the classification time.
+         */
+        @Setup(Level.Invocation)
+        public void reset() {
+            copy(parsed, segments);
+        }
+
+        private static void copy(JavaPmapInspector.SegmentTable from, JavaPmapInspector.SegmentTable to) {
+            to.clear();
+            for (int i = 0; i < from.size(); i++) {
+                to.addRow(from, i);
+            }
+        }
+    }
+
+    @Benchmark
+    public int tryMergeMapping(Segments state) {
+        return JavaPmapInspector.classifyInPlace(state.segments, state.msi);
+    }
+
+    /**
+     * The parsed segments are left untouched, the identified ones are counted.
+     */
+    @Benchmark
+    public int parallel(Segments state) {
+        var identified = new int[1];
+        state.parallelClassifier.classify(state.parsed, (segments, from, to) -> identified[0] += to - from);
+        return identified[0];
+    }
+
+    @Benchmark
+    public JavaPmapInspector.Report report(Segments state) {
+        var report = new JavaPmapInspector.Report();
+        report.add(state.classified, 0, state.classified.size());
+        return report;
+    }
+}
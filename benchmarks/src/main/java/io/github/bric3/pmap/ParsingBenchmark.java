@@ -0,0 +1,49 @@
+package io.github.bric3.pmap;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parses the segments of a dump batch by batch, like the report does, without classifying them.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParsingBenchmark {
+
+    @Benchmark
+    public int pmap(SyntheticDump dump) throws IOException {
+        var segments = new JavaPmapInspector.SegmentTable(JavaPmapInspector.BATCH_SIZE);
+        int count = 0;
+        try (var reader = dump.openPmap()) {
+            while (reader.fill(segments) > 0) {
+                count += segments.size();
+                segments.clear();
+            }
+        }
+        return count;
+    }
+
+    @Benchmark
+    public int smaps(SyntheticDump dump) throws IOException {
+        var segments = new JavaPmapInspector.SegmentTable(JavaPmapInspector.BATCH_SIZE);
+        int count = 0;
+        try (var reader = new JavaPmapInspector.SmapsReader().open(dump.smaps())) {
+            while (reader.fill(segments) > 0) {
+                count += segments.size();
+                segments.clear();
+            }
+        }
+        return count;
+    }
+}
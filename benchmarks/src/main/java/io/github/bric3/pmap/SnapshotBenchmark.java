@@ -0,0 +1,90 @@
+package io.github.bric3.pmap;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Records the classified segments of a dump as a snapshot, and reads them back,
+ * to compare with {@link ParsingBenchmark} and {@link ClassificationBenchmark}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SnapshotBenchmark {
+
+    @State(Scope.Thread)
+    public static class Snapshots {
+        JavaPmapInspector.SegmentTable classified;
+        JavaPmapInspector.SegmentTable replayed;
+        JavaPmapInspector.GlobalStat globalStat = JavaPmapInspector.GlobalStat.of(0, 0);
+        Path recorded;
+        Path appended;
+        JavaPmapInspector.SnapshotReader reader;
+        JavaPmapInspector.SnapshotWriter writer;
+
+        @Setup(Level.Trial)
+        public void record(SyntheticDump dump) throws IOException {
+            var mappings = new JavaPmapInspector.MappingDictionary();
+            classified = dump.readAll(mappings);
+            JavaPmapInspector.classifyInPlace(classified, new JavaPmapInspector.MemorySegmentIdentifier());
+            replayed = new JavaPmapInspector.SegmentTable(classified.size(), mappings);
+
+            recorded = Files.createTempFile("pmap-inspector-", ".jpms");
+            Files.delete(recorded);
+            try (var recorder = JavaPmapInspector.SnapshotWriter.open(recorded)) {
+                recorder.write("synthetic", 0, classified, globalStat);
+            }
+            reader = JavaPmapInspector.SnapshotReader.open(recorded);
+            appended = Files.createTempFile("pmap-inspector-", ".jpms");
+        }
+
+        /**
+         * Each recording starts from an empty file, an archive of every invocation would fill the disk.
+         */
+        @Setup(Level.Invocation)
+        public void truncate() throws IOException {
+            if (writer != null) {
+                writer.close();
+            }
+            Files.delete(appended);
+            writer = JavaPmapInspector.SnapshotWriter.open(appended);
+        }
+
+        @TearDown(Level.Trial)
+        public void delete() throws IOException {
+            reader.close();
+            writer.close();
+            Files.delete(recorded);
+            Files.delete(appended);
+        }
+    }
+
+    @Benchmark
+    public JavaPmapInspector.SegmentTable replay(Snapshots state) throws IOException {
+        state.replayed.clear();
+        state.reader.read(0, state.replayed);
+        return state.replayed;
+    }
+
+    @Benchmark
+    public void record(Snapshots state) throws IOException {
+        state.writer.write("synthetic", 0, state.classified, state.globalStat);
+    }
+}
@@ -0,0 +1,102 @@
+package io.github.bric3.pmap;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Synthetic dumps of a JVM process, generated once per trial and checked
+ * against their expected classification before being measured.
+ */
+@State(Scope.Benchmark)
+public class SyntheticDump {
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int mappings;
+
+    Path pmap;
+    private Path directory;
+    private Path smaps;
+    private Path expected;
+    private JavaPmapInspector.SyntheticProcess process;
+    private PrintStream out;
+
+    @Setup(Level.Trial)
+    public void generate() throws IOException {
+        JavaPmapInspector.configure(null);
+        directory = Files.createTempDirectory("pmap-inspector-");
+        process = new JavaPmapInspector.SyntheticProcess(mappings, 42);
+        pmap = directory.resolve("synthetic.pmap");
+        expected = directory.resolve("synthetic.expected");
+        process.writePmap(pmap);
+        process.writeExpected(expected);
+        try (var reader = openPmap()) {
+            check(pmap, JavaPmapInspector.SyntheticProcess.verify(reader, expected));
+        }
+
+        // unknown segments and reports are printed, only their cost matters here
+        out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() throws IOException {
+        System.setOut(out);
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    JavaPmapInspector.PmapReader openPmap() throws IOException {
+        var reader = JavaPmapInspector.PmapReader.open(pmap.toString());
+        reader.nextSample();
+        return reader;
+    }
+
+    /**
+     * The smaps dump is only generated by the benchmarks reading it, it's about 600 bytes per mapping.
+     */
+    Path smaps() throws IOException {
+        if (smaps == null) {
+            smaps = directory.resolve("synthetic.smaps");
+            process.writeSmaps(smaps);
+            try (var reader = new JavaPmapInspector.SmapsReader().open(smaps)) {
+                check(smaps, JavaPmapInspector.SyntheticProcess.verify(reader, expected));
+            }
+        }
+        return smaps;
+    }
+
+    /**
+     * Reads all the segments of the pmap dump, without classifying them.
+     */
+    JavaPmapInspector.SegmentTable readAll(JavaPmapInspector.MappingDictionary dictionary) throws IOException {
+        var segments = new JavaPmapInspector.SegmentTable(mappings, dictionary);
+        try (var reader = openPmap()) {
+            while (reader.fill(segments) > 0) {
+                segments.grow();
+            }
+        }
+        return segments;
+    }
+
+    private static void check(Path dump, List<String> differences) {
+        if (!differences.isEmpty()) {
+            throw new IllegalStateException(String.format("%s is not classified as expected, %d differences, first ones:%n%s",
+                                                          dump,
+                                                          differences.size(),
+                                                          String.join("\n", differences.subList(0, Math.min(10, differences.size())))));
+        }
+    }
+}
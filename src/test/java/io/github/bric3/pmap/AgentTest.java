@@ -0,0 +1,42 @@
+package io.github.bric3.pmap;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * An agent loaded in a running JVM must not exit it, the errors of its arguments and
+ * rules are thrown.
+ */
+class AgentTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void throws_when_the_rules_file_is_not_readable() {
+        var missing = directory.resolve("missing.rules");
+        var e = assertThrows(IOException.class, () -> JavaPmapInspector.Agent.start("rules=" + missing));
+        assertTrue(e.getMessage().contains("missing.rules"), e.getMessage());
+    }
+
+    @Test
+    void throws_when_a_rule_is_invalid() throws IOException {
+        var rulesFile = directory.resolve("invalid.rules");
+        Files.write(rulesFile, List.of("# type   conditions   action",
+                                       "NETTY_ARENA     lower=rw-p total=abc  merge"));
+        var e = assertThrows(IllegalArgumentException.class, () -> JavaPmapInspector.Agent.start("rules=" + rulesFile));
+        assertTrue(e.getMessage().startsWith("Invalid rule at " + rulesFile + ":2"), e.getMessage());
+    }
+
+    @Test
+    void throws_when_an_argument_is_unknown() {
+        assertThrows(IllegalArgumentException.class, () -> JavaPmapInspector.Agent.start("interval=1s,colour=blue"));
+    }
+}
@@ -0,0 +1,137 @@
+package io.github.bric3.pmap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The malloc heaps are typed one by one, then grouped in arenas, a Java heap larger than a
+ * malloc heap is never an arena.
+ */
+class ArenaAnalyzerTest {
+    private static final String HEADER = "         Address Perm   Offset Device    Inode    Size     Rss     Pss Referenced Anonymous Swap SwapPss Locked THPeligible Mapping";
+
+    @TempDir
+    Path directory;
+
+    @BeforeAll
+    static void configure() throws IOException {
+        JavaPmapInspector.configure(null);
+    }
+
+    @Test
+    void groups_the_heaps_in_arenas() throws IOException {
+        var output = report(
+                // an arena of three heaps, the top one first, then the heaps it filled up
+                row(0x7f0000000000L, "rw-p", 8192, 4096),
+                row(0x7f0000800000L, "---p", 57344, 0),
+                row(0x7f0004000000L, "rw-p", 65536, 60000),
+                row(0x7f0008000000L, "rw-p", 65536, 50000),
+                // arenas of a single heap
+                row(0x7f0100000000L, "rw-p", 16384, 10000),
+                row(0x7f0101000000L, "---p", 49152, 0),
+                row(0x7f0200000000L, "rw-p", 4096, 2000),
+                row(0x7f0200400000L, "---p", 61440, 0),
+                row(0x7f0300000000L, "rw-p", 1024, 1000),
+                row(0x7f0300100000L, "---p", 64512, 0));
+
+        assertTrue(output.contains("Malloc arenas (4 arenas, 6 heaps, MALLOC_ARENA_MAX=default):"), output);
+        assertTrue(output.contains(String.format("%18s reserved=%-10s committed=%-10s rss=%-10s%n", "secondary", 4 * 65536 + 2 * 65536, 8192 + 2 * 65536 + 16384 + 4096 + 1024, 127096)), output);
+        assertTrue(output.contains(String.format("%18s p10=%-10s p50=%-10s p90=%-10s p99=%-10s max=%-10s%n", "rss", 1000, 2000, 114096, 114096, 114096)), output);
+        assertTrue(output.contains(String.format("%18s startAddress=%-16s heaps=%-3s reserved=%-10s committed=%-10s rss=%-10s%n",
+                                                 "MALLOC_ARENA", "7f0000000000", 3, 3 * 65536, 8192 + 2 * 65536, 114096)), output);
+
+        // an idle arena costs the rss of the 10th percentile, 1000 KiB
+        assertTrue(output.contains("MALLOC_ARENA_MAX estimates, an arena costs at least rss=1000:"), output);
+        assertEquals(List.of(estimate(1, 0, 123096, 4000),
+                             estimate(2, 1, 124096, 3000),
+                             estimate(4, 3, 126096, 1000),
+                             estimate(8, 4, 127096, 0)),
+                     estimates(output));
+    }
+
+    @Test
+    void does_not_type_a_large_java_heap_as_an_arena() throws IOException {
+        // 48 GiB heap without compressed oops, 4 GiB committed
+        var output = report(row(0x7e0000000000L, "rw-p", 4194304, 1048576),
+                            row(0x7e0100000000L, "---p", 46137344, 0));
+
+        assertTrue(output.contains("JAVA_HEAP"), output);
+        assertFalse(output.contains("MALLOC_ARENA"), output);
+        assertFalse(output.contains("Malloc arenas"), output);
+    }
+
+    @Test
+    void does_not_type_a_pre_touched_java_heap_as_an_arena() throws IOException {
+        // 48 GiB heap without compressed oops, committed by -XX:+AlwaysPreTouch, no reserved tail
+        var output = report(row(0x7e0000000000L, "rw-p", 50331648, 50331648),
+                            "    7f1000000000 r-xp 00000000 08:01  3531531     764     700     350        700         0    0       0      0           0 libjvm.so");
+
+        assertFalse(output.contains("MALLOC_ARENA"), output);
+        assertFalse(output.contains("Malloc arenas"), output);
+    }
+
+    @Test
+    void takes_the_nearest_rank_percentile() {
+        long[] sorted = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10};
+        assertEquals(1, JavaPmapInspector.ArenaAnalyzer.percentile(sorted, 10));
+        assertEquals(5, JavaPmapInspector.ArenaAnalyzer.percentile(sorted, 50));
+        assertEquals(9, JavaPmapInspector.ArenaAnalyzer.percentile(sorted, 90));
+        assertEquals(10, JavaPmapInspector.ArenaAnalyzer.percentile(sorted, 99));
+        assertEquals(42, JavaPmapInspector.ArenaAnalyzer.percentile(new long[]{42}, 10));
+    }
+
+    private static String row(long address, String permissions, long size_kib, long rss_kib) {
+        return String.format("%16x %s 00000000 00:00        0 %7d %7d %7d %10d %9d    0       0      0           0 ",
+                             address, permissions, size_kib, rss_kib, rss_kib, rss_kib, rss_kib);
+    }
+
+    private static String estimate(int max, int arenas, long rss_kib, long freed_kib) {
+        return String.format("%18s arenas=%-5s rss=%-10s freed=%-10s", "max=" + max, arenas, rss_kib, freed_kib);
+    }
+
+    private static List<String> estimates(String output) {
+        var estimates = new ArrayList<String>();
+        for (var line : output.split("\n")) {
+            if (line.trim().startsWith("max=") && line.contains("freed=")) {
+                estimates.add(line);
+            }
+        }
+        return estimates;
+    }
+
+    private String report(String... rows) throws IOException {
+        var lines = new ArrayList<String>();
+        lines.add("1234:   java -jar app.jar");
+        lines.add(HEADER);
+        lines.addAll(List.of(rows));
+        lines.add("                                              ======= ======= ======= ========== ========= ==== ======= ====== ===========");
+        lines.add("                                                    0       0       0          0         0    0       0      0           0 KB");
+        var pmap = directory.resolve("pmap");
+        Files.write(pmap, lines);
+
+        var out = System.out;
+        var captured = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(captured, true, StandardCharsets.UTF_8));
+        try (var reader = JavaPmapInspector.PmapReader.open(pmap.toString())) {
+            reader.nextSample();
+            JavaPmapInspector.report(reader, () -> JavaPmapInspector.GlobalStat.of(0, 0));
+        } finally {
+            System.setOut(out);
+        }
+        return captured.toString(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,138 @@
+package io.github.bric3.pmap;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The rules of a file are compiled before the built-in ones, a pair of blocks takes the
+ * first rule that matches it in file order, whichever table the rule is dispatched from.
+ */
+class ClassificationRulesTest {
+    private static final String HEADER = "         Address Perm   Offset Device    Inode    Size     Rss     Pss Referenced Anonymous Swap SwapPss Locked THPeligible Mapping";
+    // a block no rule of the tests matches, it ends the pairs and stays unknown as the last one
+    private static final String LIBRARY = row(0x7f1000000000L, "r--p", 3531531, 764, "libfoo.so");
+
+    @TempDir
+    Path directory;
+
+    @AfterEach
+    void restoreBuiltInRules() throws IOException {
+        JavaPmapInspector.configure(null);
+    }
+
+    @Test
+    void takes_the_first_matching_rule_of_the_file() throws IOException {
+        var segments = List.of(row(0x10000000L, "rw-p", 0, 100, ""),
+                               row(0x10019000L, "---p", 0, 100, ""),
+                               LIBRARY);
+
+        // a range is not keyed, an exact total is
+        assertEquals(List.of("RANGE 10000000", "UNKNOWN 7f1000000000"),
+                     classify(List.of("RANGE    lower=rw-p higher=---p total=100..300  merge",
+                                      "EXACT    lower=rw-p higher=---p total=200       merge"),
+                              segments));
+        assertEquals(List.of("EXACT 10000000", "UNKNOWN 7f1000000000"),
+                     classify(List.of("EXACT    lower=rw-p higher=---p total=200       merge",
+                                      "RANGE    lower=rw-p higher=---p total=100..300  merge"),
+                              segments));
+        // keyed by the lower block size, before a rule keyed by the total
+        assertEquals(List.of("LOWER_SIZE 10000000", "UNKNOWN 7f1000000000"),
+                     classify(List.of("LOWER_SIZE lower-size=100 higher=---p  merge",
+                                      "EXACT      lower=rw-p higher=---p total=200  merge"),
+                              segments));
+    }
+
+    @Test
+    void dispatches_on_the_permissions_of_both_blocks() throws IOException {
+        assertEquals(List.of("SHARED 10000000", "SHARED 10100000", "UNKNOWN 10200000", "UNKNOWN 7f1000000000"),
+                     classify(List.of("SHARED   lower=r?-s lower-size=64  lower"),
+                              List.of(row(0x10000000L, "r--s", 0, 64, ""),
+                                      row(0x10100000L, "rw-s", 0, 64, ""),
+                                      row(0x10200000L, "rw-p", 0, 64, ""),
+                                      LIBRARY)));
+    }
+
+    @Test
+    void matches_the_total_range_bounds() throws IOException {
+        var rules = List.of("STACK   lower=---p higher=rw-p lower-size=16 total=1024..1028  merge");
+        assertEquals(List.of("STACK 10000000", "STACK 10200000", "UNKNOWN 10400000", "UNKNOWN 10404000", "UNKNOWN 7f1000000000"),
+                     classify(rules,
+                              List.of(row(0x10000000L, "---p", 0, 16, ""),
+                                      row(0x10004000L, "rw-p", 0, 1008, ""),
+                                      row(0x10200000L, "---p", 0, 16, ""),
+                                      row(0x10204000L, "rw-p", 0, 1012, ""),
+                                      row(0x10400000L, "---p", 0, 16, ""),
+                                      row(0x10404000L, "rw-p", 0, 1016, ""),
+                                      LIBRARY)));
+    }
+
+    @Test
+    void types_the_blocks_of_a_named_mapping() throws IOException {
+        assertEquals(List.of("UNKNOWN 10000000", "NAMED_ARENA 10100000", "UNKNOWN 7f1000000000"),
+                     classify(List.of("NAMED_ARENA  mapping=[anon:arena]  higher"),
+                              List.of(row(0x10000000L, "rw-p", 0, 64, ""),
+                                      row(0x10100000L, "rw-p", 0, 64, "[anon:arena]"),
+                                      LIBRARY)));
+    }
+
+    @Test
+    void reports_the_line_of_an_invalid_rule() {
+        assertInvalid("missing action", "NETTY_ARENA  lower=rw-p");
+        assertInvalid("permissions must have 4 letters", "NETTY_ARENA  lower=rwp  merge");
+        assertInvalid("invalid value for 'total'", "NETTY_ARENA  total=1k  merge");
+        assertInvalid("unknown condition 'colour'", "NETTY_ARENA  colour=blue  merge");
+        assertInvalid("unknown condition or action 'frobnicate'", "NETTY_ARENA  frobnicate");
+        assertInvalid("alignment must be positive", "NETTY_ARENA  align=0  merge");
+        assertInvalid("missing mapping name", "NETTY_ARENA  mapping=  higher");
+    }
+
+    private static void assertInvalid(String message, String rule) {
+        var e = assertThrows(IllegalArgumentException.class,
+                             () -> JavaPmapInspector.ClassificationRules.compile(List.of("# type   conditions   action", "", rule), "site.rules"));
+        assertTrue(e.getMessage().startsWith("Invalid rule at site.rules:3, " + message), e.getMessage());
+    }
+
+    private List<String> classify(List<String> rules, List<String> rows) throws IOException {
+        var rulesFile = Files.write(directory.resolve("site.rules"), rules);
+        JavaPmapInspector.configure(rulesFile);
+
+        var lines = new ArrayList<String>();
+        lines.add("1234:   java -jar app.jar");
+        lines.add(HEADER);
+        lines.addAll(rows);
+        lines.add("                                              ======= ======= ======= ========== ========= ==== ======= ====== ===========");
+        lines.add("                                                    0       0       0          0         0    0       0      0           0 KB");
+        var pmap = Files.write(directory.resolve("pmap"), lines);
+
+        var types = new ArrayList<String>();
+        try (var reader = JavaPmapInspector.PmapReader.open(pmap.toString())) {
+            reader.nextSample();
+            JavaPmapInspector.classify(reader,
+                                       new JavaPmapInspector.SegmentTable(JavaPmapInspector.BATCH_SIZE),
+                                       new JavaPmapInspector.MemorySegmentIdentifier(),
+                                       (segments, from, to) -> {
+                                           for (int i = from; i < to; i++) {
+                                               var columns = segments.describe(i).split(" ");
+                                               types.add(columns[0] + " " + columns[1]);
+                                           }
+                                       });
+        }
+        return types;
+    }
+
+    private static String row(long address, String permissions, long inode, long size_kib, String mapping) {
+        return String.format("%16x %s 00000000 00:00 %8d %7d %7d %7d %10d %9d    0       0      0           0 %s",
+                             address, permissions, inode, size_kib, 0, 0, 0, 0, mapping);
+    }
+}
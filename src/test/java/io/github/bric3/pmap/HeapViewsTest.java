@@ -0,0 +1,128 @@
+package io.github.bric3.pmap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The views of a ZGC heap map the same memfd offsets, the first mapping of an offset is the
+ * heap, the others are views, and the PSS of the views counts each page once.
+ */
+class HeapViewsTest {
+    private static final long MARKED0 = 0x40000000000L;
+    private static final long MARKED1 = 0x80000000000L;
+    private static final long REMAPPED = 0x100000000000L;
+    private static final long CHUNK = 0x200000L;
+
+    @TempDir
+    Path directory;
+
+    @BeforeAll
+    static void configure() throws IOException {
+        JavaPmapInspector.configure(null);
+    }
+
+    @Test
+    void types_the_first_mapping_of_an_offset_as_the_heap() throws IOException {
+        var segments = read();
+        var heapViews = new JavaPmapInspector.HeapViews();
+        heapViews.retype(segments, 0, segments.size());
+        assertEquals(List.of("MEMFD_JAVA_HEAP 40000000000", "MEMFD_JAVA_HEAP 40000200000", "MEMFD_JAVA_HEAP 40000400000", "MEMFD_JAVA_HEAP 40000600000",
+                             "ZGC_HEAP_VIEW 80000000000", "ZGC_HEAP_VIEW 80000200000", "ZGC_HEAP_VIEW 80000400000", "ZGC_HEAP_VIEW 80000600000",
+                             "ZGC_HEAP_VIEW 100000000000", "ZGC_HEAP_VIEW 100000200000", "ZGC_HEAP_VIEW 100000400000", "ZGC_HEAP_VIEW 100000600000"),
+                     types(segments));
+
+        // the mappings of another sample
+        heapViews.retype(segments, 0, 1);
+        assertEquals("ZGC_HEAP_VIEW 40000000000", types(segments).get(0));
+        heapViews.clear();
+        heapViews.retype(segments, 0, 1);
+        assertEquals("MEMFD_JAVA_HEAP 40000000000", types(segments).get(0));
+    }
+
+    @Test
+    void deduplicates_the_rss_of_the_views_with_their_pss() throws IOException {
+        var output = report();
+
+        assertTrue(output.contains("Multi-mapped Java heap (6 mappings):"), output);
+        assertTrue(output.contains(mapping("MEMFD_JAVA_HEAP", MARKED0, 0, 2048, 1024)), output);
+        assertTrue(output.contains(mapping("ZGC_HEAP_VIEW", REMAPPED, 0, 2048, 1024)), output);
+        assertTrue(output.contains(mapping("ZGC_HEAP_VIEW", REMAPPED + 2 * CHUNK, CHUNK, 1024, 1024)), output);
+        assertTrue(output.contains(String.format("%18s rss=%-10s deduplicated=%-10s%n", "heap", 5120, 3072)), output);
+        assertTrue(output.contains(String.format("%18s rss=%-10s deduplicated=%-10s%n", "process", 65536, 65536 - 5120 + 3072)), output);
+    }
+
+    private static String mapping(String type, long startAddress, long offset, long rss_kib, long pss_kib) {
+        return String.format("%18s startAddress=%-16s offset=%-12x size=%-10d rss=%-10s pss=%-10s",
+                             type, Long.toHexString(startAddress), offset, 2048, rss_kib, pss_kib);
+    }
+
+    /**
+     * Two heap chunks, each followed by its reserved address space, mapped in the three views.
+     * The first chunk is accessed through marked0 and remapped, the second only through remapped.
+     */
+    private Path smaps() throws IOException {
+        var lines = new ArrayList<String>();
+        view(lines, MARKED0, 2048, 1024, 0, 0);
+        view(lines, MARKED1, 0, 0, 0, 0);
+        view(lines, REMAPPED, 2048, 1024, 1024, 1024);
+        return Files.write(directory.resolve("smaps"), lines);
+    }
+
+    private static void view(List<String> lines, long start, long rss0_kib, long pss0_kib, long rss1_kib, long pss1_kib) {
+        entry(lines, start, "rw-s", 0, 7, "/memfd:java_heap (deleted)", rss0_kib, pss0_kib);
+        entry(lines, start + CHUNK, "---p", 0, 0, "", 0, 0);
+        entry(lines, start + 2 * CHUNK, "rw-s", CHUNK, 7, "/memfd:java_heap (deleted)", rss1_kib, pss1_kib);
+        entry(lines, start + 3 * CHUNK, "---p", 0, 0, "", 0, 0);
+    }
+
+    private static void entry(List<String> lines, long start, String permissions, long offset, long inode, String mapping, long rss_kib, long pss_kib) {
+        lines.add(String.format("%x-%x %s %08x 00:01 %d %s", start, start + CHUNK, permissions, offset, inode, mapping));
+        lines.add(String.format("Size:              %d kB", CHUNK / 1024));
+        lines.add(String.format("Rss:               %d kB", rss_kib));
+        lines.add(String.format("Pss:               %d kB", pss_kib));
+    }
+
+    private JavaPmapInspector.SegmentTable read() throws IOException {
+        var segments = new JavaPmapInspector.SegmentTable(16);
+        try (var reader = new JavaPmapInspector.SmapsReader().open(smaps())) {
+            while (reader.fill(segments) > 0) {
+                segments.grow();
+            }
+        }
+        return segments;
+    }
+
+    private String report() throws IOException {
+        var out = System.out;
+        var captured = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(captured, true, StandardCharsets.UTF_8));
+        try (var reader = new JavaPmapInspector.SmapsReader().open(smaps())) {
+            JavaPmapInspector.report(reader, () -> JavaPmapInspector.GlobalStat.of(4194304, 65536));
+        } finally {
+            System.setOut(out);
+        }
+        return captured.toString(StandardCharsets.UTF_8);
+    }
+
+    private static List<String> types(JavaPmapInspector.SegmentTable segments) {
+        var types = new ArrayList<String>();
+        for (int i = 0; i < segments.size(); i++) {
+            var columns = segments.describe(i).split(" ");
+            types.add(columns[0] + " " + columns[1]);
+        }
+        return types;
+    }
+}
@@ -0,0 +1,89 @@
+package io.github.bric3.pmap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The THP eligible heap segments without huge pages are listed when the input has the
+ * AnonHugePages field, even if the process has no huge page at all.
+ */
+class HugePagesReportTest {
+    private static final String NOT_BACKED = "THP eligible heap segments not backed by huge pages (1)";
+
+    @TempDir
+    Path directory;
+
+    @BeforeAll
+    static void configure() throws IOException {
+        JavaPmapInspector.configure(null);
+    }
+
+    @Test
+    void lists_the_eligible_heap_without_huge_pages_in_madvise_mode() throws IOException {
+        var smaps = directory.resolve("smaps");
+        Files.write(smaps, List.of(
+                "700000000-708000000 rw-p 00000000 00:00 0 ",
+                "Size:             131072 kB",
+                "Rss:               65536 kB",
+                "Pss:               65536 kB",
+                "AnonHugePages:         0 kB",
+                "THPeligible:    1",
+                "708000000-800000000 ---p 00000000 00:00 0 ",
+                "Size:            4063232 kB",
+                "Rss:                   0 kB",
+                "Pss:                   0 kB",
+                "AnonHugePages:         0 kB",
+                "THPeligible:    1"));
+
+        String output;
+        try (var reader = new JavaPmapInspector.SmapsReader().open(smaps)) {
+            output = report(reader);
+        }
+        assertTrue(output.contains("JAVA_HEAP"), output);
+        assertTrue(output.contains(NOT_BACKED), output);
+    }
+
+    @Test
+    void does_not_list_the_eligible_heap_when_the_input_has_no_AnonHugePages_column() throws IOException {
+        var pmap = directory.resolve("pmap");
+        Files.write(pmap, List.of(
+                "1234:   java -jar app.jar",
+                "         Address Perm   Offset Device    Inode    Size     Rss     Pss Referenced Anonymous Swap SwapPss Locked THPeligible Mapping",
+                "       700000000 rw-p 00000000 00:00        0  131072   65536   65536      65536     65536    0       0      0           1 ",
+                "       708000000 ---p 00000000 00:00        0 4063232       0       0          0         0    0       0      0           1 ",
+                "                                              ======= ======= ======= ========== ========= ==== ======= ====== ===========",
+                "                                              4194304   65536   65536      65536     65536    0       0      0           2 KB"));
+
+        String output;
+        try (var reader = JavaPmapInspector.PmapReader.open(pmap.toString())) {
+            reader.nextSample();
+            output = report(reader);
+        }
+        assertTrue(output.contains("JAVA_HEAP"), output);
+        assertFalse(output.contains("not backed by huge pages"), output);
+    }
+
+    private static String report(JavaPmapInspector.SegmentSource source) throws IOException {
+        var out = System.out;
+        var captured = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(captured, true, StandardCharsets.UTF_8));
+        try {
+            JavaPmapInspector.report(source, () -> JavaPmapInspector.GlobalStat.of(4194304, 65536));
+        } finally {
+            System.setOut(out);
+        }
+        return captured.toString(StandardCharsets.UTF_8);
+    }
+}
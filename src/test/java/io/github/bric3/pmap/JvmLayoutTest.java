@@ -0,0 +1,146 @@
+package io.github.bric3.pmap;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * The layout read from the saved jcmd outputs of a JDK 17 started with {@code -Xmx128m -Xss512k},
+ * and the rules it derives from the stack size flags.
+ */
+class JvmLayoutTest {
+    private static final List<String> VM_FLAGS = List.of(
+            "     intx CompilerThreadStackSize                  = 1024                                   {pd product} {default}",
+            "     intx StackRedPages                            = 1                                      {pd product} {default}",
+            "     intx StackReservedPages                       = 1                                      {pd product} {default}",
+            "     intx StackYellowPages                         = 2                                      {pd product} {default}",
+            "     intx ThreadStackSize                          = 512                                    {pd product} {command line}",
+            "     intx VMThreadStackSize                        = 1024                                   {pd product} {default}");
+    private static final List<String> GC_HEAP_INFO = List.of(
+            " def new generation   total 28864K, used 3708K [0x00000000f8000000, 0x00000000f9f50000, 0x00000000faaa0000)",
+            "  eden space 25664K,   1% used [0x00000000f8000000, 0x00000000f807f220, 0x00000000f9910000)",
+            "  from space 3200K, 100% used [0x00000000f9c30000, 0x00000000f9f50000, 0x00000000f9f50000)",
+            "  to   space 3200K,   0% used [0x00000000f9910000, 0x00000000f9910000, 0x00000000f9c30000)",
+            " tenured generation   total 64192K, used 462K [0x00000000faaa0000, 0x00000000fe950000, 0x0000000100000000)",
+            "   the space 64192K,   0% used [0x00000000faaa0000, 0x00000000fab139c0, 0x00000000fab13a00, 0x00000000fe950000)",
+            " Metaspace       used 11407K, committed 11648K, reserved 1114112K",
+            "  class space    used 1384K, committed 1536K, reserved 1048576K");
+    private static final List<String> COMPILER_CODECACHE = List.of(
+            "CodeHeap 'non-profiled nmethods': size=120036Kb used=380Kb max_used=380Kb free=119655Kb",
+            " bounds [0x00007fd6fcec7000, 0x00007fd6fd137000, 0x00007fd704400000]",
+            "CodeHeap 'profiled nmethods': size=120032Kb used=2295Kb max_used=2295Kb free=117736Kb",
+            " bounds [0x00007fd6f5400000, 0x00007fd6f5670000, 0x00007fd6fc938000]",
+            "CodeHeap 'non-nmethods': size=5692Kb used=1154Kb max_used=1154Kb free=4537Kb",
+            " bounds [0x00007fd6fc938000, 0x00007fd6fcba8000, 0x00007fd6fcec7000]",
+            " total_blobs=1863 nmethods=1428 adapters=350",
+            " compilation: enabled");
+    private static final List<String> VM_INFO = List.of(
+            "# Java VM: OpenJDK 64-Bit Server VM Temurin-17.0.9+9 (17.0.9+9, mixed mode, sharing, tiered, compressed oops, compressed class ptrs, serial gc, linux-amd64)",
+            "Command Line: -Xmx128m -Xss512k Main",
+            "Heap address: 0x00000000f8000000, size: 128 MB, Compressed Oops mode: 32-bit",
+            "Compressed class space mapped at: 0x00007fd6b5000000-0x00007fd6f5000000, reserved size: 1073741824",
+            "Page Sizes: 4k");
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void reads_the_heap_class_space_and_code_heap_intervals() throws IOException {
+        var layout = JavaPmapInspector.JvmLayout.parse(List.of(write("VM.flags", VM_FLAGS),
+                                                               write("GC.heap_info", GC_HEAP_INFO),
+                                                               write("Compiler.codecache", COMPILER_CODECACHE),
+                                                               write("VM.info", VM_INFO)));
+
+        assertType(JavaPmapInspector.SegmentType.JAVA_HEAP, layout, 0xf8000000L);
+        assertType(JavaPmapInspector.SegmentType.JAVA_HEAP, layout, 0xfffff000L);
+        assertEquals(-1, layout.intervalOf(0x100000000L));
+        assertType(JavaPmapInspector.SegmentType.CLASS_SPACE, layout, 0x7fd6b5000000L);
+        assertType(JavaPmapInspector.SegmentType.CLASS_SPACE, layout, 0x7fd6f4fff000L);
+        assertEquals(-1, layout.intervalOf(0x7fd6f5000000L));
+        assertType(JavaPmapInspector.SegmentType.CODE_HEAP, layout, 0x7fd6f5400000L);
+        assertType(JavaPmapInspector.SegmentType.CODE_HEAP, layout, 0x7fd6fc938000L);
+        assertType(JavaPmapInspector.SegmentType.CODE_HEAP, layout, 0x7fd7043ff000L);
+        assertEquals(-1, layout.intervalOf(0x7fd704400000L));
+    }
+
+    @Test
+    void derives_the_thread_rules_from_the_stack_size_flags() throws IOException {
+        var layout = JavaPmapInspector.JvmLayout.parse(List.of(write("VM.flags", VM_FLAGS)));
+        var config = new JavaPmapInspector.Config();
+        layout.configure(config);
+
+        assertEquals(List.of("JAVA_THREAD        lower=---p higher=rw-p lower-size=16 total=512..516 unknown-only  merge",
+                             "JAVA_THREAD        lower=---p higher=rw-p lower-size=16 total=1024..1028 unknown-only  merge",
+                             "NON_JAVA_THREAD    lower=---p higher=rw-p lower-size=4 total=1028..1032  merge"),
+                     threadRules(config));
+    }
+
+    @Test
+    void derives_the_built_in_rules_from_the_default_flags() throws IOException {
+        var defaultFlags = VM_FLAGS.stream()
+                                   .map(line -> line.replace("= 512 ", "= 1024"))
+                                   .collect(Collectors.toList());
+        var defaultCommandLine = VM_INFO.stream()
+                                        .map(line -> line.replace(" -Xss512k", ""))
+                                        .collect(Collectors.toList());
+        var layout = JavaPmapInspector.JvmLayout.parse(List.of(write("VM.flags", defaultFlags),
+                                                               write("VM.info", defaultCommandLine)));
+        var config = new JavaPmapInspector.Config();
+        layout.configure(config);
+
+        assertEquals(JavaPmapInspector.ClassificationRules.defaults(new JavaPmapInspector.Config()),
+                     JavaPmapInspector.ClassificationRules.defaults(config));
+    }
+
+    @Test
+    void reads_the_outputs_of_an_older_32_bit_jdk() throws IOException {
+        var layout = JavaPmapInspector.JvmLayout.parse(List.of(write("VM.info", List.of(
+                "# Java VM: OpenJDK Server VM (11.0.2+9, mixed mode, tiered, g1 gc, linux-x86)",
+                "jvm_args: -Xmx128m -Xss256k",
+                "Page Sizes: 64k",
+                "Compressed class space size: 1073741824 Address: 0x0000000080000000",
+                "MALLOC_ARENA_MAX=2")),
+                                                               write("GC.heap_info", List.of(
+                " garbage-first heap   total 131072K, used 2048K [0x00000000f8000000, 0x0000000100000000)",
+                "  region size 1024K, 3 young (3072K), 0 survivors (0K)"))));
+        var config = new JavaPmapInspector.Config();
+        layout.configure(config);
+
+        assertType(JavaPmapInspector.SegmentType.CLASS_SPACE, layout, 0x80000000L);
+        assertEquals(-1, layout.intervalOf(0xc0000000L));
+        assertType(JavaPmapInspector.SegmentType.JAVA_HEAP, layout, 0xf8000000L);
+        // the guard zones and the glibc guard page are rounded up to the 64 KiB pages
+        assertEquals(List.of("JAVA_THREAD        lower=---p higher=rw-p lower-size=192 total=256..320 unknown-only  merge",
+                             "JAVA_THREAD        lower=---p higher=rw-p lower-size=192 total=1024..1088 unknown-only  merge",
+                             "NON_JAVA_THREAD    lower=---p higher=rw-p lower-size=64 total=1088..1152  merge"),
+                     threadRules(config));
+        // the malloc heaps of a 32-bit process
+        assertEquals(List.of("MALLOC_ARENA       lower=rw-p higher=---p total=1024 align=1024 above=0 unknown-only  merge",
+                             "MALLOC_ARENA       lower=rw-p lower-size=1024 align=1024 above=0 unknown-only  lower"),
+                     JavaPmapInspector.ClassificationRules.defaults(config).stream()
+                                                          .filter(rule -> rule.startsWith("MALLOC_ARENA "))
+                                                          .collect(Collectors.toList()));
+    }
+
+    private static List<String> threadRules(JavaPmapInspector.Config config) {
+        return JavaPmapInspector.ClassificationRules.defaults(config).stream()
+                                                    .filter(rule -> rule.contains("_THREAD "))
+                                                    .collect(Collectors.toList());
+    }
+
+    private static void assertType(JavaPmapInspector.SegmentType expected, JavaPmapInspector.JvmLayout layout, long address) {
+        int interval = layout.intervalOf(address);
+        assertEquals(expected.ordinal(), interval < 0 ? -1 : layout.type(interval), Long.toHexString(address));
+    }
+
+    private Path write(String name, List<String> lines) throws IOException {
+        return Files.write(directory.resolve(name + ".txt"), lines);
+    }
+}
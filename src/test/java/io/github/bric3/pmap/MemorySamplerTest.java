@@ -0,0 +1,68 @@
+package io.github.bric3.pmap;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * A sampler keeps its own rules, the configuration of the command line can change
+ * while it samples.
+ */
+@EnabledOnOs(OS.LINUX)
+class MemorySamplerTest {
+    private static final Path SELF = Paths.get("/proc/self");
+
+    @TempDir
+    Path directory;
+
+    @AfterEach
+    void restoreBuiltInRules() throws IOException {
+        JavaPmapInspector.configure(null);
+    }
+
+    @Test
+    void keeps_its_rules_when_the_command_line_configuration_changes() throws IOException {
+        JavaPmapInspector.configure(null);
+        var sampler = new JavaPmapInspector.MemorySampler(SELF);
+        int typeCount = sampler.typeCount();
+        sampler.sample();
+        long rss_kib = sampler.rss_kib();
+
+        JavaPmapInspector.configure(rulesFile());
+        sampler.sample();
+        assertEquals(typeCount, sampler.typeCount());
+        assertEquals(-1, sampler.typeOf("NETTY_ARENA"));
+        assertEquals("UNKNOWN", sampler.typeName(JavaPmapInspector.SegmentType.UNKNOWN.ordinal()));
+        assertTrue(sampler.rss_kib() > rss_kib / 2, sampler.rss_kib() + " KiB after " + rss_kib + " KiB");
+    }
+
+    @Test
+    void classifies_with_the_rules_file_it_is_given() throws IOException {
+        var sampler = new JavaPmapInspector.MemorySampler(SELF, rulesFile());
+        sampler.sample();
+        int netty = sampler.typeOf("NETTY_ARENA");
+        assertNotEquals(-1, netty);
+        assertEquals("NETTY_ARENA", sampler.typeName(netty));
+        assertTrue(sampler.count(sampler.typeOf("MAPPED_FILE")) > 0);
+        assertTrue(sampler.count(sampler.typeOf("JAVA_THREAD")) > 0);
+        assertTrue(sampler.rss_kib() > 0);
+    }
+
+    private Path rulesFile() throws IOException {
+        var rulesFile = directory.resolve("netty.rules");
+        Files.write(rulesFile, List.of("NETTY_ARENA     lower=rw-p higher=---p total=16384 unknown-only               merge"));
+        return rulesFile;
+    }
+}
@@ -0,0 +1,145 @@
+package io.github.bric3.pmap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The NMT regions are read from a detail output, and the resident size of the segments is
+ * split by the part of their range the regions cover.
+ */
+class NmtDetailTest {
+    private static final String HEADER = "         Address Perm   Offset Device    Inode    Size     Rss     Pss Referenced Anonymous Swap SwapPss Locked THPeligible Mapping";
+
+    @TempDir
+    Path directory;
+
+    @BeforeAll
+    static void configure() throws IOException {
+        JavaPmapInspector.configure(null);
+    }
+
+    @Test
+    void covers_the_segments_a_range_overlaps() throws IOException {
+        // listed out of order, the index sorts them
+        var index = JavaPmapInspector.SegmentIndex.of(read(row(0x10200000L, "rw-p", 1024, 0),
+                                                           row(0x10000000L, "rw-p", 1024, 0)));
+        assertEquals(1, index.row(0));
+        assertEquals(0, index.row(1));
+
+        var covered = new long[index.size()];
+        assertEquals(8192, index.cover(0x100ff000L, 0x10201000L, covered));
+        assertArrayEquals(new long[]{4096, 4096}, covered);
+
+        assertEquals(1024 * 1024, index.cover(0x10000000L, 0x10100000L, covered));
+        assertArrayEquals(new long[]{4096 + 1024 * 1024, 4096}, covered);
+
+        // in the gap and after the last segment
+        assertEquals(0, index.cover(0x10100000L, 0x10200000L, covered));
+        assertEquals(0, index.cover(0x10300000L, 0x10400000L, covered));
+        assertArrayEquals(new long[]{4096 + 1024 * 1024, 4096}, covered);
+    }
+
+    @Test
+    void correlates_the_regions_with_the_classified_segments() throws IOException {
+        var nmtFile = directory.resolve("nmt.txt");
+        // the frames are longer than the part of the line that is read, the last line has no end of line
+        var frame = "    [0x00007f313a8d8894] ReservedSpace::reserve(unsigned long, unsigned long, unsigned long, char*, bool)+0xb4" + "<templates>".repeat(30);
+        Files.writeString(nmtFile, String.join("\n",
+                "Virtual memory map:",
+                "",
+                "[0x0000000700000000 - 0x0000000800000000] reserved 4194304KB for Java Heap from",
+                frame,
+                "",
+                "\t[0x0000000700000000 - 0x0000000708000000] committed 131072KB from",
+                "\t        [0x00007f313a8d822b] VirtualSpace::expand_by(unsigned long, bool)+0x15b",
+                "",
+                "[0x00007f0000000000 - 0x00007f0000100000] reserved and committed 1024KB for Thread Stack from",
+                frame,
+                "[0x00007f2000000000 - 0x00007f2000008000] reserved and committed 32KB for Internal from"));
+        var nmt = JavaPmapInspector.NmtDetail.parse(nmtFile);
+
+        var classified = classify(row(0x700000000L, "rw-p", 131072, 65536),
+                                  row(0x708000000L, "---p", 4063232, 0),
+                                  row(0x7f0000000000L, "---p", 16, 0),
+                                  row(0x7f0000004000L, "rw-p", 1008, 100),
+                                  row(0x7f0100000000L, "rw-p", 64, 64),
+                                  row(0x7f0100010000L, "r--p", 4, 0));
+        var out = System.out;
+        var captured = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(captured, true, StandardCharsets.UTF_8));
+        try {
+            nmt.printCorrelation(JavaPmapInspector.SegmentIndex.of(classified));
+        } finally {
+            System.setOut(out);
+        }
+        var output = captured.toString(StandardCharsets.UTF_8);
+
+        assertTrue(output.contains("(" + nmtFile + ": 3 reserved regions, 3 committed regions)"), output);
+        assertTrue(output.contains(correlation("JAVA_HEAP", 65536, 65536, 131072)), output);
+        assertTrue(output.contains(correlation("JAVA_THREAD", 100, 100, 1024)), output);
+        assertTrue(output.contains(correlation("UNKNOWN", 64, 0, 0)), output);
+        assertTrue(output.contains(correlation("total", 65700, 65636, 132096)), output);
+        assertTrue(output.contains("1 NMT reserved regions are outside of the segments"), output);
+    }
+
+    private static String correlation(String label, long rss, long nmtRss, long nmtCommitted) {
+        return String.format("%18s rss=%-10s nmt=%-10s not-in-nmt=%-10s nmt-committed=%-10s%n", label, rss, nmtRss, rss - nmtRss, nmtCommitted);
+    }
+
+    private JavaPmapInspector.SegmentTable read(String... rows) throws IOException {
+        var segments = new JavaPmapInspector.SegmentTable(16);
+        try (var reader = JavaPmapInspector.PmapReader.open(pmap(rows).toString())) {
+            reader.nextSample();
+            while (reader.fill(segments) > 0) {
+                segments.grow();
+            }
+        }
+        return segments;
+    }
+
+    private JavaPmapInspector.SegmentTable classify(String... rows) throws IOException {
+        var dictionary = new JavaPmapInspector.MappingDictionary();
+        var classified = new JavaPmapInspector.SegmentTable(16, dictionary);
+        try (var reader = JavaPmapInspector.PmapReader.open(pmap(rows).toString())) {
+            reader.nextSample();
+            JavaPmapInspector.classify(reader,
+                                       new JavaPmapInspector.SegmentTable(JavaPmapInspector.BATCH_SIZE, dictionary),
+                                       new JavaPmapInspector.MemorySegmentIdentifier(),
+                                       (segments, from, to) -> {
+                                           for (int i = from; i < to; i++) {
+                                               classified.addRow(segments, i);
+                                           }
+                                       });
+        }
+        return classified;
+    }
+
+    private Path pmap(String... rows) throws IOException {
+        var lines = new ArrayList<String>();
+        lines.add("1234:   java -jar app.jar");
+        lines.add(HEADER);
+        lines.addAll(List.of(rows));
+        lines.add("                                              ======= ======= ======= ========== ========= ==== ======= ====== ===========");
+        lines.add("                                                    0       0       0          0         0    0       0      0           0 KB");
+        return Files.write(directory.resolve("pmap"), lines);
+    }
+
+    private static String row(long address, String permissions, long size_kib, long rss_kib) {
+        return String.format("%16x %s 00000000 00:00        0 %7d %7d %7d %10d %9d    0       0      0           0 ",
+                             address, permissions, size_kib, rss_kib, rss_kib, rss_kib, rss_kib);
+    }
+}
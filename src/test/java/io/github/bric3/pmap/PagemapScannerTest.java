@@ -0,0 +1,102 @@
+package io.github.bric3.pmap;
+
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Scans the pagemap of the test process over file mappings, a page becomes resident
+ * when it's written, the pages left alone are not mapped in.
+ */
+@EnabledOnOs(OS.LINUX)
+class PagemapScannerTest {
+    private static final int PAGE_SIZE = (int) JavaPmapInspector.PagemapScanner.kernelPageSize();
+    private static final Path PAGEMAP = Paths.get("/proc/self/pagemap");
+
+    @TempDir
+    Path directory;
+
+    @BeforeAll
+    static void configure() throws IOException {
+        JavaPmapInspector.configure(null);
+    }
+
+    @Test
+    void counts_the_resident_pages_and_their_runs() throws IOException {
+        var file = directory.resolve("touched");
+        try (var channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            var buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, 64 * PAGE_SIZE);
+            touch(buffer, 0, 4);
+            touch(buffer, 10, 11);
+            touch(buffer, 20, 30);
+
+            try (var scanner = new JavaPmapInspector.PagemapScanner(PAGEMAP)) {
+                scanner.scan(startAddress(file), 64 * PAGE_SIZE / 1024);
+                assertEquals(64, scanner.pages());
+                assertEquals(15, scanner.resident());
+                assertEquals(3, scanner.runs());
+                assertEquals(10, scanner.largestRun());
+            }
+            Reference.reachabilityFence(buffer); // the mapping must outlive the scan
+        }
+    }
+
+    @Test
+    void finds_no_resident_page_in_an_untouched_segment() throws IOException {
+        var file = directory.resolve("untouched");
+        try (var channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            var buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, 16 * PAGE_SIZE);
+
+            try (var scanner = new JavaPmapInspector.PagemapScanner(PAGEMAP)) {
+                scanner.scan(startAddress(file), 16 * PAGE_SIZE / 1024);
+                assertEquals(16, scanner.pages());
+                assertEquals(0, scanner.resident());
+                assertEquals(0, scanner.runs());
+            }
+            Reference.reachabilityFence(buffer);
+        }
+    }
+
+    @Test
+    void finds_no_resident_page_in_a_kernel_range() throws IOException {
+        try (var scanner = new JavaPmapInspector.PagemapScanner(PAGEMAP)) {
+            // [vsyscall], above the user address space
+            scanner.scan(0xffffffffff600000L, PAGE_SIZE / 1024);
+            assertEquals(1, scanner.pages());
+            assertEquals(0, scanner.resident());
+            assertEquals(0, scanner.runs());
+        }
+    }
+
+    private static void touch(MappedByteBuffer buffer, int fromPage, int toPage) {
+        for (int page = fromPage; page < toPage; page++) {
+            buffer.put(page * PAGE_SIZE, (byte) 1);
+        }
+    }
+
+    /**
+     * @return the start address of the mapping of the file, from {@code /proc/self/maps}.
+     */
+    private static long startAddress(Path file) throws IOException {
+        var path = file.toRealPath().toString();
+        for (var line : Files.readAllLines(Paths.get("/proc/self/maps"))) {
+            if (line.endsWith(" " + path)) {
+                return Long.parseUnsignedLong(line.substring(0, line.indexOf('-')), 16);
+            }
+        }
+        throw new IllegalStateException(path + " is not mapped");
+    }
+}
@@ -0,0 +1,88 @@
+package io.github.bric3.pmap;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * The parallel classification of generated dumps must be the sequential one, whatever
+ * the chunk boundaries, down to a chunk per raw segment.
+ */
+class ParallelClassifierTest {
+    private static ForkJoinPool pool;
+
+    @TempDir
+    Path directory;
+
+    @BeforeAll
+    static void configure() throws IOException {
+        JavaPmapInspector.configure(null);
+        pool = new ForkJoinPool(4);
+    }
+
+    @AfterAll
+    static void shutdown() {
+        pool.shutdown();
+    }
+
+    @ParameterizedTest(name = "{0} mappings, seed {1}, chunks of {2}")
+    @CsvSource({
+            "1000,   42,     1",
+            "1000,   42,     2",
+            "1000,    7,     3",
+            "5000,   42,     7",
+            "5000,    1,    64",
+            "20000,  42,  1000",
+            "20000, 123,     0",
+            "100000, 42,     0",
+    })
+    void classifies_like_the_sequential_classification(int mappings, long seed, int chunkSize) throws IOException {
+        var pmap = directory.resolve("synthetic.pmap");
+        new JavaPmapInspector.SyntheticProcess(mappings, seed).writePmap(pmap);
+        var dictionary = new JavaPmapInspector.MappingDictionary();
+
+        var sequential = new ArrayList<String>();
+        try (var reader = open(pmap)) {
+            JavaPmapInspector.classify(reader,
+                                       new JavaPmapInspector.SegmentTable(JavaPmapInspector.BATCH_SIZE, dictionary),
+                                       new JavaPmapInspector.MemorySegmentIdentifier(),
+                                       (segments, from, to) -> describe(segments, from, to, sequential));
+        }
+
+        var raw = new JavaPmapInspector.SegmentTable(mappings, dictionary);
+        try (var reader = open(pmap)) {
+            while (reader.fill(raw) > 0) {
+                raw.grow();
+            }
+        }
+        var rawBefore = describe(raw, 0, raw.size(), new ArrayList<>());
+        var parallel = new ArrayList<String>();
+        new JavaPmapInspector.ParallelClassifier(pool, chunkSize).classify(raw, (segments, from, to) -> describe(segments, from, to, parallel));
+
+        assertEquals(sequential, parallel);
+        assertEquals(rawBefore, describe(raw, 0, raw.size(), new ArrayList<>()), "raw segments changed");
+    }
+
+    private static JavaPmapInspector.PmapReader open(Path pmap) throws IOException {
+        var reader = JavaPmapInspector.PmapReader.open(pmap.toString());
+        reader.nextSample();
+        return reader;
+    }
+
+    private static List<String> describe(JavaPmapInspector.SegmentTable segments, int from, int to, List<String> rows) {
+        for (int i = from; i < to; i++) {
+            rows.add(segments.toString(i));
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,238 @@
+package io.github.bric3.pmap;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The snapshots replay the segments as they were recorded, and the files of the older
+ * format versions are still read.
+ */
+class SnapshotTest {
+    private static final JavaPmapInspector.GlobalStat GLOBAL_STAT = JavaPmapInspector.GlobalStat.of(1024, 512);
+
+    @TempDir
+    Path directory;
+
+    @BeforeAll
+    static void configure() throws IOException {
+        JavaPmapInspector.configure(null);
+    }
+
+    @Test
+    void replays_the_recorded_segments() throws IOException {
+        var classified = classifiedSyntheticDump();
+        var unordered = unorderedSegments();
+        var file = directory.resolve("snapshots.jpms");
+        try (var writer = JavaPmapInspector.SnapshotWriter.open(file)) {
+            writer.write("synthetic", 1000, classified, GLOBAL_STAT);
+        }
+        // appends to the existing file
+        try (var writer = JavaPmapInspector.SnapshotWriter.open(file)) {
+            writer.write("unordered", 2000, unordered, GLOBAL_STAT);
+        }
+
+        try (var reader = JavaPmapInspector.SnapshotReader.open(file)) {
+            assertEquals(2, reader.size());
+            var replayed = new JavaPmapInspector.SegmentTable(16);
+            reader.read(1, replayed);
+            assertEquals(describe(unordered), describe(replayed));
+
+            replayed.clear();
+            reader.read(0, replayed);
+            assertEquals(describe(classified), describe(replayed));
+        }
+    }
+
+    @Test
+    void ignores_a_truncated_last_frame() throws IOException {
+        var unordered = unorderedSegments();
+        var file = directory.resolve("snapshots.jpms");
+        try (var writer = JavaPmapInspector.SnapshotWriter.open(file)) {
+            writer.write("first", 1000, unordered, GLOBAL_STAT);
+            writer.write("killed while appending", 2000, unordered, GLOBAL_STAT);
+        }
+        try (var channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3);
+        }
+
+        try (var reader = JavaPmapInspector.SnapshotReader.open(file)) {
+            assertEquals(1, reader.size());
+            var replayed = new JavaPmapInspector.SegmentTable(16);
+            reader.read(0, replayed);
+            assertEquals(describe(unordered), describe(replayed));
+        }
+
+        // the recorder restarted after the crash appends after the last complete frame
+        var classified = classifiedSyntheticDump();
+        for (int restart = 0; restart < 3; restart++) {
+            try (var writer = JavaPmapInspector.SnapshotWriter.open(file)) {
+                writer.write("restarted", 3000 + restart, classified, GLOBAL_STAT);
+            }
+        }
+        try (var reader = JavaPmapInspector.SnapshotReader.open(file)) {
+            assertEquals(4, reader.size());
+            var replayed = new JavaPmapInspector.SegmentTable(16);
+            reader.read(0, replayed);
+            assertEquals(describe(unordered), describe(replayed));
+            for (int snapshot = 1; snapshot < 4; snapshot++) {
+                replayed.clear();
+                reader.read(snapshot, replayed);
+                assertEquals(describe(classified), describe(replayed), "snapshot " + snapshot);
+            }
+        }
+    }
+
+    @ParameterizedTest(name = "version {0}")
+    @ValueSource(ints = {1, 2})
+    void replays_the_older_versions_with_the_missing_columns_zeroed(int version) throws IOException {
+        var file = directory.resolve("v" + version + ".jpms");
+        writeOldVersion(file, version);
+
+        try (var reader = JavaPmapInspector.SnapshotReader.open(file)) {
+            assertEquals(1, reader.size());
+            var replayed = new JavaPmapInspector.SegmentTable(16);
+            reader.read(0, replayed);
+            assertEquals(version == 1
+                         ? List.of("JAVA_HEAP 700000000 rw-p 0 size=8192 committed=8192 rss=4096 pss=4096 swap=16 swapPss=0 anonHugePages=2048 locked=0 thpEligible=0 ",
+                                   "MAPPED_FILE 6fff00000 ---p 42 size=64 committed=0 rss=0 pss=0 swap=0 swapPss=0 anonHugePages=0 locked=0 thpEligible=0 libjvm.so")
+                         : List.of("JAVA_HEAP 700000000 rw-p 0 size=8192 committed=8192 rss=4096 pss=4096 swap=16 swapPss=8 anonHugePages=2048 locked=4 thpEligible=8192 ",
+                                   "MAPPED_FILE 6fff00000 ---p 42 size=64 committed=0 rss=0 pss=0 swap=0 swapPss=0 anonHugePages=0 locked=0 thpEligible=0 libjvm.so"),
+                         describe(replayed));
+        }
+
+        var refused = assertThrows(IOException.class, () -> JavaPmapInspector.SnapshotWriter.open(file));
+        assertTrue(refused.getMessage().contains("older snapshot format version " + version), refused.getMessage());
+    }
+
+    /**
+     * Writes a frame as the format version wrote it, with a segment whose start address is
+     * below the end of the previous one.
+     */
+    private static void writeOldVersion(Path file, int version) throws IOException {
+        var body = new JavaPmapInspector.VarintBuffer(256);
+        body.putVarint(1000);
+        body.putString("java -jar app.jar");
+        body.putString("1024");
+        body.putString("512");
+        body.putVarint(2);
+        body.putString("JAVA_HEAP");
+        body.putString("MAPPED_FILE");
+        body.putVarint(2);
+        body.putString("");
+        body.putString("libjvm.so");
+        body.putVarint(2);
+        long start = 0x700000000L;
+        segment(body, version, start, 8192, 4096, 16, 2048, 8, 4, JavaPmapInspector.Permissions.READ_WRITE, 0, 0, 0);
+        long previousEnd = start + 8192 * 1024;
+        segment(body, version, 0x6fff00000L - previousEnd, 64, 0, 0, 0, 0, 0, JavaPmapInspector.Permissions.NONE, 1, 1, 42);
+
+        var frame = new JavaPmapInspector.VarintBuffer(256);
+        frame.put(JavaPmapInspector.SnapshotWriter.MAGIC[0]);
+        frame.put(JavaPmapInspector.SnapshotWriter.MAGIC[1]);
+        frame.put(JavaPmapInspector.SnapshotWriter.MAGIC[2]);
+        frame.put(JavaPmapInspector.SnapshotWriter.MAGIC[3]);
+        frame.put((byte) version);
+        frame.putInt(body.size());
+        frame.put(body);
+        var bytes = frame.asByteBuffer();
+        Files.write(file, Arrays.copyOfRange(bytes.array(), 0, bytes.limit()));
+    }
+
+    private static void segment(JavaPmapInspector.VarintBuffer body,
+                                int version,
+                                long startDelta,
+                                long size_kib,
+                                long rss_kib,
+                                long swap_kib,
+                                long anon_huge_pages_kib,
+                                long swap_pss_kib,
+                                long locked_kib,
+                                byte permissions,
+                                int type,
+                                int mapping,
+                                long inode) {
+        body.putZigzag(startDelta);
+        body.putVarint(size_kib);
+        body.putVarint(rss_kib);
+        body.putVarint(rss_kib); // pss
+        body.putVarint(swap_kib);
+        body.putVarint(anon_huge_pages_kib);
+        if (version >= 2) {
+            body.putVarint(swap_pss_kib);
+            body.putVarint(locked_kib);
+            body.putVarint(rss_kib > 0 ? size_kib : 0); // THP eligible
+        }
+        body.put(permissions);
+        body.put((byte) type);
+        body.putVarint(mapping);
+        body.putVarint(inode);
+    }
+
+    private JavaPmapInspector.SegmentTable classifiedSyntheticDump() throws IOException {
+        var pmap = directory.resolve("synthetic.pmap");
+        new JavaPmapInspector.SyntheticProcess(5000, 42).writePmap(pmap);
+        var dictionary = new JavaPmapInspector.MappingDictionary();
+        var classified = new JavaPmapInspector.SegmentTable(1024, dictionary);
+        try (var reader = JavaPmapInspector.PmapReader.open(pmap.toString())) {
+            reader.nextSample();
+            JavaPmapInspector.classify(reader,
+                                       new JavaPmapInspector.SegmentTable(JavaPmapInspector.BATCH_SIZE, dictionary),
+                                       new JavaPmapInspector.MemorySegmentIdentifier(),
+                                       (segments, from, to) -> {
+                                           for (int i = from; i < to; i++) {
+                                               classified.addRow(segments, i);
+                                           }
+                                       });
+        }
+        return classified;
+    }
+
+    /**
+     * Raw segments whose start addresses go down, the start deltas are then negative.
+     */
+    private JavaPmapInspector.SegmentTable unorderedSegments() throws IOException {
+        var pmap = directory.resolve("unordered.pmap");
+        Files.write(pmap, List.of(
+                "1234:   java -jar app.jar",
+                "         Address Perm   Offset Device    Inode    Size     Rss     Pss Referenced Anonymous LazyFree ShmemPmdMapped Shared_Hugetlb Private_Hugetlb Swap SwapPss Locked THPeligible Mapping",
+                "    7f1000000000 rw-p 00000000 00:00        0   65536   12000   11000      12000     12000        0              0              0               0   16       8      0           1 ",
+                "       700000000 rw-p 00000000 00:00        0 1048576  524288  524288     524288    524288        0              0              0               0    0       0      4           1 ",
+                "    7f0fff000000 r-xp 00010000 08:01  3531531     764     700     350        700         0        0              0              0               0    0       0      0           0 libjvm.so",
+                "ffffffffff600000 --xp 00000000 00:00        0       4       0       0          0         0        0              0              0               0    0       0      0           0 [vsyscall]",
+                "                                              ======= ======= ======= ========== ========= ======== ============== ============== =============== ==== ======= ====== ===========",
+                "                                              1114880  536988  535638     536988    536288        0              0              0               0   16       8      4           0 KB"));
+        var segments = new JavaPmapInspector.SegmentTable(16);
+        try (var reader = JavaPmapInspector.PmapReader.open(pmap.toString())) {
+            reader.nextSample();
+            while (reader.fill(segments) > 0) {
+                segments.grow();
+            }
+        }
+        assertEquals(4, segments.size());
+        return segments;
+    }
+
+    private static List<String> describe(JavaPmapInspector.SegmentTable segments) {
+        var rows = new ArrayList<String>();
+        for (int i = 0; i < segments.size(); i++) {
+            rows.add(segments.describe(i));
+        }
+        return rows;
+    }
+}
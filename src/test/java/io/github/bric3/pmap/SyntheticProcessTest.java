@@ -0,0 +1,96 @@
+package io.github.bric3.pmap;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * The generated pmap and smaps dumps must both be classified as the generator expects,
+ * and the two readers must give the same segments.
+ */
+class SyntheticProcessTest {
+    @TempDir
+    Path directory;
+
+    @BeforeAll
+    static void configure() throws IOException {
+        JavaPmapInspector.configure(null);
+    }
+
+    @ParameterizedTest(name = "{0} mappings, seed {1}")
+    @CsvSource({
+            "1000,   42",
+            "1000,    7",
+            "10000,  42",
+            "10000, 123",
+            "100000, 42",
+    })
+    void classifies_the_generated_dumps_as_expected(int mappings, long seed) throws IOException {
+        var process = new JavaPmapInspector.SyntheticProcess(mappings, seed);
+        var pmap = directory.resolve("synthetic.pmap");
+        var smaps = directory.resolve("synthetic.smaps");
+        var expected = directory.resolve("synthetic.expected");
+        process.writePmap(pmap);
+        process.writeSmaps(smaps);
+        process.writeExpected(expected);
+
+        try (var reader = openPmap(pmap)) {
+            assertEquals(List.of(), first(JavaPmapInspector.SyntheticProcess.verify(reader, expected)), "pmap");
+        }
+        try (var reader = new JavaPmapInspector.SmapsReader().open(smaps)) {
+            assertEquals(List.of(), first(JavaPmapInspector.SyntheticProcess.verify(reader, expected)), "smaps");
+        }
+    }
+
+    @ParameterizedTest(name = "{0} mappings, seed {1}")
+    @CsvSource({
+            "1000,  42",
+            "10000, 42",
+    })
+    void reads_the_same_segments_from_pmap_and_smaps(int mappings, long seed) throws IOException {
+        var process = new JavaPmapInspector.SyntheticProcess(mappings, seed);
+        var pmap = directory.resolve("synthetic.pmap");
+        var smaps = directory.resolve("synthetic.smaps");
+        process.writePmap(pmap);
+        process.writeSmaps(smaps);
+
+        var fromPmap = new ArrayList<String>();
+        try (var reader = openPmap(pmap)) {
+            classify(reader, fromPmap);
+        }
+        var fromSmaps = new ArrayList<String>();
+        try (var reader = new JavaPmapInspector.SmapsReader().open(smaps)) {
+            classify(reader, fromSmaps);
+        }
+        assertEquals(fromPmap, fromSmaps);
+    }
+
+    private static JavaPmapInspector.PmapReader openPmap(Path pmap) throws IOException {
+        var reader = JavaPmapInspector.PmapReader.open(pmap.toString());
+        reader.nextSample();
+        return reader;
+    }
+
+    private static void classify(JavaPmapInspector.SegmentSource source, List<String> rows) throws IOException {
+        JavaPmapInspector.classify(source,
+                                   new JavaPmapInspector.SegmentTable(JavaPmapInspector.BATCH_SIZE),
+                                   new JavaPmapInspector.MemorySegmentIdentifier(),
+                                   (segments, from, to) -> {
+                                       for (int i = from; i < to; i++) {
+                                           rows.add(segments.toString(i));
+                                       }
+                                   });
+    }
+
+    private static List<String> first(List<String> differences) {
+        return differences.subList(0, Math.min(10, differences.size()));
+    }
+}
@@ -0,0 +1,160 @@
+package io.github.bric3.pmap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The stack pointers of the threads are read from their {@code syscall} file and from a
+ * thread dump, then located in the thread stack segments.
+ */
+class ThreadStacksTest {
+    private static final String HEADER = "         Address Perm   Offset Device    Inode    Size     Rss     Pss Referenced Anonymous Swap SwapPss Locked THPeligible Mapping";
+
+    @TempDir
+    Path directory;
+
+    @BeforeAll
+    static void configure() throws IOException {
+        JavaPmapInspector.configure(null);
+    }
+
+    @Test
+    void reads_the_stack_pointer_of_a_syscall_file() {
+        // in a system call, the number, the six arguments, the stack pointer and the program counter
+        assertEquals(0x7f2c605fd8a0L, JavaPmapInspector.ThreadStacks.stackPointer("202 0x7f2c8c0ea2a8 0x80 0x0 0x0 0x0 0x0 0x7f2c605fd8a0 0x7f2c92a8e7b9\n"));
+        // blocked outside of a system call
+        assertEquals(0x7f2c605fd8a0L, JavaPmapInspector.ThreadStacks.stackPointer("-1 0x7f2c605fd8a0 0x7f2c92a8e7b9\n"));
+        assertEquals(0, JavaPmapInspector.ThreadStacks.stackPointer("running\n"));
+        assertEquals(0, JavaPmapInspector.ThreadStacks.stackPointer(""));
+    }
+
+    @Test
+    void groups_the_threads_by_name_without_their_number() {
+        assertEquals("pool-1-thread-", JavaPmapInspector.ThreadStacks.pool("pool-1-thread-12"));
+        assertEquals("C2 CompilerThread", JavaPmapInspector.ThreadStacks.pool("C2 CompilerThread0"));
+        assertEquals("main", JavaPmapInspector.ThreadStacks.pool("main"));
+        assertEquals("12345", JavaPmapInspector.ThreadStacks.pool("12345"));
+    }
+
+    @Test
+    void locates_the_threads_of_a_thread_dump() throws IOException {
+        var dump = Files.write(directory.resolve("threads.txt"), List.of(
+                "Full thread dump OpenJDK 64-Bit Server VM (17.0.9+9 mixed mode, sharing):",
+                "",
+                "\"pool-1-thread-1\" #14 prio=5 os_prio=0 cpu=0.32ms elapsed=12.03s tid=0x00007f2c8c1a6000 nid=0x5c4e waiting on condition  [0x00007f0000080000]",
+                "   java.lang.Thread.State: WAITING (parking)",
+                "\tat jdk.internal.misc.Unsafe.park(java.base@17.0.9/Native Method)",
+                "",
+                // the decimal nid of JDK 19 and later
+                "\"pool-1-thread-2\" #15 prio=5 os_prio=0 cpu=0.12ms elapsed=12.03s tid=0x00007f2c8c1a7000 nid=23631 waiting on condition  [0x00007f0000180000]",
+                "",
+                // the stack of pool-1-thread-2 again, the dump was taken at another time
+                "\"main\" #1 prio=5 os_prio=0 cpu=120.12ms elapsed=12.20s tid=0x00007f2c8c016000 nid=0x5c3a waiting on condition  [0x00007f0000180100]",
+                "",
+                "\"VM Thread\" os_prio=0 cpu=3.07ms elapsed=12.10s tid=0x00007f2c8c0e8800 nid=0x5c3f runnable",
+                "",
+                "JNI global refs: 6, weak refs: 0"));
+
+        var output = report(JavaPmapInspector.ThreadStacks.read(null, dump));
+
+        assertTrue(output.contains("Thread stacks (4 threads, 2 located, 3 pools):"), output);
+        assertTrue(output.contains(pool("pool-1-thread-", 2, 2, 300, 200, "128:1 256:1")), output);
+        assertTrue(output.contains(pool("main", 1, 0, 0, 0, "")), output);
+        assertTrue(output.contains(pool("VM Thread", 1, 0, 0, 0, "")), output);
+        assertTrue(output.contains(String.format("%18s count=%-5s rss=%-10s%n", "unattributed", 1, 12)), output);
+    }
+
+    @Test
+    void names_the_tasks_after_the_thread_dump() throws IOException {
+        var procDir = directory.resolve("1234");
+        task(procDir, 1234, "java", "-1 0x7f0000080000 0x7f2c92a8e7b9");
+        // comm is truncated to 15 characters, the task is running when its syscall file is read
+        task(procDir, 1301, "pool-1-thread-2", "running");
+        var dump = Files.write(directory.resolve("threads.txt"), List.of(
+                "\"main\" #1 prio=5 os_prio=0 cpu=120.12ms elapsed=12.20s tid=0x00007f2c8c016000 nid=0x4d2 waiting on condition  [0x00007f0000100000]",
+                "\"pool-1-thread-2-with-a-long-name\" #15 prio=5 os_prio=0 cpu=0.12ms elapsed=12.03s tid=0x00007f2c8c1a7000 nid=0x515 waiting on condition  [0x00007f0000180000]",
+                "\"exited\" #16 prio=5 os_prio=0 cpu=0.12ms elapsed=12.03s tid=0x00007f2c8c1a8000 nid=0x516 waiting on condition  [0x00007f0000180100]"));
+
+        var output = report(JavaPmapInspector.ThreadStacks.read(procDir, dump));
+
+        // the syscall file is more recent than the dump, the threads missing from the process are ignored
+        assertTrue(output.contains("Thread stacks (2 threads, 2 located, 2 pools):"), output);
+        assertTrue(output.contains(pool("main", 1, 1, 100, 100, "128:1")), output);
+        assertTrue(output.contains(pool("pool-1-thread-2-with-a-long-name", 1, 1, 200, 200, "256:1")), output);
+    }
+
+    private static void task(Path procDir, long tid, String comm, String syscall) throws IOException {
+        var task = Files.createDirectories(procDir.resolve("task").resolve(Long.toString(tid)));
+        Files.writeString(task.resolve("comm"), comm + "\n");
+        Files.writeString(task.resolve("syscall"), syscall + "\n");
+    }
+
+    private static String pool(String name, long threads, long located, long rss_kib, long max_kib, String histogram) {
+        return String.format("%18s threads=%-5s located=%-5s rss=%-10s max=%-10s histogram=%s%n", name, threads, located, rss_kib, max_kib, histogram);
+    }
+
+    /**
+     * Reports the threads against two Java thread stacks and a non-Java one.
+     */
+    private String report(JavaPmapInspector.ThreadStacks threads) throws IOException {
+        var index = JavaPmapInspector.SegmentIndex.of(classify(row(0x7f0000000000L, "---p", 16, 0),
+                                                               row(0x7f0000004000L, "rw-p", 1008, 100),
+                                                               row(0x7f0000100000L, "---p", 16, 0),
+                                                               row(0x7f0000104000L, "rw-p", 1008, 200),
+                                                               row(0x7f0000200000L, "---p", 4, 0),
+                                                               row(0x7f0000201000L, "rw-p", 1024, 12),
+                                                               row(0x7f0000400000L, "r--p", 4, 0)));
+        var out = System.out;
+        var captured = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(captured, true, StandardCharsets.UTF_8));
+        try {
+            threads.report(index);
+        } finally {
+            System.setOut(out);
+        }
+        return captured.toString(StandardCharsets.UTF_8);
+    }
+
+    private JavaPmapInspector.SegmentTable classify(String... rows) throws IOException {
+        var lines = new ArrayList<String>();
+        lines.add("1234:   java -jar app.jar");
+        lines.add(HEADER);
+        lines.addAll(List.of(rows));
+        lines.add("                                              ======= ======= ======= ========== ========= ==== ======= ====== ===========");
+        lines.add("                                                    0       0       0          0         0    0       0      0           0 KB");
+        var pmap = Files.write(directory.resolve("pmap"), lines);
+
+        var dictionary = new JavaPmapInspector.MappingDictionary();
+        var classified = new JavaPmapInspector.SegmentTable(16, dictionary);
+        try (var reader = JavaPmapInspector.PmapReader.open(pmap.toString())) {
+            reader.nextSample();
+            JavaPmapInspector.classify(reader,
+                                       new JavaPmapInspector.SegmentTable(JavaPmapInspector.BATCH_SIZE, dictionary),
+                                       new JavaPmapInspector.MemorySegmentIdentifier(),
+                                       (segments, from, to) -> {
+                                           for (int i = from; i < to; i++) {
+                                               classified.addRow(segments, i);
+                                           }
+                                       });
+        }
+        return classified;
+    }
+
+    private static String row(long address, String permissions, long size_kib, long rss_kib) {
+        return String.format("%16x %s 00000000 00:00        0 %7d %7d %7d %10d %9d    0       0      0           0 ",
+                             address, permissions, size_kib, rss_kib, rss_kib, rss_kib, rss_kib);
+    }
+}